@@ -0,0 +1,64 @@
+/*
+ Copyright (C) 2013 Ray Zhou
+
+ JadeRead is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ JadeRead is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with JadeRead.  If not, see <http://www.gnu.org/licenses/>
+
+ */
+package com.zyz.mobile.example;
+
+import android.os.Process;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The single low priority thread shared by the background passes of the views (page index,
+ * segmentation, etc.), so that they never compete with the UI thread or with each other.
+ */
+public final class BackgroundExecutor {
+
+	private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					runnable.run();
+				}
+			}, "SelectableTextView-background");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private BackgroundExecutor() {
+	}
+
+	/**
+	 * run the task on the background thread
+	 *
+	 * @param task the task
+	 * @return the future of the task, can be used to cancel it
+	 */
+	public static Future<?> submit(Runnable task) {
+		return sExecutor.submit(task);
+	}
+
+	public static ExecutorService getExecutor() {
+		return sExecutor;
+	}
+}
@@ -0,0 +1,510 @@
+/*
+ Copyright (C) 2013 Ray Zhou
+
+ JadeRead is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ JadeRead is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with JadeRead.  If not, see <http://www.gnu.org/licenses/>
+
+ */
+package com.zyz.mobile.example;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.Future;
+
+/**
+ * A full-text index of the chapters of a book, made of the positions of every pair of adjacent
+ * characters (bigram). Bigrams suit CJK text, which has no spaces to cut words at, and work for any
+ * other script.
+ * <p/>
+ * Each chapter has its own file in the index directory, memory-mapped like {@link DictionaryTrie}:
+ * nothing is loaded on the heap, and a chapter whose text changes is indexed again without touching
+ * the others. A query of m characters looks up its m - 1 bigrams, and a position scores one for each
+ * bigram found at its place in the query. A position matching all of them is a phrase hit. The text
+ * itself is never read, so a search of a whole book takes milliseconds.
+ * <p/>
+ * File format (big endian): the magic number, the version, the length of the text, the hash of the
+ * text (two ints), the number of distinct bigrams K and the number of positions P, then the sorted
+ * bigram codes keys[K], the index of the first position of each bigram offsets[K + 1] and the
+ * positions[P], sorted for each bigram. The code of a bigram is (first << 16) | second, both
+ * characters lower-cased. The last character of the text is paired with U+FFFF, which no query
+ * holds, so that every character starts a bigram.
+ * <p/>
+ * Hits give chapter offsets, ready for {@link SelectableTextView#showSelectionControls(int, int)} or
+ * {@link SelectableTextView#setSelection(int, int)}.
+ */
+public class BigramIndex {
+
+	private static final String TAG = "BigramIndex";
+
+	private static final int MAGIC = 0x4247524D; // "BGRM"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 28;
+
+	private static final String PREFIX = "chapter-";
+	private static final String SUFFIX = ".bgi";
+
+	/**
+	 * a hit of a search, ordered by descending score then by position
+	 */
+	public static class Hit {
+		private final int mChapter;
+		private final int mStart;
+		private final int mEnd;
+		private final int mScore;
+
+		Hit(int chapter, int start, int end, int score) {
+			mChapter = chapter;
+			mStart = start;
+			mEnd = end;
+			mScore = score;
+		}
+
+		public int getChapter() {
+			return mChapter;
+		}
+
+		public int getStart() {
+			return mStart;
+		}
+
+		/**
+		 * @return the end of the hit (exclusive)
+		 */
+		public int getEnd() {
+			return mEnd;
+		}
+
+		public int getLength() {
+			return mEnd - mStart;
+		}
+
+		/**
+		 * @return the number of bigrams of the query found at their place, the number of bigrams of
+		 *         the query for a phrase hit
+		 */
+		public int getScore() {
+			return mScore;
+		}
+	}
+
+	private static final Comparator<Hit> RANK = new Comparator<Hit>() {
+		@Override
+		public int compare(Hit a, Hit b) {
+			if (a.mScore != b.mScore) {
+				return a.mScore > b.mScore ? -1 : 1;
+			}
+			if (a.mChapter != b.mChapter) {
+				return a.mChapter < b.mChapter ? -1 : 1;
+			}
+			return a.mStart < b.mStart ? -1 : a.mStart == b.mStart ? 0 : 1;
+		}
+	};
+
+	/**
+	 * the mapped index of one chapter
+	 */
+	private static class Segment {
+		final int mLength;
+		final long mHash;
+		final int mKeyCount;
+		final IntBuffer mKeys;
+		final IntBuffer mOffsets;
+		final IntBuffer mPositions;
+
+		Segment(ByteBuffer buffer) throws IOException {
+			if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+				throw new IOException("not a bigram index");
+			}
+			mLength = buffer.getInt(8);
+			mHash = ((long) buffer.getInt(12) << 32) | (buffer.getInt(16) & 0xFFFFFFFFL);
+			mKeyCount = buffer.getInt(20);
+			int positionCount = buffer.getInt(24);
+			if (buffer.capacity() < HEADER_SIZE + (mKeyCount * 2L + 1 + positionCount) * 4) {
+				throw new IOException("truncated bigram index");
+			}
+
+			mKeys = slice(buffer, HEADER_SIZE, mKeyCount);
+			mOffsets = slice(buffer, HEADER_SIZE + mKeyCount * 4, mKeyCount + 1);
+			mPositions = slice(buffer, HEADER_SIZE + (mKeyCount * 2 + 1) * 4, positionCount);
+		}
+
+		private static IntBuffer slice(ByteBuffer buffer, int position, int count) {
+			ByteBuffer slice = buffer.duplicate();
+			slice.position(position);
+			slice.limit(position + count * 4);
+			return slice.slice().asIntBuffer();
+		}
+
+		/**
+		 * @return the index of the first key not smaller than the code
+		 */
+		int lowerBound(int code) {
+			int low = 0;
+			int high = mKeyCount;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (mKeys.get(mid) < code) {
+					low = mid + 1;
+				}
+				else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+	}
+
+	private final File mDirectory;
+
+	/**
+	 * the segments by chapter, replaced as a whole when a chapter is indexed again
+	 */
+	private volatile Segment[] mSegments = new Segment[0];
+
+	private float mMinMatch = 1f;
+
+	private BigramIndex(File directory) {
+		mDirectory = directory;
+	}
+
+	/**
+	 * map the index files of the directory in memory, creating the directory if needed
+	 *
+	 * @param directory the directory holding the index
+	 * @return the index
+	 * @throws IOException if the directory can't be created
+	 */
+	public static BigramIndex open(File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("unable to create " + directory);
+		}
+
+		BigramIndex index = new BigramIndex(directory);
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+					continue;
+				}
+				try {
+					int chapter = Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+					index.setSegment(chapter, map(file));
+				}
+				catch (NumberFormatException e) {
+					Log.w(TAG, "ignoring " + name);
+				}
+				catch (IOException e) {
+					// it will be indexed again the next time its chapter is updated
+					Log.w(TAG, "ignoring " + name, e);
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Set the fraction of the bigrams of a query a position must match to be a hit. 1, the default,
+	 * only returns phrase hits. Lower values tolerate typos and variant characters.
+	 *
+	 * @param minMatch a fraction in (0, 1]
+	 */
+	public void setMinMatch(float minMatch) {
+		mMinMatch = Math.max(0.01f, Math.min(minMatch, 1f));
+	}
+
+	/**
+	 * @param chapter the chapter
+	 * @param text    the current text of the chapter
+	 * @return true if the index of the chapter is up to date with the text
+	 */
+	public boolean isIndexed(int chapter, CharSequence text) {
+		Segment segment = getSegment(chapter);
+		return segment != null && segment.mLength == text.length() && segment.mHash == hash(text);
+	}
+
+	/**
+	 * Index the text of the chapter, unless the index is already up to date with it. Blocks, use
+	 * {@link #updateInBackground(int, CharSequence)} from the UI thread. The text must not be edited
+	 * meanwhile.
+	 *
+	 * @param chapter the chapter
+	 * @param text    the text of the chapter
+	 * @throws IOException if the index can't be written
+	 */
+	public void update(int chapter, CharSequence text) throws IOException {
+		if (isIndexed(chapter, text)) {
+			return;
+		}
+
+		File file = getFile(chapter);
+		File temp = new File(mDirectory, file.getName() + ".tmp");
+		write(text, temp);
+		// the old file stays mapped until it's collected, which the rename doesn't disturb
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("unable to replace " + file);
+		}
+		setSegment(chapter, map(file));
+	}
+
+	/**
+	 * index the text of the chapter on the {@link BackgroundExecutor}
+	 *
+	 * @return the future of the task, can be used to cancel it
+	 */
+	public Future<?> updateInBackground(final int chapter, final CharSequence text) {
+		return BackgroundExecutor.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					update(chapter, text);
+				}
+				catch (IOException e) {
+					Log.w(TAG, "unable to index chapter " + chapter, e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * drop the index of the chapter, e.g. once it's removed from the book
+	 */
+	public void remove(int chapter) {
+		setSegment(chapter, null);
+		getFile(chapter).delete();
+	}
+
+	/**
+	 * Search the indexed chapters.
+	 *
+	 * @param query   the text to look for, case insensitive
+	 * @param maxHits the maximum number of hits returned
+	 * @return the best hits, best first
+	 */
+	public Hit[] search(CharSequence query, int maxHits) {
+		ArrayList<Hit> hits = new ArrayList<Hit>();
+		int length = query.length();
+		if (length == 0 || maxHits <= 0) {
+			return new Hit[0];
+		}
+
+		Segment[] segments = mSegments;
+		for (int chapter = 0; chapter < segments.length; chapter++) {
+			if (segments[chapter] == null) {
+				continue;
+			}
+			if (length == 1) {
+				searchCharacter(chapter, segments[chapter], fold(query.charAt(0)), hits);
+			}
+			else {
+				searchBigrams(chapter, segments[chapter], query, hits);
+			}
+		}
+
+		Collections.sort(hits, RANK);
+		int count = Math.min(maxHits, hits.size());
+		return hits.subList(0, count).toArray(new Hit[count]);
+	}
+
+	/**
+	 * a single character is found as the first character of the bigrams, whose codes are contiguous
+	 */
+	private static void searchCharacter(int chapter, Segment segment, char c, ArrayList<Hit> hits) {
+		int from = segment.lowerBound(c << 16);
+		int to = segment.lowerBound((c << 16) | 0xFFFF);
+		if (to < segment.mKeyCount && segment.mKeys.get(to) == ((c << 16) | 0xFFFF)) {
+			to++;
+		}
+		if (from >= to) {
+			return;
+		}
+
+		int first = segment.mOffsets.get(from);
+		int last = segment.mOffsets.get(to);
+		int[] positions = new int[last - first];
+		for (int i = first; i < last; i++) {
+			positions[i - first] = segment.mPositions.get(i);
+		}
+		Arrays.sort(positions);
+		for (int position : positions) {
+			hits.add(new Hit(chapter, position, position + 1, 1));
+		}
+	}
+
+	private void searchBigrams(int chapter, Segment segment, CharSequence query, ArrayList<Hit> hits) {
+		int bigrams = query.length() - 1;
+		int minScore = Math.max(1, (int) Math.ceil(bigrams * mMinMatch));
+
+		// where each bigram puts the start of the query
+		int total = 0;
+		int[] from = new int[bigrams];
+		int[] to = new int[bigrams];
+		for (int k = 0; k < bigrams; k++) {
+			int code = code(query.charAt(k), query.charAt(k + 1));
+			int key = segment.lowerBound(code);
+			if (key < segment.mKeyCount && segment.mKeys.get(key) == code) {
+				from[k] = segment.mOffsets.get(key);
+				to[k] = segment.mOffsets.get(key + 1);
+				total += to[k] - from[k];
+			}
+		}
+
+		int[] starts = new int[total];
+		int count = 0;
+		for (int k = 0; k < bigrams; k++) {
+			for (int i = from[k]; i < to[k]; i++) {
+				int start = segment.mPositions.get(i) - k;
+				if (start >= 0) {
+					starts[count++] = start;
+				}
+			}
+		}
+		Arrays.sort(starts, 0, count);
+
+		// a run of equal starts is one position, scored by the number of bigrams agreeing on it
+		int end = Math.min(query.length(), segment.mLength);
+		for (int i = 0; i < count; ) {
+			int j = i + 1;
+			while (j < count && starts[j] == starts[i]) {
+				j++;
+			}
+			if (j - i >= minScore) {
+				hits.add(new Hit(chapter, starts[i], Math.min(starts[i] + end, segment.mLength), j - i));
+			}
+			i = j;
+		}
+	}
+
+	private Segment getSegment(int chapter) {
+		Segment[] segments = mSegments;
+		return chapter >= 0 && chapter < segments.length ? segments[chapter] : null;
+	}
+
+	private synchronized void setSegment(int chapter, Segment segment) {
+		Segment[] segments = mSegments;
+		if (chapter >= segments.length) {
+			if (segment == null) {
+				return;
+			}
+			segments = Arrays.copyOf(segments, chapter + 1);
+		}
+		else {
+			segments = segments.clone();
+		}
+		segments[chapter] = segment;
+		mSegments = segments;
+	}
+
+	private File getFile(int chapter) {
+		return new File(mDirectory, PREFIX + chapter + SUFFIX);
+	}
+
+	private static Segment map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			// the mapping stays valid after the channel is closed
+			return new Segment(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * write the index of the text to the file
+	 */
+	private static void write(CharSequence text, File file) throws IOException {
+		int length = text.length();
+
+		// (code, position) pairs sorted by code then position
+		long[] pairs = new long[length];
+		int count = length;
+		for (int i = 0; i < length; i++) {
+			char b = i + 1 < length ? text.charAt(i + 1) : '\uFFFF';
+			pairs[i] = ((long) code(text.charAt(i), b) << 32) | i;
+		}
+		Arrays.sort(pairs);
+
+		int keyCount = 0;
+		for (int i = 0; i < count; i++) {
+			if (i == 0 || (int) (pairs[i] >> 32) != (int) (pairs[i - 1] >> 32)) {
+				keyCount++;
+			}
+		}
+
+		long hash = hash(text);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(length);
+			out.writeInt((int) (hash >>> 32));
+			out.writeInt((int) hash);
+			out.writeInt(keyCount);
+			out.writeInt(count);
+
+			for (int i = 0; i < count; i++) {
+				if (i == 0 || (int) (pairs[i] >> 32) != (int) (pairs[i - 1] >> 32)) {
+					out.writeInt((int) (pairs[i] >> 32));
+				}
+			}
+			for (int i = 0; i < count; i++) {
+				if (i == 0 || (int) (pairs[i] >> 32) != (int) (pairs[i - 1] >> 32)) {
+					out.writeInt(i);
+				}
+			}
+			out.writeInt(count);
+			for (int i = 0; i < count; i++) {
+				out.writeInt((int) pairs[i]);
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	private static int code(char a, char b) {
+		return (fold(a) << 16) | fold(b);
+	}
+
+	private static char fold(char c) {
+		return Character.toLowerCase(c);
+	}
+
+	/**
+	 * 64-bit FNV-1a of the characters, tells whether a chapter changed since it was indexed
+	 */
+	private static long hash(CharSequence text) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0, length = text.length(); i < length; i++) {
+			hash ^= text.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+}
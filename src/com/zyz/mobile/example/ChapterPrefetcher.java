@@ -0,0 +1,433 @@
+/*
+ Copyright (C) 2013 Ray Zhou
+
+ JadeRead is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ JadeRead is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with JadeRead.  If not, see <http://www.gnu.org/licenses/>
+
+ */
+package com.zyz.mobile.example;
+
+import android.text.Layout;
+import android.text.Spannable;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Prepares the chapters around the one shown by a {@link SelectableTextView}, so that turning to the
+ * next or the previous chapter doesn't wait for it to be read and converted.
+ * <p/>
+ * When the visible part of the text gets close to its end (or its start), the next (or previous)
+ * chapter is loaded from the {@link ChapterSource} on the {@link BackgroundExecutor}, converted with
+ * the Spannable.Factory of the view, so that setText keeps it without copying it, and in page mode
+ * laid out with the paint and width of the view to compute its page breaks. Prepared chapters are
+ * dropped, farthest from the current chapter first, once they take more than the memory budget.
+ * <p/>
+ * {@link #showChapter(int)} swaps a prepared chapter in at once. The selection and highlights saved
+ * for a chapter with {@link #setPendingSelection} and {@link #addPendingHighlight} are applied as it
+ * is swapped in, before it is first drawn.
+ * <p/>
+ * Note TextView makes its own layout in setText and can't adopt one made elsewhere, so the view
+ * still lays the text out on the UI thread. What moves to the background is everything around it:
+ * the read, the parsing done by the source, the conversion and the pagination.
+ * <p/>
+ * All the methods must be called on the UI thread.
+ */
+public class ChapterPrefetcher implements OnScrollChangedListener {
+
+	private static final String TAG = "ChapterPrefetcher";
+
+	/**
+	 * the fraction of the text from either end within which the adjacent chapter is prepared
+	 */
+	public static final float DEFAULT_THRESHOLD = 0.25f;
+
+	public interface ChapterSource {
+		/**
+		 * @return the number of chapters
+		 */
+		public int getChapterCount();
+
+		/**
+		 * Read and parse a chapter. Called on the background thread.
+		 *
+		 * @param index the index of the chapter
+		 * @return the text of the chapter
+		 * @throws IOException if the chapter can't be read
+		 */
+		public CharSequence loadChapter(int index) throws IOException;
+	}
+
+	public interface OnChapterShownListener {
+		/**
+		 * called on the UI thread once the chapter is the text of the view
+		 *
+		 * @param index    the index of the chapter
+		 * @param prepared true if the chapter had been prepared in advance
+		 */
+		public void onChapterShown(int index, boolean prepared);
+
+		/**
+		 * called on the UI thread if the chapter asked for by showChapter can't be loaded
+		 *
+		 * @param index the index of the chapter
+		 * @param e     the error
+		 */
+		public void onChapterFailed(int index, IOException e);
+	}
+
+	/**
+	 * a chapter ready to be swapped in
+	 */
+	private static class Chapter {
+		final Spannable mText;
+		final PageIndex mPageIndex;
+		final int mSize;
+
+		Chapter(Spannable text, PageIndex pageIndex, int size) {
+			mText = text;
+			mPageIndex = pageIndex;
+			mSize = size;
+		}
+	}
+
+	private final SelectableTextView mView;
+	private final ChapterSource mSource;
+	private int mBudget;
+	private float mThreshold = DEFAULT_THRESHOLD;
+	private OnChapterShownListener mOnChapterShownListener;
+
+	private int mCurrent = -1;
+
+	/**
+	 * the chapter to show as soon as it's loaded, -1 if none
+	 */
+	private int mWaitingFor = -1;
+
+	private final HashMap<Integer, Chapter> mPrepared = new HashMap<Integer, Chapter>();
+	private final HashMap<Integer, Future<?>> mLoading = new HashMap<Integer, Future<?>>();
+
+	/**
+	 * the selection ({start, end}) and highlights ({color, start, end}) to restore by chapter
+	 */
+	private final HashMap<Integer, int[]> mPendingSelections = new HashMap<Integer, int[]>();
+	private final HashMap<Integer, ArrayList<int[]>> mPendingHighlights = new HashMap<Integer, ArrayList<int[]>>();
+
+	private final int[] mRange = new int[2];
+
+	/**
+	 * @param view   the view showing the chapters. If it's in an ObservableScrollView, its scroll is
+	 *               followed, otherwise call {@link #checkPosition()} when the position changes.
+	 * @param source the chapters
+	 * @param budget the maximum number of bytes taken by the prepared chapters
+	 */
+	public ChapterPrefetcher(SelectableTextView view, ChapterSource source, int budget) {
+		mView = view;
+		mSource = source;
+		mBudget = budget;
+
+		if (view.getParent() instanceof ObservableScrollView) {
+			((ObservableScrollView) view.getParent()).addOnScrollChangedListener(this);
+		}
+	}
+
+	public void setBudget(int budget) {
+		mBudget = budget;
+		trim();
+	}
+
+	/**
+	 * @param threshold the fraction of the text from either end within which the adjacent chapter
+	 *                  is prepared
+	 */
+	public void setThreshold(float threshold) {
+		mThreshold = threshold;
+	}
+
+	public void setOnChapterShownListener(OnChapterShownListener onChapterShownListener) {
+		mOnChapterShownListener = onChapterShownListener;
+	}
+
+	/**
+	 * @return the chapter shown by the view, -1 before the first showChapter
+	 */
+	public int getCurrentChapter() {
+		return mCurrent;
+	}
+
+	public boolean isPrepared(int index) {
+		return mPrepared.containsKey(index);
+	}
+
+	/**
+	 * Select the specified range when the chapter is shown next, e.g. the selection saved when the
+	 * user left it.
+	 */
+	public void setPendingSelection(int index, int start, int end) {
+		mPendingSelections.put(index, new int[]{start, end});
+	}
+
+	/**
+	 * Highlight the specified range when the chapter is shown next.
+	 */
+	public void addPendingHighlight(int index, int color, int start, int end) {
+		ArrayList<int[]> highlights = mPendingHighlights.get(index);
+		if (highlights == null) {
+			highlights = new ArrayList<int[]>();
+			mPendingHighlights.put(index, highlights);
+		}
+		highlights.add(new int[]{color, start, end});
+	}
+
+	/**
+	 * Show the specified chapter, at once if it has been prepared, otherwise as soon as it's loaded.
+	 *
+	 * @param index the index of the chapter
+	 * @return true if the chapter was prepared and is now shown
+	 */
+	public boolean showChapter(int index) {
+		if (index < 0 || index >= mSource.getChapterCount()) {
+			return false;
+		}
+
+		Chapter chapter = mPrepared.remove(index);
+		if (chapter == null) {
+			mWaitingFor = index;
+			prefetch(index);
+			return false;
+		}
+
+		mWaitingFor = -1;
+		swap(index, chapter, true);
+		return true;
+	}
+
+	/**
+	 * Prepare the adjacent chapter if the visible part of the text is close enough to its end or its
+	 * start.
+	 */
+	public void checkPosition() {
+		final int[] range = mRange;
+		int length = mView.getText().length();
+		if (mCurrent < 0 || length == 0 || !mView.getVisibleRange(range)) {
+			return;
+		}
+
+		int margin = (int) (length * mThreshold);
+		if (range[1] >= length - margin) {
+			prefetch(mCurrent + 1);
+		}
+		if (range[0] <= margin) {
+			prefetch(mCurrent - 1);
+		}
+	}
+
+	@Override
+	public void onScrollChanged(ObservableScrollView scrollView, int x, int y, int oldx, int oldy) {
+		checkPosition();
+	}
+
+	/**
+	 * stop following the scroll of the view and drop the prepared chapters
+	 */
+	public void release() {
+		if (mView.getParent() instanceof ObservableScrollView) {
+			((ObservableScrollView) mView.getParent()).removeOnScrollChangedListener(this);
+		}
+		for (Future<?> future : mLoading.values()) {
+			future.cancel(false);
+		}
+		mLoading.clear();
+		mPrepared.clear();
+		mWaitingFor = -1;
+	}
+
+	private void swap(int index, Chapter chapter, boolean prepared) {
+		mCurrent = index;
+		mView.setPreparedText(chapter.mText, chapter.mPageIndex);
+
+		ArrayList<int[]> highlights = mPendingHighlights.remove(index);
+		if (highlights != null) {
+			int length = chapter.mText.length();
+			for (int[] highlight : highlights) {
+				if (highlight[1] >= 0 && highlight[2] <= length && highlight[1] < highlight[2]) {
+					mView.addHighlight(highlight[0], highlight[1], highlight[2]);
+				}
+			}
+		}
+
+		final int[] selection = mPendingSelections.remove(index);
+		if (selection != null && selection[0] >= 0 && Math.max(selection[0], selection[1]) < chapter.mText.length()) {
+			// the cursors are placed from the layout, which the view may only make on the next pass
+			mView.post(new Runnable() {
+				@Override
+				public void run() {
+					if (mView.getLayout() != null) {
+						mView.showSelectionControls(selection[0], selection[1]);
+					}
+				}
+			});
+		}
+
+		// only the neighbours of the current chapter are worth keeping
+		Iterator<Map.Entry<Integer, Chapter>> iterator = mPrepared.entrySet().iterator();
+		while (iterator.hasNext()) {
+			if (Math.abs(iterator.next().getKey() - index) > 1) {
+				iterator.remove();
+			}
+		}
+
+		if (mOnChapterShownListener != null) {
+			mOnChapterShownListener.onChapterShown(index, prepared);
+		}
+	}
+
+	/**
+	 * start preparing the chapter in the background, unless it's prepared or being prepared
+	 */
+	private void prefetch(final int index) {
+		if (index < 0 || index >= mSource.getChapterCount() || index == mCurrent
+				  || mPrepared.containsKey(index) || mLoading.containsKey(index)) {
+			return;
+		}
+
+		// what the background pass needs from the view is read here, on the UI thread
+		final Spannable.Factory factory = mView.getSpannableFactory();
+		Layout layout = mView.getLayout();
+		final boolean paginate = mView.isPageMode() && layout != null;
+		final TextPaint paint = paginate ? new TextPaint(layout.getPaint()) : null;
+		final int width = paginate ? layout.getWidth() : 0;
+		final Layout.Alignment alignment = paginate ? layout.getAlignment() : null;
+		final float spacingMult = paginate ? layout.getSpacingMultiplier() : 1f;
+		final float spacingAdd = paginate ? layout.getSpacingAdd() : 0f;
+		final boolean includePad = paginate && (layout.getTopPadding() != 0 || layout.getBottomPadding() != 0);
+		final int pageHeight = mView.getHeight() - mView.getTotalPaddingTop() - mView.getTotalPaddingBottom();
+
+		final Future<?>[] self = new Future<?>[1];
+		self[0] = BackgroundExecutor.submit(new Runnable() {
+			@Override
+			public void run() {
+				Chapter chapter = null;
+				IOException error = null;
+				try {
+					Spannable text = factory.newSpannable(mSource.loadChapter(index));
+					PageIndex pageIndex = null;
+					if (paginate && pageHeight > 0) {
+						StaticLayout staticLayout = new StaticLayout(text, paint, width, alignment, spacingMult,
+								  spacingAdd, includePad);
+						pageIndex = PageIndex.compute(staticLayout, pageHeight);
+					}
+					chapter = new Chapter(text, pageIndex, estimateSize(text, pageIndex));
+				}
+				catch (IOException e) {
+					error = e;
+				}
+				catch (RuntimeException e) {
+					// still report it, or the chapter would stay loading and a showChapter wait forever
+					Log.w(TAG, "unable to prepare chapter " + index, e);
+					error = new IOException("unable to prepare chapter " + index + ": " + e);
+				}
+
+				final Chapter result = chapter;
+				final IOException failure = error;
+				mView.post(new Runnable() {
+					@Override
+					public void run() {
+						onPrepared(index, self[0], result, failure);
+					}
+				});
+			}
+		});
+		mLoading.put(index, self[0]);
+	}
+
+	/**
+	 * keep the chapter if it's still wanted, called on the UI thread
+	 */
+	private void onPrepared(int index, Future<?> future, Chapter chapter, IOException error) {
+		if (mLoading.get(index) != future) {
+			return;
+		}
+		mLoading.remove(index);
+
+		if (error != null) {
+			Log.w(TAG, "unable to load chapter " + index, error);
+			if (mWaitingFor == index) {
+				mWaitingFor = -1;
+				if (mOnChapterShownListener != null) {
+					mOnChapterShownListener.onChapterFailed(index, error);
+				}
+			}
+			return;
+		}
+
+		if (mWaitingFor == index) {
+			mWaitingFor = -1;
+			swap(index, chapter, false);
+			return;
+		}
+
+		if (mCurrent >= 0 && Math.abs(index - mCurrent) > 1) {
+			// the reader has moved on meanwhile
+			return;
+		}
+		mPrepared.put(index, chapter);
+		trim();
+	}
+
+	/**
+	 * drop the prepared chapters farthest from the current one until they fit in the budget
+	 */
+	private void trim() {
+		int total = 0;
+		for (Chapter chapter : mPrepared.values()) {
+			total += chapter.mSize;
+		}
+
+		while (total > mBudget && !mPrepared.isEmpty()) {
+			int farthest = -1;
+			for (Integer index : mPrepared.keySet()) {
+				if (farthest < 0 || Math.abs(index - mCurrent) > Math.abs(farthest - mCurrent)) {
+					farthest = index;
+				}
+			}
+			total -= mPrepared.remove(farthest).mSize;
+		}
+	}
+
+	/**
+	 * @return roughly the number of bytes taken by the text and the page breaks
+	 */
+	private static int estimateSize(Spannable text, PageIndex pageIndex) {
+		int size;
+		if (text instanceof CompactSpannable) {
+			// a byte per character, plus a char per character of the UTF-16 chunks
+			size = text.length() + ((CompactSpannable) text).getWideChunkCount() * CompactSpannable.CHUNK_SIZE;
+		}
+		else {
+			size = text.length() * 2;
+		}
+		if (pageIndex != null) {
+			// the layout the index was computed from is kept with it, about 6 ints per line
+			size += pageIndex.getLastLine(pageIndex.getPageCount() - 1) * 24 + pageIndex.getPageCount() * 12;
+		}
+		return size;
+	}
+}
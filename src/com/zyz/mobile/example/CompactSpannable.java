@@ -0,0 +1,327 @@
+/*
+ Copyright (C) 2013 Ray Zhou
+
+ JadeRead is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ JadeRead is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with JadeRead.  If not, see <http://www.gnu.org/licenses/>
+
+ */
+package com.zyz.mobile.example;
+
+import android.text.GetChars;
+import android.text.NoCopySpan;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.TextUtils;
+
+import java.util.Arrays;
+
+/**
+ * An immutable text with mutable spans, like SpannableString, that takes about half the memory for
+ * mostly Latin text.
+ * <p/>
+ * The text is cut in chunks of CHUNK_SIZE characters. A chunk whose characters all fit in Latin-1
+ * is stored one byte per character, any other chunk is stored as UTF-16, so a few CJK characters
+ * only cost their own chunks. Every chunk is fixed size, so charAt stays O(1).
+ * <p/>
+ * The spans are kept in a small table of parallel arrays scanned linearly: a book has a lot of text
+ * and few spans (the selection, some highlights), and a scan of a handful of entries beats any
+ * index. Use {@link HighlightCoalescer} to keep the count of highlight spans down, or
+ * {@link IndexedSpannable} for a text with many spans.
+ * <p/>
+ * SelectableTextView uses {@link Factory} so that TextView keeps the CompactSpannable instead of
+ * copying it into a SpannableString.
+ */
+public class CompactSpannable implements Spannable, GetChars {
+
+	private static final int CHUNK_SHIFT = 12;
+	static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	/**
+	 * each chunk is either a byte[] (Latin-1) or a char[] (UTF-16)
+	 */
+	private final Object[] mChunks;
+	private final int mLength;
+
+	private final SpanTable mSpanTable;
+
+	/**
+	 * the watchers of the text, null until the first change after a watcher is set or removed. Kept
+	 * so that moving a span, e.g. the selection on every move of a cursor, doesn't allocate.
+	 */
+	private SpanWatcher[] mWatchers;
+
+	/**
+	 * A Spannable.Factory that turns any text into a CompactSpannable, and passes a CompactSpannable
+	 * through without copying it.
+	 */
+	public static class Factory extends Spannable.Factory {
+		private static final Factory sInstance = new Factory();
+
+		public static Factory getInstance() {
+			return sInstance;
+		}
+
+		@Override
+		public Spannable newSpannable(CharSequence source) {
+			// not a subclass such as IndexedSpannable, which has to be converted back
+			if (source.getClass() == CompactSpannable.class) {
+				return (CompactSpannable) source;
+			}
+			return new CompactSpannable(source);
+		}
+	}
+
+	public CompactSpannable(CharSequence source) {
+		this(source, 0, source.length());
+	}
+
+	/**
+	 * copy source[start, end) and the spans over it
+	 */
+	public CompactSpannable(CharSequence source, int start, int end) {
+		this(source, start, end, new SpanTable());
+	}
+
+	/**
+	 * copy source[start, end) and the spans over it into the specified span table
+	 */
+	CompactSpannable(CharSequence source, int start, int end, SpanTable spanTable) {
+		mSpanTable = spanTable;
+		mLength = end - start;
+		mChunks = new Object[(mLength + CHUNK_MASK) >> CHUNK_SHIFT];
+
+		char[] buffer = new char[Math.min(CHUNK_SIZE, mLength)];
+		for (int i = 0; i < mChunks.length; i++) {
+			int from = start + (i << CHUNK_SHIFT);
+			int count = Math.min(CHUNK_SIZE, end - from);
+			TextUtils.getChars(source, from, from + count, buffer, 0);
+			mChunks[i] = compact(buffer, count);
+		}
+
+		if (source instanceof Spanned) {
+			copySpans((Spanned) source, start, end);
+		}
+	}
+
+	/**
+	 * @return the chunk as Latin-1 bytes if every character fits, a copy of the chars otherwise
+	 */
+	private static Object compact(char[] buffer, int count) {
+		for (int i = 0; i < count; i++) {
+			if (buffer[i] > 0xFF) {
+				return Arrays.copyOf(buffer, count);
+			}
+		}
+		byte[] bytes = new byte[count];
+		for (int i = 0; i < count; i++) {
+			bytes[i] = (byte) buffer[i];
+		}
+		return bytes;
+	}
+
+	private void copySpans(Spanned source, int start, int end) {
+		Object[] spans = source.getSpans(start, end, Object.class);
+		for (Object span : spans) {
+			// watchers belong to the text they watch, same as SpannableString
+			if (span instanceof NoCopySpan) {
+				continue;
+			}
+			int spanStart = Math.max(source.getSpanStart(span), start) - start;
+			int spanEnd = Math.min(source.getSpanEnd(span), end) - start;
+			if (spanStart <= spanEnd) {
+				mSpanTable.add(span, spanStart, spanEnd, source.getSpanFlags(span));
+			}
+		}
+	}
+
+	/**
+	 * @return the number of chunks stored as UTF-16
+	 */
+	public int getWideChunkCount() {
+		int count = 0;
+		for (Object chunk : mChunks) {
+			if (chunk instanceof char[]) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public int length() {
+		return mLength;
+	}
+
+	@Override
+	public char charAt(int index) {
+		if (index < 0 || index >= mLength) {
+			throw new IndexOutOfBoundsException("charAt: " + index + " of " + mLength);
+		}
+		Object chunk = mChunks[index >> CHUNK_SHIFT];
+		if (chunk instanceof byte[]) {
+			return (char) (((byte[]) chunk)[index & CHUNK_MASK] & 0xFF);
+		}
+		return ((char[]) chunk)[index & CHUNK_MASK];
+	}
+
+	@Override
+	public void getChars(int start, int end, char[] dest, int destoff) {
+		checkRange("getChars", start, end);
+
+		while (start < end) {
+			Object chunk = mChunks[start >> CHUNK_SHIFT];
+			int offset = start & CHUNK_MASK;
+			int count = Math.min(end - start, CHUNK_SIZE - offset);
+
+			if (chunk instanceof byte[]) {
+				byte[] bytes = (byte[]) chunk;
+				for (int i = 0; i < count; i++) {
+					dest[destoff + i] = (char) (bytes[offset + i] & 0xFF);
+				}
+			}
+			else {
+				System.arraycopy(chunk, offset, dest, destoff, count);
+			}
+			start += count;
+			destoff += count;
+		}
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		checkRange("subSequence", start, end);
+		return new CompactSpannable(this, start, end, mSpanTable.newTable());
+	}
+
+	@Override
+	public String toString() {
+		char[] chars = new char[mLength];
+		getChars(0, mLength, chars, 0);
+		return new String(chars);
+	}
+
+	@Override
+	public void setSpan(Object what, int start, int end, int flags) {
+		checkRange("setSpan", start, end);
+		if (what instanceof SpanWatcher) {
+			mWatchers = null;
+		}
+
+		if (mSpanTable.contains(what)) {
+			int oldStart = mSpanTable.getStart(what);
+			int oldEnd = mSpanTable.getEnd(what);
+			mSpanTable.update(what, start, end, flags);
+			sendSpanChanged(what, oldStart, oldEnd, start, end);
+		}
+		else {
+			mSpanTable.add(what, start, end, flags);
+			sendSpanAdded(what, start, end);
+		}
+	}
+
+	@Override
+	public void removeSpan(Object what) {
+		if (!mSpanTable.contains(what)) {
+			return;
+		}
+
+		int start = mSpanTable.getStart(what);
+		int end = mSpanTable.getEnd(what);
+		mSpanTable.remove(what);
+		if (what instanceof SpanWatcher) {
+			mWatchers = null;
+		}
+
+		sendSpanRemoved(what, start, end);
+	}
+
+	@Override
+	public <T> T[] getSpans(int queryStart, int queryEnd, Class<T> kind) {
+		return mSpanTable.getSpans(queryStart, queryEnd, kind);
+	}
+
+	@Override
+	public int getSpanStart(Object what) {
+		return mSpanTable.getStart(what);
+	}
+
+	@Override
+	public int getSpanEnd(Object what) {
+		return mSpanTable.getEnd(what);
+	}
+
+	@Override
+	public int getSpanFlags(Object what) {
+		return mSpanTable.getFlags(what);
+	}
+
+	@Override
+	public int nextSpanTransition(int start, int limit, Class kind) {
+		return mSpanTable.nextSpanTransition(start, limit, kind);
+	}
+
+	/**
+	 * @return all the watchers of the text, in the order getSpans returns them
+	 */
+	private SpanWatcher[] getWatchers() {
+		if (mWatchers == null) {
+			mWatchers = getSpans(0, mLength, SpanWatcher.class);
+		}
+		return mWatchers;
+	}
+
+	/**
+	 * whether the watcher covers the range, the same rule getSpans(start, end) applies
+	 */
+	private boolean watches(SpanWatcher watcher, int start, int end) {
+		return SpanTable.intersects(getSpanStart(watcher), getSpanEnd(watcher), start, end);
+	}
+
+	private void sendSpanAdded(Object what, int start, int end) {
+		SpanWatcher[] watchers = getWatchers();
+		for (SpanWatcher watcher : watchers) {
+			if (watches(watcher, start, end)) {
+				watcher.onSpanAdded(this, what, start, end);
+			}
+		}
+	}
+
+	private void sendSpanRemoved(Object what, int start, int end) {
+		SpanWatcher[] watchers = getWatchers();
+		for (SpanWatcher watcher : watchers) {
+			if (watches(watcher, start, end)) {
+				watcher.onSpanRemoved(this, what, start, end);
+			}
+		}
+	}
+
+	private void sendSpanChanged(Object what, int oldStart, int oldEnd, int start, int end) {
+		SpanWatcher[] watchers = getWatchers();
+		for (SpanWatcher watcher : watchers) {
+			if (watches(watcher, Math.min(oldStart, start), Math.max(oldEnd, end))) {
+				watcher.onSpanChanged(this, what, oldStart, oldEnd, start, end);
+			}
+		}
+	}
+
+	private void checkRange(String operation, int start, int end) {
+		if (end < start) {
+			throw new IndexOutOfBoundsException(operation + " " + start + " > " + end);
+		}
+		if (start < 0 || end > mLength) {
+			throw new IndexOutOfBoundsException(operation + " " + start + " ... " + end + " of " + mLength);
+		}
+	}
+}
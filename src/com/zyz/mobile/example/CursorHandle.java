@@ -0,0 +1,300 @@
+/*
+ Copyright (C) 2013 Ray Zhou
+
+ JadeRead is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ JadeRead is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with JadeRead.  If not, see <http://www.gnu.org/licenses/>
+
+ Author: Ray Zhou
+ Date: 2013 04 26
+
+ */
+package com.zyz.mobile.example;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+import android.view.Gravity;
+import android.view.MotionEvent;
+import android.view.View;
+import android.widget.PopupWindow;
+
+/**
+ * represents a single cursor
+ * <p/>
+ * The handles are pooled per window by {@link SelectionHandlePool} and lent to whichever view is
+ * showing a selection, which becomes the {@link Owner} of the handle.
+ */
+class CursorHandle extends View {
+
+	/**
+	 * the object the cursor is currently moving the selection for
+	 */
+	interface Owner {
+		/**
+		 * the user starts dragging the cursor
+		 */
+		void onDragStarts(CursorHandle handle);
+
+		/**
+		 * the cursor is being dragged
+		 *
+		 * @param handle the cursor
+		 * @param x      the x coordinate the cursor is pointing to on the screen (raw)
+		 * @param y      the y coordinate the cursor is pointing to on the screen (raw)
+		 * @param oldx   the previous x position the cursor pointed to
+		 * @param oldy   the previous y position the cursor pointed to
+		 */
+		void onDragMoved(CursorHandle handle, int x, int y, int oldx, int oldy);
+
+		/**
+		 * the user released the cursor
+		 */
+		void onDragEnds(CursorHandle handle);
+
+		/**
+		 * the handles have been lent to another owner, the selection should hide
+		 */
+		void onHandlesRevoked();
+	}
+
+	/**
+	 * the {@link PopupWindow} containing the cursor drawable
+	 */
+	private final PopupWindow mContainer;
+
+	/**
+	 * the drawble of the cursor, shared by the handles of the pool
+	 */
+	private final Drawable mDrawable;
+
+	/**
+	 * whether the user is dragging the cursor
+	 */
+	private boolean mIsDragging;
+
+	/**
+	 * the owner that's controlling the cursor
+	 */
+	private Owner mOwner;
+
+	/**
+	 * the height of the cursor
+	 */
+	private int mHeight;
+
+	/**
+	 * the width of the cursor
+	 */
+	private int mWidth;
+
+	/**
+	 * the x coordinate of the "pointer" of the cursor
+	 */
+	private int mHotspotX;
+
+	/**
+	 * the y coordinate of the "pointer" of the cursor which is usually the top, so it's zero.
+	 */
+	private int mHotspotY;
+
+
+	/**
+	 * Adjustment to add to the Raw x, y coordinate of the touch position to get the location of where
+	 * the cursor is pointing to
+	 */
+	private int mAdjustX;
+	private int mAdjustY;
+
+	private int mOldX;
+	private int mOldY;
+
+	public CursorHandle(Context context, Drawable drawable) {
+		super(context);
+
+		mDrawable = drawable;
+
+		/* My Note
+		 At first I tried using mContainer = new PopupWindow(SelectableTextView.this.getContext())
+		 and mContainer.setContentView(this) in the show() method AND FAILED to draw the
+		 PopupWindow properly (e.g. PopupWindow can't contain the whole drawable, background
+		 of the PopupWindow is not transparent. I think it's because calling
+		 new PopupWindow(context) uses the internal's default style which messes up
+		 */
+		mContainer = new PopupWindow(this);
+		// mContainer.setSplitTouchEnabled(true);
+		mContainer.setClippingEnabled(false);
+
+		/* My Note
+		 getIntrinsicWidth() returns the width of the drawable after it has been
+		 scaled to the current device's density
+		 e.g. if the drawable is a 15 x 20 image and we load the image on a Nexus 4 (which
+		 has a density of 2.0), getIntrinsicWidth() shall return 15 * 2 = 30
+		 */
+		mHeight = mDrawable.getIntrinsicHeight();
+		mWidth = mDrawable.getIntrinsicWidth();
+
+		// the PopupWindow has an initial dimension of (0, 0)
+		// must set the width/height of the popupwindow in order for it to be drawn
+		mContainer.setWidth(mWidth);
+		mContainer.setHeight(mHeight);
+
+		// this is the location of where the pointer is relative to the cursor itself
+		// if the left and right cursor are different, mHotspotX will need to be calculated
+		// differently for each cursor. Currently, I'm using the same left and right cursor
+		mHotspotX = mWidth / 2;
+		mHotspotY = 0;
+
+		invalidate();
+	}
+
+	void setOwner(Owner owner) {
+		mOwner = owner;
+	}
+
+	Owner getOwner() {
+		return mOwner;
+	}
+
+	@Override
+	protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+		setMeasuredDimension(mWidth, mHeight);
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		mDrawable.setBounds(0, 0, mWidth, mHeight);
+		mDrawable.draw(canvas);
+	}
+
+	@Override
+	public boolean /*CursorHandle::*/onTouchEvent(MotionEvent event) {
+
+		if (mOwner == null) {
+			return true;
+		}
+
+		int rawX = (int) event.getRawX();
+		int rawY = (int) event.getRawY();
+
+		switch (event.getAction()) {
+			case MotionEvent.ACTION_DOWN: {
+				// calculate distance from the (x,y) of the finger to where the cursor
+				// points to
+				mAdjustX = mHotspotX - (int) event.getX();
+				mAdjustY = mHotspotY - (int) event.getY();
+				mOldX = mAdjustX + rawX;
+				mOldY = mAdjustY + rawY;
+
+				mIsDragging = true;
+				mOwner.onDragStarts(this);
+				break;
+			}
+			case MotionEvent.ACTION_UP:
+			case MotionEvent.ACTION_CANCEL: {
+				mIsDragging = false;
+				mOwner.onDragEnds(this);
+				break;
+			}
+			case MotionEvent.ACTION_MOVE: {
+				// calculate the raw (x, y) the cursor is POINTING TO
+				int x = mAdjustX + rawX;
+				int y = mAdjustY + rawY;
+
+				mOwner.onDragMoved(this, x, y, mOldX, mOldY);
+
+				mOldX = x;
+				mOldY = y;
+				break;
+			}
+		}
+		return true; // consume the event
+	}
+
+
+	public boolean isShowing() {
+		return mContainer.isShowing();
+	}
+
+	public boolean isDragging() {
+		return mIsDragging;
+	}
+
+	/**
+	 * Show the cursor pointing to the specified point.
+	 *
+	 * @param anchor the view the point is relative to
+	 * @param x      the x coordinate of the point relative to the anchor
+	 * @param y      the y coordinate of the point relative to the anchor
+	 * @param coords a temporary array of length 2
+	 */
+	public void show(View anchor, int x, int y, int[] coords) {
+		anchor.getLocationInWindow(coords);
+
+		coords[0] += x - mHotspotX;
+		coords[1] += y - mHotspotY;
+		mContainer.showAtLocation(anchor, Gravity.NO_GRAVITY, coords[0], coords[1]);
+	}
+
+	/**
+	 * Show the cursor pointing to the specified point, or move it there if it's already showing.
+	 *
+	 * @param anchor the view the cursor belongs to
+	 * @param x      the x coordinate on the screen
+	 * @param y      the y coordinate on the screen
+	 */
+	public void showAt(View anchor, int x, int y) {
+		if (isShowing()) {
+			pointTo(x, y);
+		}
+		else {
+			mContainer.showAtLocation(anchor, Gravity.NO_GRAVITY, x - mHotspotX, y - mHotspotY);
+		}
+	}
+
+	/**
+	 * move the cursor to point the (x,y) location on the screen.
+	 *
+	 * @param x the x coordinate on the screen
+	 * @param y the y coordinate on the screen
+	 */
+	public void pointTo(int x, int y) {
+		if (isShowing()) {
+			mContainer.update(x - mHotspotX, y - mHotspotY, -1, -1);
+		}
+	}
+
+
+	/**
+	 * hide this cursor
+	 */
+	public void hide() {
+		mIsDragging = false;
+		mContainer.dismiss();
+	}
+
+	@SuppressWarnings("unused")
+	public void dismiss() {
+		mContainer.dismiss();
+		onDetached();
+	}
+
+	private void onDetached() {
+		// hide action windows
+
+		// This is not used but kept for future reference.
+		// Since no action windows is associate with the cursor, nothing is removed.
+		// I've made the action window a task of the View using SelectableTextView instead of
+		// embedding it in here.
+	}
+
+}
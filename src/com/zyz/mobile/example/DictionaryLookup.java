@@ -0,0 +1,119 @@
+/*
+ Copyright (C) 2013 Ray Zhou
+
+ JadeRead is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ JadeRead is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with JadeRead.  If not, see <http://www.gnu.org/licenses/>
+
+ */
+package com.zyz.mobile.example;
+
+import android.view.View;
+
+/**
+ * Looks up the headword at the start of the selection whenever the cursors are shown or moved.
+ * <p/>
+ * Set it as the OnCursorStateChangedListener of the view (pass the previous listener as the
+ * delegate to keep it working). The lookup runs on the UI thread right in the cursor callbacks: it
+ * is a walk down the memory-mapped trie with no allocation, so it keeps up with the drag.
+ */
+public class DictionaryLookup implements SelectableTextView.OnCursorStateChangedListener {
+
+	/**
+	 * the longest headword looked for
+	 */
+	private static final int MAX_WORD_LENGTH = 16;
+
+	public interface OnLookupListener {
+		/**
+		 * What to do when the headword at the start of the selection changes
+		 *
+		 * @param v      the view
+		 * @param start  the offset of the headword
+		 * @param length the length of the longest headword at start, 0 if there is none
+		 * @param value  the value of the headword, -1 if there is none
+		 */
+		public void onLookup(SelectableTextView v, int start, int length, int value);
+	}
+
+	private final DictionaryTrie mTrie;
+	private final OnLookupListener mOnLookupListener;
+	private final SelectableTextView.OnCursorStateChangedListener mDelegate;
+
+	private final int[] mValue = new int[1];
+	private int mLastStart = -1;
+	private int mLastLength = -1;
+
+	/**
+	 * @param trie             the dictionary
+	 * @param onLookupListener notified of the headword under the selection
+	 * @param delegate         the listener to forward the cursor events to, can be null
+	 */
+	public DictionaryLookup(DictionaryTrie trie, OnLookupListener onLookupListener,
+	                        SelectableTextView.OnCursorStateChangedListener delegate) {
+		mTrie = trie;
+		mOnLookupListener = onLookupListener;
+		mDelegate = delegate;
+	}
+
+	@Override
+	public void onHideCursors(View v) {
+		mLastStart = -1;
+		mLastLength = -1;
+		if (mDelegate != null) {
+			mDelegate.onHideCursors(v);
+		}
+	}
+
+	@Override
+	public void onShowCursors(View v) {
+		lookup((SelectableTextView) v);
+		if (mDelegate != null) {
+			mDelegate.onShowCursors(v);
+		}
+	}
+
+	@Override
+	public void onDragStarts(View v) {
+		if (mDelegate != null) {
+			mDelegate.onDragStarts(v);
+		}
+	}
+
+	@Override
+	public void onPositionChanged(View v, int x, int y, int oldx, int oldy) {
+		lookup((SelectableTextView) v);
+		if (mDelegate != null) {
+			mDelegate.onPositionChanged(v, x, y, oldx, oldy);
+		}
+	}
+
+	/**
+	 * look up the headword at the start of the selection, notify only if it changed
+	 */
+	private void lookup(SelectableTextView view) {
+		SelectionInfo selection = view.getCursorSelection();
+		CharSequence text = view.getText();
+		int start = Math.min(selection.getStart(), selection.getEnd());
+		if (start < 0 || start >= text.length()) {
+			return;
+		}
+
+		int end = Math.min(text.length(), start + MAX_WORD_LENGTH);
+		int length = mTrie.longestPrefix(text, start, end, mValue);
+		if (start != mLastStart || length != mLastLength) {
+			mLastStart = start;
+			mLastLength = length;
+			mOnLookupListener.onLookup(view, start, length, length > 0 ? mValue[0] : -1);
+		}
+	}
+}
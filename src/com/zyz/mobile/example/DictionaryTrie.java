@@ -0,0 +1,361 @@
+/*
+ Copyright (C) 2013 Ray Zhou
+
+ JadeRead is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ JadeRead is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with JadeRead.  If not, see <http://www.gnu.org/licenses/>
+
+ */
+package com.zyz.mobile.example;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A read only dictionary of headwords stored as a double-array trie in a memory-mapped file.
+ * <p/>
+ * The trie is never loaded on the heap: lookups read the base and check arrays straight from the
+ * mapped file, one transition per character, and return their results through primitive arrays
+ * supplied by the caller. A lookup allocates nothing and costs O(length of the match), so it can run
+ * on every move of a cursor.
+ * <p/>
+ * File format (big endian): the magic number, the version, the number of slots N, then base[N] and
+ * check[N]. The transition from state s on character c goes to t = base[s] + c + 1 if check[t] ==
+ * s. A word ends at s if the transition on the code 0 exists, the base of that slot holding -(value
+ * + 1). Free slots have a check of -1. Use {@link Builder} to create the file.
+ */
+public class DictionaryTrie {
+
+	private static final int MAGIC = 0x44415452; // "DATR"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 12;
+
+	private final IntBuffer mBase;
+	private final IntBuffer mCheck;
+	private final int mSize;
+
+	private DictionaryTrie(ByteBuffer buffer) throws IOException {
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IOException("not a dictionary trie");
+		}
+		mSize = buffer.getInt(8);
+		if (buffer.capacity() < HEADER_SIZE + mSize * 8L) {
+			throw new IOException("truncated dictionary trie");
+		}
+
+		ByteBuffer base = buffer.duplicate();
+		base.position(HEADER_SIZE);
+		base.limit(HEADER_SIZE + mSize * 4);
+		mBase = base.slice().asIntBuffer();
+
+		ByteBuffer check = buffer.duplicate();
+		check.position(HEADER_SIZE + mSize * 4);
+		check.limit(HEADER_SIZE + mSize * 8);
+		mCheck = check.slice().asIntBuffer();
+	}
+
+	/**
+	 * map the dictionary file in memory
+	 *
+	 * @param file the file written by {@link Builder#write(File)}
+	 * @return the dictionary
+	 * @throws IOException if the file can't be read or is not a dictionary trie
+	 */
+	public static DictionaryTrie open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			// the mapping stays valid after the channel is closed
+			return new DictionaryTrie(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Find the longest headword that is a prefix of text[start, end).
+	 *
+	 * @param text  the text
+	 * @param start the offset to look up from
+	 * @param end   the end of the text to consider (exclusive)
+	 * @param value if not null, receives the value of the headword in value[0]
+	 * @return the length of the longest headword, 0 if there is none
+	 */
+	public int longestPrefix(CharSequence text, int start, int end, int[] value) {
+		int longest = 0;
+		int state = 0;
+		int i = start;
+		while (true) {
+			int terminal = transition(state, 0);
+			if (terminal >= 0) {
+				longest = i - start;
+				if (value != null) {
+					value[0] = -mBase.get(terminal) - 1;
+				}
+			}
+			if (i >= end) {
+				break;
+			}
+			state = transition(state, text.charAt(i) + 1);
+			if (state < 0) {
+				break;
+			}
+			i++;
+		}
+		return longest;
+	}
+
+	/**
+	 * Find all the headwords that are a prefix of text[start, end), shortest first.
+	 *
+	 * @param text    the text
+	 * @param start   the offset to look up from
+	 * @param end     the end of the text to consider (exclusive)
+	 * @param lengths receives the length of each headword found
+	 * @param values  if not null, receives the value of each headword found
+	 * @return the number of headwords found, at most lengths.length
+	 */
+	public int allPrefixes(CharSequence text, int start, int end, int[] lengths, int[] values) {
+		int count = 0;
+		int state = 0;
+		int i = start;
+		while (count < lengths.length) {
+			int terminal = transition(state, 0);
+			if (terminal >= 0) {
+				lengths[count] = i - start;
+				if (values != null) {
+					values[count] = -mBase.get(terminal) - 1;
+				}
+				count++;
+			}
+			if (i >= end) {
+				break;
+			}
+			state = transition(state, text.charAt(i) + 1);
+			if (state < 0) {
+				break;
+			}
+			i++;
+		}
+		return count;
+	}
+
+	/**
+	 * @param word the word
+	 * @return the value of the headword, -1 if the word is not in the dictionary
+	 */
+	public int get(CharSequence word) {
+		int state = 0;
+		for (int i = 0; i < word.length() && state >= 0; i++) {
+			state = transition(state, word.charAt(i) + 1);
+		}
+		int terminal = state < 0 ? -1 : transition(state, 0);
+		return terminal < 0 ? -1 : -mBase.get(terminal) - 1;
+	}
+
+	/**
+	 * @return the next state, -1 if there is no transition on the code
+	 */
+	private int transition(int state, int code) {
+		int base = mBase.get(state);
+		if (base < 0) {
+			return -1;
+		}
+		int next = base + code;
+		if (next >= mSize || mCheck.get(next) != state || next == 0) {
+			return -1;
+		}
+		return next;
+	}
+
+	/**
+	 * Builds the dictionary file from a list of headwords. Meant to run offline or in the
+	 * background, it keeps everything on the heap while building.
+	 */
+	public static class Builder {
+
+		private final ArrayList<String> mWords = new ArrayList<String>();
+		private final ArrayList<Integer> mValues = new ArrayList<Integer>();
+
+		private int[] mBase;
+		private int[] mCheck;
+		private int mSize;
+		private int mNextFree;
+
+		/**
+		 * add a headword. If a word is added twice, the first value is kept.
+		 *
+		 * @param word  the headword
+		 * @param value a non negative value, e.g. the index of the entry in the definitions
+		 */
+		public void add(String word, int value) {
+			if (value < 0) {
+				throw new IllegalArgumentException("value must not be negative");
+			}
+			mWords.add(word);
+			mValues.add(value);
+		}
+
+		/**
+		 * build the trie and write it to the specified file
+		 *
+		 * @param file the file to write
+		 * @throws IOException if the file can't be written
+		 */
+		public void write(File file) throws IOException {
+			build();
+
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(mSize);
+				for (int i = 0; i < mSize; i++) {
+					out.writeInt(mBase[i]);
+				}
+				for (int i = 0; i < mSize; i++) {
+					out.writeInt(mCheck[i]);
+				}
+			}
+			finally {
+				out.close();
+			}
+		}
+
+		private void build() {
+			Integer[] order = new Integer[mWords.size()];
+			for (int i = 0; i < order.length; i++) {
+				order[i] = i;
+			}
+			// a word sorts before the words it is a prefix of, matching the terminal code 0
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					return mWords.get(a).compareTo(mWords.get(b));
+				}
+			});
+
+			ArrayList<String> words = new ArrayList<String>(order.length);
+			ArrayList<Integer> values = new ArrayList<Integer>(order.length);
+			for (Integer index : order) {
+				String word = mWords.get(index);
+				if (words.isEmpty() || !words.get(words.size() - 1).equals(word)) {
+					words.add(word);
+					values.add(mValues.get(index));
+				}
+			}
+
+			mBase = new int[1024];
+			mCheck = new int[1024];
+			Arrays.fill(mCheck, -1);
+			mCheck[0] = 0;
+			mSize = 1;
+			mNextFree = 1;
+
+			if (words.isEmpty()) {
+				mBase[0] = -1;
+			}
+			else {
+				insert(0, 0, words, values, 0, words.size());
+			}
+		}
+
+		/**
+		 * place the children of state, made of the words [from, to) sharing the first depth
+		 * characters
+		 */
+		private void insert(int state, int depth, ArrayList<String> words, ArrayList<Integer> values,
+		                    int from, int to) {
+			// the distinct codes at this depth, with the range of words under each
+			ArrayList<int[]> children = new ArrayList<int[]>();
+			for (int i = from; i < to; i++) {
+				String word = words.get(i);
+				int code = depth < word.length() ? word.charAt(depth) + 1 : 0;
+				if (children.isEmpty() || children.get(children.size() - 1)[0] != code) {
+					children.add(new int[]{code, i, i + 1});
+				}
+				else {
+					children.get(children.size() - 1)[2] = i + 1;
+				}
+			}
+
+			int base = findBase(children);
+			mBase[state] = base;
+			for (int[] child : children) {
+				mCheck[base + child[0]] = state;
+				mSize = Math.max(mSize, base + child[0] + 1);
+			}
+			// skip the slots that are taken from now on
+			while (mNextFree < mCheck.length && mCheck[mNextFree] >= 0) {
+				mNextFree++;
+			}
+
+			for (int[] child : children) {
+				int next = base + child[0];
+				if (child[0] == 0) {
+					mBase[next] = -values.get(child[1]) - 1;
+				}
+				else {
+					insert(next, depth + 1, words, values, child[1], child[2]);
+				}
+			}
+		}
+
+		/**
+		 * find a base such that the slots of all the children are free
+		 */
+		private int findBase(ArrayList<int[]> children) {
+			int first = children.get(0)[0];
+			int position = Math.max(mNextFree, first + 1);
+			while (true) {
+				ensureCapacity(position + 1);
+				if (mCheck[position] < 0) {
+					int base = position - first;
+					boolean free = true;
+					for (int[] child : children) {
+						int slot = base + child[0];
+						ensureCapacity(slot + 1);
+						if (slot == 0 || mCheck[slot] >= 0) {
+							free = false;
+							break;
+						}
+					}
+					if (free) {
+						return base;
+					}
+				}
+				position++;
+			}
+		}
+
+		private void ensureCapacity(int size) {
+			if (size > mCheck.length) {
+				int capacity = Math.max(size, mCheck.length * 2);
+				int old = mCheck.length;
+				mBase = Arrays.copyOf(mBase, capacity);
+				mCheck = Arrays.copyOf(mCheck, capacity);
+				Arrays.fill(mCheck, old, capacity, -1);
+			}
+		}
+	}
+}
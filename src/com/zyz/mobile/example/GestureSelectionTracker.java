@@ -0,0 +1,292 @@
+/*
+ Copyright (C) 2013 Ray Zhou
+
+ JadeRead is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ JadeRead is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with JadeRead.  If not, see <http://www.gnu.org/licenses/>
+
+ */
+package com.zyz.mobile.example;
+
+import android.text.Layout;
+
+import java.util.Arrays;
+
+/**
+ * Turns a freeform gesture path (a swipe across the text or a lasso around it) into offset ranges.
+ * <p/>
+ * Instead of hit testing every point, the path is intersected with the line bands of the layout:
+ * for each line the tracker only remembers the horizontal extent the path covered inside that
+ * line. A segment crossing several lines is interpolated at each band boundary. The offsets of a
+ * line are only recomputed when its extent grows, so a point costs O(lines crossed) no matter how
+ * long the path is.
+ * <p/>
+ * An open path (swipe) gives one range per line, merged when they are contiguous in the text. A
+ * closed path (lasso) gives a single range in reading order, from the first touched line to the
+ * last.
+ */
+public class GestureSelectionTracker {
+
+	private Layout mLayout;
+	private final LayoutLineMetrics mMetrics = new LayoutLineMetrics();
+
+	/**
+	 * the horizontal extent covered on each line, valid between mFirstLine and mLastLine
+	 */
+	private float[] mMinX = new float[0];
+	private float[] mMaxX = new float[0];
+
+	/**
+	 * the offsets of the extent on each line, only recomputed for lines marked dirty
+	 */
+	private int[] mLineStart = new int[0];
+	private int[] mLineEnd = new int[0];
+	private boolean[] mDirty = new boolean[0];
+
+	/**
+	 * the ranges as pairs of (start, end) offsets, end exclusive
+	 */
+	private int[] mRanges = new int[0];
+	private int mRangeCount;
+	private boolean mRangesValid;
+
+	private int mFirstLine;
+	private int mLastLine;
+
+	private float mStartX;
+	private float mStartY;
+	private float mLastX;
+	private float mLastY;
+	private int mLine;
+	private boolean mHasPoint;
+	private boolean mClosed;
+
+	/**
+	 * the maximum distance between the first and the last point for the path to count as closed
+	 */
+	private float mCloseTolerance;
+
+	public GestureSelectionTracker(float closeTolerance) {
+		mCloseTolerance = closeTolerance;
+	}
+
+	/**
+	 * start a new gesture on the given layout. Only allocates when the layout has more lines than
+	 * any layout used before.
+	 *
+	 * @param layout the layout the gesture is drawn on
+	 */
+	public void reset(Layout layout) {
+		mLayout = layout;
+		mMetrics.setLayout(layout);
+		// the text may have been edited since the last gesture on the same layout
+		mMetrics.clearCache();
+		mHasPoint = false;
+		mClosed = false;
+		mRangeCount = 0;
+		mRangesValid = true;
+		mFirstLine = 0;
+		mLastLine = -1;
+
+		ensureLines(layout == null ? 0 : layout.getLineCount());
+	}
+
+	/**
+	 * grow the arrays of the lines to hold the specified number of lines, keeping their content. A
+	 * DynamicLayout keeps adding lines while the text streams in, even during a gesture.
+	 */
+	private void ensureLines(int lines) {
+		if (mMinX.length < lines) {
+			int capacity = Math.max(lines, mMinX.length * 2);
+			mMinX = Arrays.copyOf(mMinX, capacity);
+			mMaxX = Arrays.copyOf(mMaxX, capacity);
+			mLineStart = Arrays.copyOf(mLineStart, capacity);
+			mLineEnd = Arrays.copyOf(mLineEnd, capacity);
+			mDirty = Arrays.copyOf(mDirty, capacity);
+			mRanges = Arrays.copyOf(mRanges, capacity * 2);
+		}
+	}
+
+	/**
+	 * add the next point of the path
+	 *
+	 * @param x x coordinate relative to the TextView
+	 * @param y y coordinate relative to the TextView
+	 */
+	public void addPoint(float x, float y) {
+		if (mLayout == null) {
+			return;
+		}
+
+		int line = SelectionGeometry.getLineForVertical(mMetrics, (int) y, mHasPoint ? mLine : -1);
+
+		ensureLines(line + 1);
+		if (!mHasPoint) {
+			mStartX = x;
+			mStartY = y;
+			mFirstLine = mLastLine = line;
+			mMinX[line] = mMaxX[line] = x;
+			mDirty[line] = true;
+		}
+		else if (line != mLine) {
+			// walk the band boundaries between the two points and extend each line crossed by the
+			// x at which the segment crosses its top or bottom
+			int step = line > mLine ? 1 : -1;
+			for (int l = mLine; l != line; l += step) {
+				float boundary = step > 0 ? mLayout.getLineBottom(l) : mLayout.getLineTop(l);
+				float bx = y == mLastY ? x : mLastX + (x - mLastX) * (boundary - mLastY) / (y - mLastY);
+				extend(l, bx);
+				extend(l + step, bx);
+			}
+		}
+		extend(line, x);
+
+		mLastX = x;
+		mLastY = y;
+		mLine = line;
+		mHasPoint = true;
+
+		// closing or reopening the path changes the ranges even if no extent grew
+		if (mClosed != isClosed()) {
+			mClosed = !mClosed;
+			mRangesValid = false;
+		}
+	}
+
+	/**
+	 * @return true if the path ends close to where it started
+	 */
+	public boolean isClosed() {
+		if (!mHasPoint) {
+			return false;
+		}
+		float dx = mLastX - mStartX;
+		float dy = mLastY - mStartY;
+		return mLastLine > mFirstLine && dx * dx + dy * dy <= mCloseTolerance * mCloseTolerance;
+	}
+
+	/**
+	 * @return the number of ranges covered by the path so far
+	 */
+	public int getRangeCount() {
+		computeRanges();
+		return mRangeCount;
+	}
+
+	public int getRangeStart(int index) {
+		computeRanges();
+		return mRanges[index * 2];
+	}
+
+	/**
+	 * @param index the index of the range
+	 * @return the end offset of the range (exclusive)
+	 */
+	public int getRangeEnd(int index) {
+		computeRanges();
+		return mRanges[index * 2 + 1];
+	}
+
+	private void extend(int line, float x) {
+		if (line < mFirstLine || line > mLastLine) {
+			// the path is continuous, so a new line is always adjacent to the touched ones
+			mFirstLine = Math.min(mFirstLine, line);
+			mLastLine = Math.max(mLastLine, line);
+			mMinX[line] = mMaxX[line] = x;
+			mDirty[line] = true;
+		}
+		else if (x < mMinX[line]) {
+			mMinX[line] = x;
+			mDirty[line] = true;
+		}
+		else if (x > mMaxX[line]) {
+			mMaxX[line] = x;
+			mDirty[line] = true;
+		}
+		else {
+			return;
+		}
+		mRangesValid = false;
+	}
+
+	/**
+	 * refresh the offsets of the dirty lines and rebuild the ranges
+	 */
+	private void computeRanges() {
+		if (mRangesValid) {
+			return;
+		}
+
+		for (int line = mFirstLine; line <= mLastLine; line++) {
+			if (mDirty[line]) {
+				mLineStart[line] = getOffset(line, mMinX[line], false);
+				mLineEnd[line] = getOffset(line, mMaxX[line], true);
+				mDirty[line] = false;
+			}
+		}
+
+		mRangeCount = 0;
+		if (mClosed) {
+			addRange(mLineStart[mFirstLine], mLineEnd[mLastLine]);
+		}
+		else {
+			for (int line = mFirstLine; line <= mLastLine; line++) {
+				int start = mLineStart[line];
+				int end = mLineEnd[line];
+
+				// merge with the previous line when the path runs through the line break
+				if (mRangeCount > 0 && start == mLayout.getLineStart(line) &&
+						  mRanges[mRangeCount * 2 - 1] >= start) {
+					mRanges[mRangeCount * 2 - 1] = Math.max(end, mRanges[mRangeCount * 2 - 1]);
+				}
+				else {
+					addRange(start, end);
+				}
+			}
+		}
+		mRangesValid = true;
+	}
+
+	private void addRange(int start, int end) {
+		if (end > start) {
+			mRanges[mRangeCount * 2] = start;
+			mRanges[mRangeCount * 2 + 1] = end;
+			mRangeCount++;
+		}
+	}
+
+	/**
+	 * the offset of x on the given line. Anything beyond either side of the line snaps to the
+	 * start/end of the line, so that a swipe past the margin covers the whole line. The start is on
+	 * the right of a right-to-left paragraph.
+	 */
+	private int getOffset(int line, float x, boolean isEnd) {
+		boolean rtl = mMetrics.getParagraphDirection(line) == LineMetrics.DIR_RIGHT_TO_LEFT;
+		if (x <= mMetrics.getLineLeft(line)) {
+			return rtl ? mLayout.getLineEnd(line) : mLayout.getLineStart(line);
+		}
+		if (x >= mMetrics.getLineRight(line)) {
+			return rtl ? mLayout.getLineStart(line) : mLayout.getLineEnd(line);
+		}
+		// include the character under x on either end, it follows the insertion point in the
+		// direction of the paragraph
+		int offset = mMetrics.getOffsetForHorizontal(line, x);
+		float horizontal = mMetrics.getPrimaryHorizontal(offset);
+		if (isEnd && offset < mLayout.getLineEnd(line) && (rtl ? horizontal > x : horizontal < x)) {
+			offset += 1;
+		}
+		else if (!isEnd && offset > mLayout.getLineStart(line) && (rtl ? horizontal < x : horizontal > x)) {
+			offset -= 1;
+		}
+		return offset;
+	}
+}
@@ -0,0 +1,329 @@
+/*
+ Copyright (C) 2013 Ray Zhou
+
+ JadeRead is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ JadeRead is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with JadeRead.  If not, see <http://www.gnu.org/licenses/>
+
+ */
+package com.zyz.mobile.example;
+
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.style.BackgroundColorSpan;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Merges a set of (possibly overlapping) highlights into a minimal list of disjoint runs.
+ * <p/>
+ * Each highlight is a {@link SelectionInfo} whose span is a {@link BackgroundColorSpan}. The span of
+ * the highlight itself is never attached to the text, only one span per run is. Overlapping
+ * highlights of the same color collapse into a single run, overlapping highlights of different
+ * colors are blended (source-over, in the order they were added).
+ * <p/>
+ * Adding or removing a highlight only recomputes the runs touching the range of that highlight, so
+ * the number of spans on the text tracks the number of distinct runs, not the number of highlights.
+ */
+public class HighlightCoalescer {
+
+	/**
+	 * a disjoint, colored range of the text
+	 */
+	public static class Run {
+		private int mStart;
+		private int mEnd;
+		private int mColor;
+		private BackgroundColorSpan mSpan;
+
+		public int getStart() {
+			return mStart;
+		}
+
+		public int getEnd() {
+			return mEnd;
+		}
+
+		public int getColor() {
+			return mColor;
+		}
+	}
+
+	/**
+	 * the highlights in the order they were added
+	 */
+	private final ArrayList<SelectionInfo> mHighlights = new ArrayList<SelectionInfo>();
+
+	/**
+	 * the coalesced runs, sorted by start offset and never overlapping
+	 */
+	private final ArrayList<Run> mRuns = new ArrayList<Run>();
+
+	/**
+	 * the text the runs are attached to
+	 */
+	private Spannable mSpannable;
+
+	public HighlightCoalescer(Spannable spannable) {
+		mSpannable = spannable;
+	}
+
+	public Spannable getSpannable() {
+		return mSpannable;
+	}
+
+	/**
+	 * add a highlight and update the runs it overlaps
+	 *
+	 * @param highlight the highlight, its span must be a {@link BackgroundColorSpan}
+	 */
+	public void add(SelectionInfo highlight) {
+		if (!(highlight.getSpan() instanceof BackgroundColorSpan) || mHighlights.contains(highlight)) {
+			return;
+		}
+		mHighlights.add(highlight);
+		update(getStart(highlight), getEnd(highlight));
+	}
+
+	/**
+	 * remove a highlight previously added and update the runs it overlapped
+	 *
+	 * @param highlight the highlight to remove
+	 * @return true if the highlight was removed, false if it was never added
+	 */
+	public boolean remove(SelectionInfo highlight) {
+		if (!mHighlights.remove(highlight)) {
+			return false;
+		}
+		update(getStart(highlight), getEnd(highlight));
+		return true;
+	}
+
+	/**
+	 * remove all the highlights and their runs from the text
+	 */
+	public void clear() {
+		for (Run run : mRuns) {
+			if (mSpannable != null) {
+				mSpannable.removeSpan(run.mSpan);
+			}
+		}
+		mRuns.clear();
+		mHighlights.clear();
+	}
+
+	public int getHighlightCount() {
+		return mHighlights.size();
+	}
+
+	public int getRunCount() {
+		return mRuns.size();
+	}
+
+	public Run getRun(int index) {
+		return mRuns.get(index);
+	}
+
+	/**
+	 * recompute the runs intersecting [start, end) and replace them on the text
+	 *
+	 * @param start the start of the changed range
+	 * @param end   the end of the changed range
+	 */
+	private void update(int start, int end) {
+
+		// widen the window to the runs it touches, so runs crossing the window get split correctly
+		// and new runs can merge with a same colored neighbour
+		int first = findFirstRunEndingAtOrAfter(start);
+		int last = first;
+		while (last < mRuns.size() && mRuns.get(last).mStart <= end) {
+			last++;
+		}
+		if (first < last) {
+			start = Math.min(start, mRuns.get(first).mStart);
+			end = Math.max(end, mRuns.get(last - 1).mEnd);
+		}
+
+		// collect the highlights overlapping the window, in the order they were added, and their
+		// boundaries
+		ArrayList<SelectionInfo> overlapping = new ArrayList<SelectionInfo>();
+		for (SelectionInfo highlight : mHighlights) {
+			if (getStart(highlight) < end && getEnd(highlight) > start) {
+				overlapping.add(highlight);
+			}
+		}
+		final int n = overlapping.size();
+
+		int count = 0;
+		int[] bounds = new int[n * 2 + 2];
+		bounds[count++] = start;
+		bounds[count++] = end;
+		// the overlapping highlights by start, packed with their index so the sort doesn't box
+		long[] byStart = new long[n];
+		for (int i = 0; i < n; i++) {
+			int s = getStart(overlapping.get(i));
+			int e = getEnd(overlapping.get(i));
+			if (s > start) bounds[count++] = s;
+			if (e < end) bounds[count++] = e;
+			byStart[i] = ((long) s << 32) | i;
+		}
+		Arrays.sort(bounds, 0, count);
+		Arrays.sort(byStart);
+
+		// the old runs are taken off the text, their spans are recycled when the color matches
+		ArrayList<Run> old = new ArrayList<Run>(mRuns.subList(first, last));
+		mRuns.subList(first, last).clear();
+		for (Run run : old) {
+			if (mSpannable != null) {
+				mSpannable.removeSpan(run.mSpan);
+			}
+		}
+
+		// sweep the segments, keeping the highlights covering the current one sorted in the order they
+		// were added, so only those are blended for each segment
+		int[] active = new int[n];
+		int activeCount = 0;
+		int next = 0;
+
+		ArrayList<Run> runs = new ArrayList<Run>();
+		Run current = null;
+		for (int i = 0; i + 1 < count; i++) {
+			int s = bounds[i];
+			int e = bounds[i + 1];
+			if (s == e) {
+				continue;
+			}
+
+			// no boundary lies inside the segment, so a highlight covers it if it starts at or before
+			// s and ends after s
+			while (next < n && (int) (byStart[next] >> 32) <= s) {
+				int index = (int) byStart[next++];
+				int at = activeCount;
+				while (at > 0 && active[at - 1] > index) {
+					active[at] = active[at - 1];
+					at--;
+				}
+				active[at] = index;
+				activeCount++;
+			}
+			int kept = 0;
+			for (int k = 0; k < activeCount; k++) {
+				if (getEnd(overlapping.get(active[k])) > s) {
+					active[kept++] = active[k];
+				}
+			}
+			activeCount = kept;
+
+			boolean covered = activeCount > 0;
+			int color = 0;
+			for (int k = 0; k < activeCount; k++) {
+				int c = getColor(overlapping.get(active[k]));
+				color = k > 0 ? blend(color, c) : c;
+			}
+
+			if (!covered) {
+				current = null;
+			}
+			else if (current != null && current.mEnd == s && current.mColor == color) {
+				current.mEnd = e;
+			}
+			else {
+				current = new Run();
+				current.mStart = s;
+				current.mEnd = e;
+				current.mColor = color;
+				runs.add(current);
+			}
+		}
+
+		for (Run run : runs) {
+			run.mSpan = recycleSpan(old, run.mColor);
+			if (mSpannable != null) {
+				mSpannable.setSpan(run.mSpan, run.mStart, run.mEnd, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+			}
+		}
+		mRuns.addAll(first, runs);
+	}
+
+	/**
+	 * binary search for the first run whose end is not before the specified offset
+	 */
+	private int findFirstRunEndingAtOrAfter(int offset) {
+		int low = 0;
+		int high = mRuns.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (mRuns.get(mid).mEnd < offset) {
+				low = mid + 1;
+			}
+			else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * take a span of the given color out of the discarded runs, or create one if there is none
+	 */
+	private static BackgroundColorSpan recycleSpan(ArrayList<Run> discarded, int color) {
+		for (int i = 0; i < discarded.size(); i++) {
+			if (discarded.get(i).mColor == color) {
+				return discarded.remove(i).mSpan;
+			}
+		}
+		return new BackgroundColorSpan(color);
+	}
+
+	private static int getStart(SelectionInfo highlight) {
+		return Math.min(highlight.getStart(), highlight.getEnd());
+	}
+
+	private static int getEnd(SelectionInfo highlight) {
+		return Math.max(highlight.getStart(), highlight.getEnd());
+	}
+
+	private static int getColor(SelectionInfo highlight) {
+		return ((BackgroundColorSpan) highlight.getSpan()).getBackgroundColor();
+	}
+
+	/**
+	 * composite {@code top} over {@code bottom}. Identical colors are returned unchanged so that
+	 * stacking the same highlight does not darken the text.
+	 *
+	 * @param bottom the ARGB color underneath
+	 * @param top    the ARGB color on top
+	 * @return the resulting ARGB color
+	 */
+	static int blend(int bottom, int top) {
+		if (bottom == top) {
+			return top;
+		}
+
+		int ta = top >>> 24;
+		int ba = bottom >>> 24;
+		int a = ta + ba * (255 - ta) / 255;
+		if (a == 0) {
+			return 0;
+		}
+
+		int r = blendChannel((top >> 16) & 0xFF, ta, (bottom >> 16) & 0xFF, ba, a);
+		int g = blendChannel((top >> 8) & 0xFF, ta, (bottom >> 8) & 0xFF, ba, a);
+		int b = blendChannel(top & 0xFF, ta, bottom & 0xFF, ba, a);
+		return (a << 24) | (r << 16) | (g << 8) | b;
+	}
+
+	private static int blendChannel(int top, int topAlpha, int bottom, int bottomAlpha, int alpha) {
+		return (top * topAlpha + bottom * bottomAlpha * (255 - topAlpha) / 255) / alpha;
+	}
+}
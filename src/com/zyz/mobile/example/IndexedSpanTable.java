@@ -0,0 +1,483 @@
+/*
+ Copyright (C) 2013 Ray Zhou
+
+ JadeRead is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ JadeRead is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with JadeRead.  If not, see <http://www.gnu.org/licenses/>
+
+ */
+package com.zyz.mobile.example;
+
+import android.text.Spanned;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * A span table for texts with many spans, e.g. the notes and the highlights of a whole book.
+ * <p/>
+ * The spans are grouped by class. Each group is sorted by start offset and carries an implicit
+ * binary tree of the maximum end offset under each node, so a query only walks down to the spans
+ * starting before its end and skips every subtree ending before its start: O(log n + k) for
+ * spans that don't nest deeply, instead of scanning every span.
+ * <p/>
+ * Rebuilding a group costs O(n log n), so the spans added or moved since the last rebuild wait in
+ * a small overlay scanned linearly. A span moved out of a group leaves a dead slot behind. The
+ * overlay is merged once it grows past a fraction of the indexed spans, so adding costs O(log n)
+ * amortized. The spans are found by identity in a hash map, so removing a span or setting it again
+ * (the selection, on every move of a cursor) costs O(1).
+ */
+class IndexedSpanTable extends SpanTable {
+
+	/**
+	 * the overlay is merged when it holds more than max(MIN_OVERLAY, indexed spans / 8) spans
+	 */
+	private static final int MIN_OVERLAY = 16;
+
+	private static final class Entry {
+		Object span;
+		int start;
+		int end;
+		int flags;
+
+		/**
+		 * the order the span was added in, getSpans returns the spans in that order
+		 */
+		int order;
+
+		/**
+		 * the group and the slot in the group of an indexed span, the slot is -1 for a span in the
+		 * overlay
+		 */
+		Group group;
+		int slot = -1;
+
+		/**
+		 * the position in the overlay, -1 for an indexed span
+		 */
+		int overlay = -1;
+	}
+
+	/**
+	 * the indexed spans of one class, sorted by start
+	 */
+	private static final class Group {
+		final Class<?> type;
+
+		Entry[] entries = new Entry[0];
+
+		/**
+		 * the starts of the slots when they were indexed. The start of a dead slot's entry may have
+		 * moved since, the binary searches must not look at it.
+		 */
+		int[] starts = new int[0];
+		int count;
+		int dead;
+
+		/**
+		 * maxEnd[node] is the largest end under the node of an implicit tree over the slots, the
+		 * leaves start at index leaves
+		 */
+		int[] maxEnd = new int[0];
+		int leaves;
+
+		Group(Class<?> type) {
+			this.type = type;
+		}
+	}
+
+	private static final Comparator<Entry> BY_START = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry a, Entry b) {
+			return a.start < b.start ? -1 : a.start == b.start ? 0 : 1;
+		}
+	};
+
+	private static final Comparator<Entry> BY_PRIORITY_AND_ORDER = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry a, Entry b) {
+			int pa = a.flags & Spanned.SPAN_PRIORITY;
+			int pb = b.flags & Spanned.SPAN_PRIORITY;
+			if (pa != pb) {
+				return pa > pb ? -1 : 1;
+			}
+			return a.order < b.order ? -1 : a.order == b.order ? 0 : 1;
+		}
+	};
+
+	private final IdentityHashMap<Object, Entry> mEntries = new IdentityHashMap<Object, Entry>();
+
+	private final HashMap<Class<?>, Group> mGroups = new HashMap<Class<?>, Group>();
+
+	/**
+	 * the groups whose class is assignable to a queried kind, cleared when a group is created
+	 */
+	private final HashMap<Class<?>, Group[]> mGroupsByKind = new HashMap<Class<?>, Group[]>();
+
+	private Entry[] mOverlay = new Entry[MIN_OVERLAY];
+	private int mOverlayCount;
+
+	private int mIndexedCount;
+	private int mNextOrder;
+
+	@Override
+	SpanTable newTable() {
+		return new IndexedSpanTable();
+	}
+
+	@Override
+	boolean contains(Object what) {
+		return mEntries.containsKey(what);
+	}
+
+	@Override
+	void add(Object what, int start, int end, int flags) {
+		Entry entry = new Entry();
+		entry.span = what;
+		entry.start = start;
+		entry.end = end;
+		entry.flags = flags;
+		entry.order = mNextOrder++;
+		mEntries.put(what, entry);
+		addToOverlay(entry);
+	}
+
+	@Override
+	void update(Object what, int start, int end, int flags) {
+		Entry entry = mEntries.get(what);
+		boolean indexed = entry.overlay < 0;
+		if (indexed) {
+			// the slot would be out of order, leave it dead and move the span to the overlay
+			killSlot(entry);
+		}
+		entry.start = start;
+		entry.end = end;
+		entry.flags = flags;
+		if (indexed) {
+			addToOverlay(entry);
+		}
+	}
+
+	@Override
+	void remove(Object what) {
+		Entry entry = mEntries.remove(what);
+		if (entry == null) {
+			return;
+		}
+		if (entry.overlay >= 0) {
+			// swap with the last one, the overlay is unordered
+			Entry last = mOverlay[--mOverlayCount];
+			mOverlay[entry.overlay] = last;
+			last.overlay = entry.overlay;
+			mOverlay[mOverlayCount] = null;
+			entry.overlay = -1;
+		}
+		else {
+			killSlot(entry);
+		}
+	}
+
+	@Override
+	int getStart(Object what) {
+		Entry entry = mEntries.get(what);
+		return entry == null ? -1 : entry.start;
+	}
+
+	@Override
+	int getEnd(Object what) {
+		Entry entry = mEntries.get(what);
+		return entry == null ? -1 : entry.end;
+	}
+
+	@Override
+	int getFlags(Object what) {
+		Entry entry = mEntries.get(what);
+		return entry == null ? 0 : entry.flags;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	<T> T[] getSpans(int queryStart, int queryEnd, Class<T> kind) {
+		if (kind == null) {
+			kind = (Class<T>) Object.class;
+		}
+
+		// a list per query, getSpans may be reentered from a span callback or called off the UI
+		// thread (e.g. by SelectionExporter)
+		final ArrayList<Entry> found = new ArrayList<Entry>();
+
+		for (Group group : getGroups(kind)) {
+			int limit = upperBound(group, queryEnd);
+			if (limit > 0) {
+				collect(group, 1, 0, group.leaves, limit, queryStart, queryEnd, found);
+			}
+		}
+		for (int i = 0; i < mOverlayCount; i++) {
+			Entry entry = mOverlay[i];
+			if (kind.isInstance(entry.span) && intersects(entry.start, entry.end, queryStart, queryEnd)) {
+				found.add(entry);
+			}
+		}
+
+		// same order as the linear table: priority, then the order the spans were added in
+		if (found.size() > 1) {
+			Collections.sort(found, BY_PRIORITY_AND_ORDER);
+		}
+
+		T[] result = (T[]) Array.newInstance(kind, found.size());
+		for (int i = 0; i < result.length; i++) {
+			result[i] = (T) found.get(i).span;
+		}
+		return result;
+	}
+
+	@Override
+	int nextSpanTransition(int start, int limit, Class kind) {
+		if (kind == null) {
+			kind = Object.class;
+		}
+
+		for (Group group : getGroups(kind)) {
+			// the first start after start, if any, comes right after the spans starting at or before it
+			int next = upperBound(group, start);
+			for (int i = next; i < group.count; i++) {
+				if (isLive(group, i)) {
+					limit = Math.min(limit, group.entries[i].start);
+					break;
+				}
+			}
+			// an end before limit belongs to a span starting before limit and ending after start
+			int candidates = lowerBound(group, limit);
+			if (candidates > 0) {
+				limit = nextEnd(group, 1, 0, group.leaves, candidates, start, limit);
+			}
+		}
+		for (int i = 0; i < mOverlayCount; i++) {
+			Entry entry = mOverlay[i];
+			if (!kind.isInstance(entry.span)) {
+				continue;
+			}
+			if (entry.start > start && entry.start < limit) {
+				limit = entry.start;
+			}
+			if (entry.end > start && entry.end < limit) {
+				limit = entry.end;
+			}
+		}
+		return limit;
+	}
+
+	private void addToOverlay(Entry entry) {
+		if (mOverlayCount == mOverlay.length) {
+			mOverlay = Arrays.copyOf(mOverlay, mOverlayCount * 2);
+		}
+		entry.overlay = mOverlayCount;
+		mOverlay[mOverlayCount++] = entry;
+
+		if (mOverlayCount > Math.max(MIN_OVERLAY, mIndexedCount >> 3)) {
+			mergeOverlay();
+		}
+	}
+
+	private void killSlot(Entry entry) {
+		Group group = entry.group;
+		entry.group = null;
+		entry.slot = -1;
+		group.dead++;
+		mIndexedCount--;
+
+		// don't let a group fill up with dead slots
+		if (group.dead > MIN_OVERLAY && group.dead > group.count / 2) {
+			rebuild(group, null);
+		}
+	}
+
+	/**
+	 * move the spans of the overlay to their groups and rebuild the groups that got new spans
+	 */
+	private void mergeOverlay() {
+		HashMap<Group, ArrayList<Entry>> added = new HashMap<Group, ArrayList<Entry>>();
+		for (int i = 0; i < mOverlayCount; i++) {
+			Entry entry = mOverlay[i];
+			mOverlay[i] = null;
+			entry.overlay = -1;
+
+			Group group = getGroup(entry.span.getClass());
+			ArrayList<Entry> entries = added.get(group);
+			if (entries == null) {
+				entries = new ArrayList<Entry>();
+				added.put(group, entries);
+			}
+			entries.add(entry);
+		}
+		mOverlayCount = 0;
+
+		for (Group group : added.keySet()) {
+			rebuild(group, added.get(group));
+		}
+	}
+
+	/**
+	 * drop the dead slots of the group, add the specified entries, sort and rebuild the tree
+	 */
+	private void rebuild(Group group, ArrayList<Entry> added) {
+		int size = group.count - group.dead + (added == null ? 0 : added.size());
+		Entry[] entries = new Entry[size];
+		int count = 0;
+		for (int i = 0; i < group.count; i++) {
+			if (isLive(group, i)) {
+				entries[count++] = group.entries[i];
+			}
+		}
+		if (added != null) {
+			for (Entry entry : added) {
+				entries[count++] = entry;
+			}
+			mIndexedCount += added.size();
+		}
+		Arrays.sort(entries, 0, count, BY_START);
+
+		int leaves = 1;
+		while (leaves < count) {
+			leaves <<= 1;
+		}
+		int[] starts = new int[count];
+		int[] maxEnd = new int[leaves * 2];
+		Arrays.fill(maxEnd, Integer.MIN_VALUE);
+		for (int i = 0; i < count; i++) {
+			entries[i].group = group;
+			entries[i].slot = i;
+			starts[i] = entries[i].start;
+			maxEnd[leaves + i] = entries[i].end;
+		}
+		for (int node = leaves - 1; node > 0; node--) {
+			maxEnd[node] = Math.max(maxEnd[node * 2], maxEnd[node * 2 + 1]);
+		}
+
+		group.entries = entries;
+		group.starts = starts;
+		group.count = count;
+		group.dead = 0;
+		group.maxEnd = maxEnd;
+		group.leaves = leaves;
+	}
+
+	/**
+	 * Collect the live spans of the slots [lo, hi) under the node that are before limit and
+	 * intersect the query. The ends of dead slots are still in the tree, they only make the walk
+	 * look at a few more nodes.
+	 */
+	private void collect(Group group, int node, int lo, int hi, int limit, int queryStart, int queryEnd,
+	                     ArrayList<Entry> found) {
+		if (lo >= limit || group.maxEnd[node] < queryStart) {
+			return;
+		}
+		if (hi - lo == 1) {
+			Entry entry = group.entries[lo];
+			if (isLive(group, lo) && intersects(entry.start, entry.end, queryStart, queryEnd)) {
+				found.add(entry);
+			}
+			return;
+		}
+		int mid = (lo + hi) >>> 1;
+		collect(group, node * 2, lo, mid, limit, queryStart, queryEnd, found);
+		collect(group, node * 2 + 1, mid, hi, limit, queryStart, queryEnd, found);
+	}
+
+	/**
+	 * the smallest end in (start, limit) of the live spans of the slots [lo, hi) under the node
+	 * that are before candidates, limit if there is none
+	 */
+	private int nextEnd(Group group, int node, int lo, int hi, int candidates, int start, int limit) {
+		if (lo >= candidates || group.maxEnd[node] <= start) {
+			return limit;
+		}
+		if (hi - lo == 1) {
+			int end = group.entries[lo].end;
+			return isLive(group, lo) && end > start && end < limit ? end : limit;
+		}
+		int mid = (lo + hi) >>> 1;
+		limit = nextEnd(group, node * 2, lo, mid, candidates, start, limit);
+		return nextEnd(group, node * 2 + 1, mid, hi, candidates, start, limit);
+	}
+
+	private static boolean isLive(Group group, int slot) {
+		Entry entry = group.entries[slot];
+		return entry.group == group && entry.slot == slot;
+	}
+
+	/**
+	 * @return the number of slots whose start is at or before offset
+	 */
+	private static int upperBound(Group group, int offset) {
+		int low = 0;
+		int high = group.count;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (group.starts[mid] <= offset) {
+				low = mid + 1;
+			}
+			else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * @return the number of slots whose start is before offset
+	 */
+	private static int lowerBound(Group group, int offset) {
+		int low = 0;
+		int high = group.count;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (group.starts[mid] < offset) {
+				low = mid + 1;
+			}
+			else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	private Group getGroup(Class<?> type) {
+		Group group = mGroups.get(type);
+		if (group == null) {
+			group = new Group(type);
+			mGroups.put(type, group);
+			mGroupsByKind.clear();
+		}
+		return group;
+	}
+
+	private Group[] getGroups(Class<?> kind) {
+		Group[] groups = mGroupsByKind.get(kind);
+		if (groups == null) {
+			ArrayList<Group> matching = new ArrayList<Group>();
+			for (Group group : mGroups.values()) {
+				if (kind.isAssignableFrom(group.type)) {
+					matching.add(group);
+				}
+			}
+			groups = matching.toArray(new Group[matching.size()]);
+			mGroupsByKind.put(kind, groups);
+		}
+		return groups;
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ Copyright (C) 2013 Ray Zhou
+
+ JadeRead is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ JadeRead is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with JadeRead.  If not, see <http://www.gnu.org/licenses/>
+
+ */
+package com.zyz.mobile.example;
+
+import android.text.Spannable;
+
+/**
+ * A {@link CompactSpannable} whose spans are kept in an {@link IndexedSpanTable}, for texts with
+ * thousands of spans (notes, highlights, search hits over a whole book). Querying the spans of the
+ * visible region costs O(log n + k), and removing or setting again a span, like SelectionInfo does
+ * with the selection on every move of a cursor, costs O(1).
+ * <p/>
+ * For a text with only a few spans, CompactSpannable is faster and smaller.
+ */
+public class IndexedSpannable extends CompactSpannable {
+
+	/**
+	 * A Spannable.Factory that turns any text into an IndexedSpannable, and passes an
+	 * IndexedSpannable through without copying it. See
+	 * {@link SelectableTextView#setIndexedSpans(boolean)}.
+	 */
+	public static class Factory extends Spannable.Factory {
+		private static final Factory sInstance = new Factory();
+
+		public static Factory getInstance() {
+			return sInstance;
+		}
+
+		@Override
+		public Spannable newSpannable(CharSequence source) {
+			if (source instanceof IndexedSpannable) {
+				return (IndexedSpannable) source;
+			}
+			return new IndexedSpannable(source);
+		}
+	}
+
+	public IndexedSpannable(CharSequence source) {
+		this(source, 0, source.length());
+	}
+
+	/**
+	 * copy source[start, end) and the spans over it
+	 */
+	public IndexedSpannable(CharSequence source, int start, int end) {
+		super(source, start, end, new IndexedSpanTable());
+	}
+}
@@ -0,0 +1,395 @@
+/*
+ Copyright (C) 2013 Ray Zhou
+
+ JadeRead is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ JadeRead is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with JadeRead.  If not, see <http://www.gnu.org/licenses/>
+
+ */
+package com.zyz.mobile.example;
+
+import android.text.Layout;
+import android.text.Spanned;
+import android.text.TextPaint;
+import android.text.TextUtils;
+import android.text.style.MetricAffectingSpan;
+
+import java.text.Bidi;
+
+/**
+ * {@link LineMetrics} of an android.text.Layout. The adapter is rebound to the current layout of a
+ * view instead of being created for every layout, so that hit testing doesn't allocate.
+ * <p/>
+ * Layout measures the text of a line again for every getPrimaryHorizontal and
+ * getOffsetForHorizontal, and a drag calls both several times per move on the same few lines. So
+ * the first call on a line measures the advance of each of its characters once and keeps their
+ * prefix sums; from then on an x is a lookup and an offset a binary search. The lines are kept in a
+ * small LRU of MAX_CACHED_LINES entries, dropped when the layout changes.
+ * <p/>
+ * A line with right-to-left or mixed text also gets a table of its directional runs, computed once
+ * with java.text.Bidi: the logical range, the direction and the left edge of each run in visual
+ * order. An x is then found in its run and mapped to an offset from either edge of the run, so bidi
+ * lines are as fast as left-to-right ones. Only a line with a tab or a span changing the metrics is
+ * left to the Layout.
+ */
+public class LayoutLineMetrics implements LineMetrics {
+
+	private static final int MAX_CACHED_LINES = 64;
+
+	private Layout mLayout;
+
+	/**
+	 * the directional runs of a line, in visual order
+	 */
+	private static class Runs {
+		final int[] mStarts;
+		final int[] mEnds;
+		final boolean[] mRtl;
+		final float[] mLefts;
+		final boolean mParagraphRtl;
+
+		Runs(int count, boolean paragraphRtl) {
+			mStarts = new int[count];
+			mEnds = new int[count];
+			mRtl = new boolean[count];
+			mLefts = new float[count];
+			mParagraphRtl = paragraphRtl;
+		}
+	}
+
+	/**
+	 * the cached lines, in parallel arrays so a lookup doesn't box the line number. mPrefixes[i] is
+	 * null if line mLines[i] can't be cached, mRuns[i] is null if the line is plain left-to-right
+	 * text, mUses[i] is the tick of the last use, 0 if the entry is free.
+	 */
+	private final int[] mLines = new int[MAX_CACHED_LINES];
+	private final int[] mStarts = new int[MAX_CACHED_LINES];
+	private final int[] mEnds = new int[MAX_CACHED_LINES];
+	private final float[] mLefts = new float[MAX_CACHED_LINES];
+	private final float[][] mPrefixes = new float[MAX_CACHED_LINES][];
+	private final Runs[] mRuns = new Runs[MAX_CACHED_LINES];
+	private final long[] mUses = new long[MAX_CACHED_LINES];
+	private long mTick;
+
+	private float[] mWidths = new float[128];
+
+	public LayoutLineMetrics() {
+	}
+
+	public LayoutLineMetrics(Layout layout) {
+		mLayout = layout;
+	}
+
+	public void setLayout(Layout layout) {
+		if (layout != mLayout) {
+			mLayout = layout;
+			clearCache();
+		}
+	}
+
+	/**
+	 * drop the cached advances. A cached line is only checked against its bounds, so call it when
+	 * the text is edited or a span changing the metrics of the text is set; SelectableTextView does.
+	 */
+	public void clearCache() {
+		for (int i = 0; i < MAX_CACHED_LINES; i++) {
+			mUses[i] = 0;
+			mPrefixes[i] = null;
+			mRuns[i] = null;
+		}
+	}
+
+	public Layout getLayout() {
+		return mLayout;
+	}
+
+	@Override
+	public int getTextLength() {
+		return mLayout.getText().length();
+	}
+
+	@Override
+	public int getLineCount() {
+		return mLayout.getLineCount();
+	}
+
+	@Override
+	public int getLineForVertical(int y) {
+		return mLayout.getLineForVertical(y);
+	}
+
+	@Override
+	public int getLineForOffset(int offset) {
+		return mLayout.getLineForOffset(offset);
+	}
+
+	@Override
+	public int getLineTop(int line) {
+		return mLayout.getLineTop(line);
+	}
+
+	@Override
+	public int getLineBottom(int line) {
+		return mLayout.getLineBottom(line);
+	}
+
+	@Override
+	public float getLineLeft(int line) {
+		return mLayout.getLineLeft(line);
+	}
+
+	@Override
+	public float getLineRight(int line) {
+		return mLayout.getLineRight(line);
+	}
+
+	@Override
+	public int getParagraphDirection(int line) {
+		return mLayout.getParagraphDirection(line);
+	}
+
+	@Override
+	public float getPrimaryHorizontal(int offset) {
+		int entry = getEntry(mLayout.getLineForOffset(offset));
+		float[] prefix = mPrefixes[entry];
+		int index = offset - mStarts[entry];
+		if (prefix == null || index < 0 || index >= prefix.length) {
+			return mLayout.getPrimaryHorizontal(offset);
+		}
+		if (mRuns[entry] != null) {
+			return getRunHorizontal(mRuns[entry], prefix, mStarts[entry], offset);
+		}
+		return mLefts[entry] + prefix[index];
+	}
+
+	/**
+	 * the x of the offset on a line with directional runs
+	 */
+	private static float getRunHorizontal(Runs runs, float[] prefix, int lineStart, int offset) {
+		int count = runs.mStarts.length;
+		int run = -1;
+		int previous = -1;
+		for (int i = 0; i < count; i++) {
+			if (offset >= runs.mStarts[i] && offset < runs.mEnds[i]) {
+				run = i;
+			}
+			if (runs.mEnds[i] == offset) {
+				previous = i;
+			}
+		}
+
+		// at the boundary with a run against the paragraph direction, or at the end of the line, the
+		// insertion point trails the run before it, like Layout does
+		if (previous >= 0 && (run < 0 || runs.mRtl[run] != runs.mParagraphRtl)) {
+			run = previous;
+		}
+		if (run < 0) {
+			return runs.mParagraphRtl ? runs.mLefts[0] : runs.mLefts[count - 1];
+		}
+
+		int start = runs.mStarts[run];
+		float advance = prefix[offset - lineStart] - prefix[start - lineStart];
+		if (runs.mRtl[run]) {
+			float width = prefix[runs.mEnds[run] - lineStart] - prefix[start - lineStart];
+			return runs.mLefts[run] + width - advance;
+		}
+		return runs.mLefts[run] + advance;
+	}
+
+	@Override
+	public int getOffsetForHorizontal(int line, float x) {
+		int entry = getEntry(line);
+		float[] prefix = mPrefixes[entry];
+		if (prefix == null) {
+			return mLayout.getOffsetForHorizontal(line, x);
+		}
+
+		int start = mStarts[entry];
+		// like Layout, the offset at the end of a line is only returned on the last line
+		int max = mEnds[entry] - start;
+		if (line < mLayout.getLineCount() - 1 && max > 0) {
+			max--;
+		}
+
+		int low;
+		Runs runs = mRuns[entry];
+		if (runs == null) {
+			low = search(prefix, 0, max, x - mLefts[entry]);
+		}
+		else {
+			// find the run under x, then measure from its left edge, or from its right edge if it
+			// runs right-to-left
+			int count = runs.mStarts.length;
+			int run = 0;
+			while (run < count - 1 && x >= runs.mLefts[run + 1]) {
+				run++;
+			}
+			int from = runs.mStarts[run] - start;
+			int to = runs.mEnds[run] - start;
+			float width = prefix[to] - prefix[from];
+			float advance = runs.mRtl[run] ? runs.mLefts[run] + width - x : x - runs.mLefts[run];
+			low = Math.min(search(prefix, from, to, prefix[from] + advance), max);
+		}
+
+		// never between the two halves of a surrogate pair
+		int offset = start + low;
+		CharSequence text = mLayout.getText();
+		if (offset > start && offset < text.length() && Character.isLowSurrogate(text.charAt(offset))
+				  && Character.isHighSurrogate(text.charAt(offset - 1))) {
+			offset = offset + 1 <= start + max ? offset + 1 : offset - 1;
+		}
+		return offset;
+	}
+
+	@Override
+	public int getOffsetToLeftOf(int offset) {
+		return mLayout.getOffsetToLeftOf(offset);
+	}
+
+	/**
+	 * @return the index in [from, to] of the prefix closest to the target, the lower one on a tie
+	 */
+	private static int search(float[] prefix, int from, int to, float target) {
+		// the first insertion point at or after the target, then the closest of it and the one before
+		int low = from;
+		int high = to;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (prefix[mid] < target) {
+				low = mid + 1;
+			}
+			else {
+				high = mid;
+			}
+		}
+		if (low > from && target - prefix[low - 1] <= prefix[low] - target) {
+			low--;
+		}
+		return low;
+	}
+
+	/**
+	 * @return the index of the cache entry of the line, measured if it wasn't cached or if the line
+	 *         has changed since (e.g. text appended to a DynamicLayout)
+	 */
+	private int getEntry(int line) {
+		int start = mLayout.getLineStart(line);
+		int end = mLayout.getLineEnd(line);
+		int oldest = 0;
+		for (int i = 0; i < MAX_CACHED_LINES; i++) {
+			if (mUses[i] != 0 && mLines[i] == line && mStarts[i] == start && mEnds[i] == end) {
+				mUses[i] = ++mTick;
+				return i;
+			}
+			if (mUses[i] < mUses[oldest]) {
+				oldest = i;
+			}
+		}
+
+		mLines[oldest] = line;
+		mStarts[oldest] = start;
+		mEnds[oldest] = end;
+		mRuns[oldest] = null;
+		mPrefixes[oldest] = measure(oldest, line, start, end);
+		mUses[oldest] = ++mTick;
+		return oldest;
+	}
+
+	/**
+	 * Measure the line into the entry.
+	 *
+	 * @return the prefix sums of the advances of text[start, end), null if the line can't be cached
+	 */
+	private float[] measure(int entry, int line, int start, int end) {
+		CharSequence text = mLayout.getText();
+		if (text instanceof Spanned && ((Spanned) text).getSpans(start, end, MetricAffectingSpan.class).length > 0) {
+			return null;
+		}
+
+		boolean paragraphRtl = mLayout.getParagraphDirection(line) == Layout.DIR_RIGHT_TO_LEFT;
+		boolean bidi = paragraphRtl;
+		for (int i = start; i < end; i++) {
+			char c = text.charAt(i);
+			if (c == '\t') {
+				return null;
+			}
+			bidi |= needsBidi(c);
+		}
+
+		int count = end - start;
+		if (mWidths.length < count) {
+			mWidths = new float[Math.max(count, mWidths.length * 2)];
+		}
+		TextPaint paint = mLayout.getPaint();
+		float[] prefix = new float[count + 1];
+
+		if (!bidi) {
+			paint.getTextWidths(text, start, end, mWidths);
+			for (int i = 0; i < count; i++) {
+				prefix[i + 1] = prefix[i] + mWidths[i];
+			}
+			mLefts[entry] = mLayout.getPrimaryHorizontal(start);
+			return prefix;
+		}
+
+		char[] chars = new char[count];
+		TextUtils.getChars(text, start, end, chars, 0);
+		Bidi analysis = new Bidi(chars, 0, null, 0, count,
+				  paragraphRtl ? Bidi.DIRECTION_RIGHT_TO_LEFT : Bidi.DIRECTION_LEFT_TO_RIGHT);
+
+		// measure each run on its own, its characters are shaped together
+		int runCount = analysis.getRunCount();
+		byte[] levels = new byte[runCount];
+		Integer[] order = new Integer[runCount];
+		for (int i = 0; i < runCount; i++) {
+			int from = analysis.getRunStart(i);
+			int to = analysis.getRunLimit(i);
+			paint.getTextWidths(text, start + from, start + to, mWidths);
+			for (int k = from; k < to; k++) {
+				prefix[k + 1] = prefix[k] + mWidths[k - from];
+			}
+			levels[i] = (byte) analysis.getRunLevel(i);
+			order[i] = i;
+		}
+		Bidi.reorderVisually(levels, 0, order, 0, runCount);
+
+		// the line is flush with the edge its paragraph starts from, the trailing spaces go past the
+		// other one
+		float x = paragraphRtl ? mLayout.getLineRight(line) - prefix[count] : mLayout.getLineLeft(line);
+		Runs runs = new Runs(runCount, paragraphRtl);
+		for (int k = 0; k < runCount; k++) {
+			int i = order[k];
+			runs.mStarts[k] = start + analysis.getRunStart(i);
+			runs.mEnds[k] = start + analysis.getRunLimit(i);
+			runs.mRtl[k] = (levels[i] & 1) != 0;
+			runs.mLefts[k] = x;
+			x += prefix[analysis.getRunLimit(i)] - prefix[analysis.getRunStart(i)];
+		}
+		mRuns[entry] = runs;
+		return prefix;
+	}
+
+	private static boolean needsBidi(char c) {
+		switch (Character.getDirectionality(c)) {
+			case Character.DIRECTIONALITY_RIGHT_TO_LEFT:
+			case Character.DIRECTIONALITY_RIGHT_TO_LEFT_ARABIC:
+			case Character.DIRECTIONALITY_RIGHT_TO_LEFT_EMBEDDING:
+			case Character.DIRECTIONALITY_RIGHT_TO_LEFT_OVERRIDE:
+			case Character.DIRECTIONALITY_LEFT_TO_RIGHT_EMBEDDING:
+			case Character.DIRECTIONALITY_LEFT_TO_RIGHT_OVERRIDE:
+			case Character.DIRECTIONALITY_POP_DIRECTIONAL_FORMAT:
+				return true;
+			default:
+				return false;
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ Copyright (C) 2013 Ray Zhou
+
+ JadeRead is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ JadeRead is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with JadeRead.  If not, see <http://www.gnu.org/licenses/>
+
+ */
+package com.zyz.mobile.example;
+
+/**
+ * The few line measures of a laid out text that {@link SelectionGeometry} needs. The names and the
+ * meaning follow android.text.Layout, but nothing here depends on Android, so the geometry can run
+ * on any JVM: a profiler on a workstation, a fuzzer against recorded results or the server.
+ * <p/>
+ * Coordinates are in pixels relative to the top left of the text, offsets are character offsets.
+ */
+public interface LineMetrics {
+
+	public static final int DIR_LEFT_TO_RIGHT = 1;
+	public static final int DIR_RIGHT_TO_LEFT = -1;
+
+	/**
+	 * @return the length of the text
+	 */
+	public int getTextLength();
+
+	public int getLineCount();
+
+	/**
+	 * @return the line at the vertical position, the first or the last line if y is above or below
+	 *         the text
+	 */
+	public int getLineForVertical(int y);
+
+	/**
+	 * @return the line of the offset. An offset at the end of a wrapped line is on the next line.
+	 */
+	public int getLineForOffset(int offset);
+
+	public int getLineTop(int line);
+
+	public int getLineBottom(int line);
+
+	/**
+	 * @return the left edge of the text of the line
+	 */
+	public float getLineLeft(int line);
+
+	/**
+	 * @return the right edge of the text of the line
+	 */
+	public float getLineRight(int line);
+
+	/**
+	 * @return the direction of the paragraph of the line, DIR_LEFT_TO_RIGHT or DIR_RIGHT_TO_LEFT
+	 */
+	public int getParagraphDirection(int line);
+
+	/**
+	 * @return the horizontal position of the insertion point before the offset, the position it
+	 *         would be drawn at in the direction of the paragraph
+	 */
+	public float getPrimaryHorizontal(int offset);
+
+	/**
+	 * @return the offset of the insertion point closest to x on the line
+	 */
+	public int getOffsetForHorizontal(int line, float x);
+
+	/**
+	 * @return the offset of the insertion point to the left of the offset
+	 */
+	public int getOffsetToLeftOf(int offset);
+}
@@ -0,0 +1,306 @@
+/*
+ Copyright (C) 2013 Ray Zhou
+
+ JadeRead is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ JadeRead is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with JadeRead.  If not, see <http://www.gnu.org/licenses/>
+
+ */
+package com.zyz.mobile.example;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.text.Layout;
+import android.text.Spanned;
+import android.text.style.BackgroundColorSpan;
+import android.view.Gravity;
+import android.view.View;
+import android.widget.PopupWindow;
+import android.widget.TextView;
+
+/**
+ * A loupe shown above the cursor being dragged, so the user can see the characters under the
+ * finger.
+ * <p/>
+ * The text is not drawn again for every frame of the drag. The visible part of the source view is
+ * drawn once into a cached bitmap, and every frame only draws a region of that bitmap scaled up.
+ * The app targets API 10, which draws in software, so the scale runs on the CPU, but a filtered
+ * blit of a small region is still much cheaper than laying out and drawing the glyphs. The cache is
+ * drawn without the selection, which moves with the dragged cursor, and the selection is drawn over
+ * the loupe instead. So the cache is only redrawn when the source, its layout or its visible part
+ * changes, or when the owner calls {@link #invalidateCache()} because the text changed.
+ * <p/>
+ * There is one magnifier per window, pooled with the handles by {@link SelectionHandlePool}.
+ */
+class Magnifier extends View {
+
+	/**
+	 * the size of the loupe in dip
+	 */
+	private static final int WIDTH_DIP = 100;
+	private static final int HEIGHT_DIP = 48;
+
+	/**
+	 * the space between the loupe and the line it magnifies in dip
+	 */
+	private static final int GAP_DIP = 8;
+
+	private static final float ZOOM = 1.25f;
+
+	private static final int BACKGROUND_COLOR = 0xFFFFFFFF;
+	private static final int FRAME_COLOR = 0xFF9E9E9E;
+
+	private final PopupWindow mContainer;
+
+	private final int mWidth;
+	private final int mHeight;
+	private final int mGap;
+
+	/**
+	 * the size of the region of the source that is magnified
+	 */
+	private final int mSourceWidth;
+	private final int mSourceHeight;
+
+	/**
+	 * the visible part of the source view, drawn in the coordinates of mCacheRect
+	 */
+	private Bitmap mCache;
+	private Canvas mCacheCanvas;
+	private final Rect mCacheRect = new Rect();
+	private boolean mCacheValid;
+
+	/**
+	 * what the cache was drawn from
+	 */
+	private TextView mCachedSource;
+	private Layout mCachedLayout;
+
+	/**
+	 * where the layout of the source starts in the source when the cache was drawn
+	 */
+	private int mCachedPaddingLeft;
+	private int mCachedPaddingTop;
+
+	/**
+	 * the selection drawn over the loupe, null if none
+	 */
+	private SelectionInfo mSelection;
+	private final Path mSelectionPath = new Path();
+
+	private final Rect mVisibleRect = new Rect();
+	private final Rect mSrc = new Rect();
+	private final Rect mDst = new Rect();
+	private final Paint mBitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+	private final Paint mFramePaint = new Paint();
+	private final Paint mSelectionPaint = new Paint();
+	private final int[] mTempCoords = new int[2];
+
+	public Magnifier(Context context) {
+		super(context);
+
+		float density = context.getResources().getDisplayMetrics().density;
+		mWidth = (int) (WIDTH_DIP * density + 0.5f);
+		mHeight = (int) (HEIGHT_DIP * density + 0.5f);
+		mGap = (int) (GAP_DIP * density + 0.5f);
+		mSourceWidth = (int) (mWidth / ZOOM);
+		mSourceHeight = (int) (mHeight / ZOOM);
+
+		mFramePaint.setColor(FRAME_COLOR);
+		mFramePaint.setStyle(Paint.Style.STROKE);
+		mFramePaint.setStrokeWidth(density);
+
+		// like a background span on the white page: the color shows where the page is white, the
+		// glyphs stay dark
+		mSelectionPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.MULTIPLY));
+
+		mContainer = new PopupWindow(this);
+		mContainer.setClippingEnabled(false);
+		// the finger is on the handle, the loupe must not take the touch events
+		mContainer.setTouchable(false);
+		mContainer.setWidth(mWidth);
+		mContainer.setHeight(mHeight);
+	}
+
+	@Override
+	protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+		setMeasuredDimension(mWidth, mHeight);
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		canvas.drawColor(BACKGROUND_COLOR);
+		if (mCache != null && mCacheValid) {
+			mDst.set(0, 0, mWidth, mHeight);
+			canvas.drawBitmap(mCache, mSrc, mDst, mBitmapPaint);
+			drawSelection(canvas);
+		}
+		canvas.drawRect(0, 0, mWidth, mHeight, mFramePaint);
+	}
+
+	/**
+	 * draw the selection over the magnified region of the cache
+	 */
+	private void drawSelection(Canvas canvas) {
+		final SelectionInfo selection = mSelection;
+		if (selection == null || mCachedLayout == null || !(selection.getSpan() instanceof BackgroundColorSpan)) {
+			return;
+		}
+		int start = Math.min(selection.getStart(), selection.getEnd());
+		int end = Math.max(selection.getStart(), selection.getEnd());
+		if (start == end || end > mCachedLayout.getText().length()) {
+			return;
+		}
+
+		mSelectionPath.reset();
+		mCachedLayout.getSelectionPath(start, end, mSelectionPath);
+		mSelectionPaint.setColor(((BackgroundColorSpan) selection.getSpan()).getBackgroundColor());
+
+		int save = canvas.save();
+		canvas.scale(mWidth / (float) mSourceWidth, mHeight / (float) mSourceHeight);
+		// from the layout to the magnified region of the cache
+		canvas.translate(mCachedPaddingLeft - mCacheRect.left - mSrc.left, mCachedPaddingTop - mCacheRect.top - mSrc.top);
+		canvas.drawPath(mSelectionPath, mSelectionPaint);
+		canvas.restoreToCount(save);
+	}
+
+	/**
+	 * Show the loupe above the specified point of the source, or move it there if it's already
+	 * showing. Meant to be called from the same callback that moves the cursor, so that both move in
+	 * the same frame.
+	 *
+	 * @param source    the view to magnify
+	 * @param selection the selection in the text of the source, drawn over the loupe. Null if none.
+	 * @param x         the x coordinate to magnify, relative to the source (scroll included)
+	 * @param centerY   the y coordinate of the center of the line to magnify, relative to the source
+	 *                  (scroll included)
+	 */
+	public void show(TextView source, SelectionInfo selection, int x, int centerY) {
+		mSelection = selection;
+		if (!updateCache(source)) {
+			hide();
+			return;
+		}
+
+		// the region of the cache to magnify, kept inside the cache
+		int left = x - mSourceWidth / 2 - mCacheRect.left;
+		int top = centerY - mSourceHeight / 2 - mCacheRect.top;
+		left = Math.max(0, Math.min(left, mCacheRect.width() - mSourceWidth));
+		top = Math.max(0, Math.min(top, mCacheRect.height() - mSourceHeight));
+		mSrc.set(left, top, left + mSourceWidth, top + mSourceHeight);
+		invalidate();
+
+		// place the loupe centered above the line
+		final int[] coords = mTempCoords;
+		source.getLocationInWindow(coords);
+		int windowX = coords[0] + x - source.getScrollX() - mWidth / 2;
+		int windowY = coords[1] + centerY - source.getScrollY() - mSourceHeight / 2 - mGap - mHeight;
+
+		if (mContainer.isShowing()) {
+			mContainer.update(windowX, windowY, -1, -1);
+		}
+		else {
+			mContainer.showAtLocation(source, Gravity.NO_GRAVITY, windowX, windowY);
+		}
+	}
+
+	/**
+	 * redraw the cache if it's out of date
+	 *
+	 * @return false if nothing of the source is visible
+	 */
+	private boolean updateCache(TextView source) {
+		final Rect visible = mVisibleRect;
+		if (!source.getLocalVisibleRect(visible) || visible.isEmpty()) {
+			return false;
+		}
+
+		if (mCacheValid && source == mCachedSource && source.getLayout() == mCachedLayout
+				  && visible.left == mCacheRect.left && visible.top == mCacheRect.top
+				  && visible.right == mCacheRect.right && visible.bottom == mCacheRect.bottom) {
+			return true;
+		}
+
+		int width = visible.width();
+		int height = visible.height();
+		// a bitmap large enough is reused, so scrolling during a drag doesn't allocate
+		if (mCache == null || mCache.getWidth() < width || mCache.getHeight() < height) {
+			int cacheWidth = mCache == null ? width : Math.max(width, mCache.getWidth());
+			int cacheHeight = mCache == null ? height : Math.max(height, mCache.getHeight());
+			if (mCache != null) {
+				mCache.recycle();
+			}
+			mCache = Bitmap.createBitmap(cacheWidth, cacheHeight, Bitmap.Config.ARGB_8888);
+			mCacheCanvas = new Canvas(mCache);
+		}
+
+		mCache.eraseColor(BACKGROUND_COLOR);
+		int save = mCacheCanvas.save();
+		mCacheCanvas.clipRect(0, 0, width, height);
+		// the visible rect includes the scroll of the source, which draw() doesn't undo
+		mCacheCanvas.translate(-visible.left, -visible.top);
+		// the selection moves on every frame of the drag, leave it out of the cache
+		Object span = mSelection == null ? null : mSelection.getSpan();
+		CharSequence text = source.getText();
+		boolean selected = span != null && text instanceof Spanned && ((Spanned) text).getSpanStart(span) >= 0;
+		if (selected) {
+			mSelection.remove();
+		}
+		source.draw(mCacheCanvas);
+		if (selected) {
+			mSelection.select();
+		}
+		mCacheCanvas.restoreToCount(save);
+
+		mCacheRect.set(visible.left, visible.top, visible.right, visible.bottom);
+		mCachedSource = source;
+		mCachedLayout = source.getLayout();
+		mCachedPaddingLeft = source.getTotalPaddingLeft();
+		mCachedPaddingTop = source.getTotalPaddingTop();
+		mCacheValid = true;
+		return true;
+	}
+
+	/**
+	 * the text drawn by the source changed (e.g. an edit or a new highlight), redraw the cache the
+	 * next time the loupe moves
+	 */
+	public void invalidateCache() {
+		mCacheValid = false;
+	}
+
+	public boolean isShowing() {
+		return mContainer.isShowing();
+	}
+
+	/**
+	 * hide the loupe and free the cache, which is as large as the visible part of the source
+	 */
+	public void hide() {
+		mContainer.dismiss();
+		if (mCache != null) {
+			mCache.recycle();
+			mCache = null;
+			mCacheCanvas = null;
+		}
+		mCachedSource = null;
+		mCachedLayout = null;
+		mSelection = null;
+		mCacheValid = false;
+	}
+}
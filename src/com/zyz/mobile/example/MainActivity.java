@@ -6,9 +6,22 @@ import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
 
+import java.io.File;
+import java.io.IOException;
+
 public class MainActivity extends Activity {
 
+	private static final String TAG = "MainActivity";
+
+	/**
+	 * the dictionary trie, see {@link DictionaryTrie.Builder}. Optional, words are found with a
+	 * BreakIterator without it.
+	 */
+	private static final String DICTIONARY_FILE = "dictionary.trie";
+
 	private SelectableTextView mTextView;
+	private SegmentationCache mSegmentationCache;
+	private final int[] mWord = new int[2];
 	private int mTouchX;
 	private int mTouchY;
 	private final static int DEFAULT_SELECTION_LEN = 5;
@@ -22,6 +35,21 @@ public class MainActivity extends Activity {
 		mTextView = (SelectableTextView) findViewById(R.id.main_text);
 		mTextView.setDefaultSelectionColor(0x40FF00FF);
 
+		mSegmentationCache = new SegmentationCache(openDictionary());
+
+		// keep the words of the paragraphs on screen ready for the long click
+		((ObservableScrollView) findViewById(R.id.scroller)).addOnScrollChangedListener(new OnScrollChangedListener() {
+			@Override
+			public void onScrollChanged(ObservableScrollView scrollView, int x, int y, int oldx, int oldy) {
+				mSegmentationCache.update(mTextView);
+			}
+		});
+		mTextView.post(new Runnable() {
+			@Override
+			public void run() {
+				mSegmentationCache.update(mTextView);
+			}
+		});
 
 		mTextView.setOnLongClickListener(new View.OnLongClickListener() {
 			@Override
@@ -41,14 +69,40 @@ public class MainActivity extends Activity {
 			public boolean onTouch(View v, MotionEvent event) {
 				mTouchX = (int) event.getX();
 				mTouchY = (int) event.getY();
+				if (event.getAction() == MotionEvent.ACTION_DOWN) {
+					// the long click comes well after, the words will be ready by then
+					mSegmentationCache.update(mTextView);
+				}
 				return false;
 			}
 		});
 	}
 
+	private DictionaryTrie openDictionary() {
+		File file = new File(getFilesDir(), DICTIONARY_FILE);
+		if (file.exists()) {
+			try {
+				return DictionaryTrie.open(file);
+			}
+			catch (IOException e) {
+				Log.w(TAG, "unable to open the dictionary", e);
+			}
+		}
+		return null;
+	}
+
 	private void showSelectionCursors(int x, int y) {
 		int start = mTextView.getPreciseOffset(x, y);
 
+		// select the whole word under the finger if its paragraph has been segmented
+		if (start > -1 && mSegmentationCache.getWordAt(start, mWord)) {
+			int end = Math.min(mWord[1], mTextView.getText().length() - 1);
+			if (end > mWord[0]) {
+				mTextView.showSelectionControls(mWord[0], end);
+				return;
+			}
+		}
+
 		if (start > -1) {
 			int end = start + DEFAULT_SELECTION_LEN;
 			if (end >= mTextView.getText().length()) {
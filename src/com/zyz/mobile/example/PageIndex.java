@@ -0,0 +1,210 @@
+/*
+ Copyright (C) 2013 Ray Zhou
+
+ JadeRead is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ JadeRead is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with JadeRead.  If not, see <http://www.gnu.org/licenses/>
+
+ */
+package com.zyz.mobile.example;
+
+import android.text.Layout;
+
+import java.util.Arrays;
+
+/**
+ * The page breaks of a layout for a given page height. A page holds whole lines only.
+ * <p/>
+ * Immutable once computed, so it can be built on a background thread and handed to the UI thread.
+ * Everything about a page is a lookup into the arrays, the only searches are the ones going from
+ * an offset or a y coordinate to its page.
+ */
+public class PageIndex {
+
+	private final Layout mLayout;
+	private final int mPageHeight;
+	private final int mTextLength;
+
+	/**
+	 * the first line of each page, plus the line count as a sentinel
+	 */
+	private final int[] mFirstLines;
+
+	/**
+	 * the top of each page (the top of its first line), plus the layout height as a sentinel
+	 */
+	private final int[] mTops;
+
+	/**
+	 * the start offset of each page, plus the text length as a sentinel
+	 */
+	private final int[] mStarts;
+
+	private PageIndex(Layout layout, int pageHeight, int[] firstLines, int[] tops, int[] starts) {
+		mLayout = layout;
+		mPageHeight = pageHeight;
+		mTextLength = starts[starts.length - 1];
+		mFirstLines = firstLines;
+		mTops = tops;
+		mStarts = starts;
+	}
+
+	/**
+	 * Compute the page breaks of the layout. Reads the line count, the top, bottom and start of the
+	 * lines, the height of the layout and the length of its text. These never change for a
+	 * StaticLayout, so it's safe to call off the UI thread. A DynamicLayout (the layout of a
+	 * Spannable text in a TextView) updates them on the UI thread whenever it reflows, e.g. on an
+	 * edit or a MetricAffectingSpan change. Off the UI thread the result may then be inconsistent or
+	 * this may throw, the caller must be ready to drop it.
+	 *
+	 * @param layout     the layout to paginate
+	 * @param pageHeight the height available for the text on a page
+	 * @return the page index
+	 */
+	public static PageIndex compute(Layout layout, int pageHeight) {
+		final int lineCount = layout.getLineCount();
+		int[] firstLines = new int[Math.max(2, lineCount + 1)];
+		int pages = 0;
+
+		int line = 0;
+		while (line < lineCount) {
+			firstLines[pages++] = line;
+			int top = layout.getLineTop(line);
+
+			// always take at least one line, even if it is taller than the page
+			line++;
+			while (line < lineCount && layout.getLineBottom(line) - top <= pageHeight) {
+				line++;
+			}
+		}
+		if (pages == 0) {
+			// an empty text still has one (empty) page
+			firstLines[pages++] = 0;
+		}
+		firstLines[pages] = lineCount;
+		firstLines = Arrays.copyOf(firstLines, pages + 1);
+
+		int[] tops = new int[pages + 1];
+		int[] starts = new int[pages + 1];
+		for (int i = 0; i < pages; i++) {
+			tops[i] = lineCount == 0 ? 0 : layout.getLineTop(firstLines[i]);
+			starts[i] = lineCount == 0 ? 0 : layout.getLineStart(firstLines[i]);
+		}
+		tops[pages] = layout.getHeight();
+		starts[pages] = layout.getText().length();
+
+		return new PageIndex(layout, pageHeight, firstLines, tops, starts);
+	}
+
+	/**
+	 * Get the same page breaks for another layout of the same text, e.g. the layout a view makes of
+	 * a text paginated in the background. The layouts must have the same width, paint and spacing,
+	 * so that they break the lines at the same offsets.
+	 *
+	 * @param layout the layout
+	 * @return the page index bound to the layout
+	 */
+	public PageIndex rebind(Layout layout) {
+		return new PageIndex(layout, mPageHeight, mFirstLines, mTops, mStarts);
+	}
+
+	/**
+	 * @return the layout the index was computed for
+	 */
+	public Layout getLayout() {
+		return mLayout;
+	}
+
+	public int getPageHeight() {
+		return mPageHeight;
+	}
+
+	/**
+	 * @return the length of the text when the index was computed. Text appended since then is not
+	 *         paginated, but the pages before it are still valid.
+	 */
+	public int getTextLength() {
+		return mTextLength;
+	}
+
+	public int getPageCount() {
+		return mFirstLines.length - 1;
+	}
+
+	public int getFirstLine(int page) {
+		return mFirstLines[page];
+	}
+
+	/**
+	 * @param page the page
+	 * @return the last line of the page (exclusive)
+	 */
+	public int getLastLine(int page) {
+		return mFirstLines[page + 1];
+	}
+
+	/**
+	 * @param page the page
+	 * @return the y of the page origin in the layout
+	 */
+	public int getTop(int page) {
+		return mTops[page];
+	}
+
+	/**
+	 * @param page the page
+	 * @return the height of the lines on the page, not more than the page height unless a single
+	 *         line is taller than the page
+	 */
+	public int getHeight(int page) {
+		return mTops[page + 1] - mTops[page];
+	}
+
+	public int getStart(int page) {
+		return mStarts[page];
+	}
+
+	/**
+	 * @param page the page
+	 * @return the end offset of the page (exclusive)
+	 */
+	public int getEnd(int page) {
+		return mStarts[page + 1];
+	}
+
+	/**
+	 * @param offset the offset
+	 * @return the page containing the offset
+	 */
+	public int getPageForOffset(int offset) {
+		return find(mStarts, offset);
+	}
+
+	/**
+	 * @param y the y coordinate in the layout
+	 * @return the page containing y
+	 */
+	public int getPageForVertical(int y) {
+		return find(mTops, y);
+	}
+
+	/**
+	 * the last page whose boundary is not greater than the value, clamped to the valid pages
+	 */
+	private int find(int[] boundaries, int value) {
+		int index = Arrays.binarySearch(boundaries, 0, boundaries.length - 1, value);
+		if (index < 0) {
+			index = -index - 2;
+		}
+		return Math.max(0, Math.min(index, getPageCount() - 1));
+	}
+}
@@ -0,0 +1,270 @@
+/*
+ Copyright (C) 2013 Ray Zhou
+
+ JadeRead is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ JadeRead is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with JadeRead.  If not, see <http://www.gnu.org/licenses/>
+
+ */
+package com.zyz.mobile.example;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.text.BreakIterator;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Word boundaries of the paragraphs on screen, computed in the background.
+ * <p/>
+ * {@link #update(SelectableTextView)} copies the visible paragraphs that are not segmented yet
+ * (a screen of text) and segments them on the {@link BackgroundExecutor}. Words come from the
+ * longest dictionary match at each position when a dictionary is available, and from a word
+ * BreakIterator otherwise. Finding the word at an offset is then a binary search, cheap enough to
+ * select the word in the same frame as the long press.
+ */
+public class SegmentationCache {
+
+	/**
+	 * the longest headword looked for
+	 */
+	private static final int MAX_WORD_LENGTH = 16;
+
+	private static class Paragraph {
+		final int mStart;
+		final int mEnd;
+
+		/**
+		 * the word boundaries, as offsets in the text, from mStart to mEnd included
+		 */
+		final int[] mBoundaries;
+
+		Paragraph(int start, int end, int[] boundaries) {
+			mStart = start;
+			mEnd = end;
+			mBoundaries = boundaries;
+		}
+	}
+
+	private final DictionaryTrie mTrie;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+	/**
+	 * the segmented paragraphs by start offset, only accessed on the UI thread
+	 */
+	private final TreeMap<Integer, Paragraph> mParagraphs = new TreeMap<Integer, Paragraph>();
+
+	/**
+	 * the text the paragraphs belong to, and its length when they were segmented
+	 */
+	private CharSequence mText;
+	private int mTextLength;
+
+	/**
+	 * the range being segmented in the background, to not request it twice
+	 */
+	private int mPendingStart = -1;
+	private int mPendingEnd = -1;
+
+	private final int[] mVisible = new int[2];
+
+	/**
+	 * @param trie the dictionary used to find the words, null to use a word BreakIterator
+	 */
+	public SegmentationCache(DictionaryTrie trie) {
+		mTrie = trie;
+	}
+
+	/**
+	 * segment the visible paragraphs of the view in the background if they are not cached yet. Call
+	 * it whenever the visible part of the text changes.
+	 *
+	 * @param view the view
+	 */
+	public void update(SelectableTextView view) {
+		CharSequence text = view.getText();
+		if (text != mText) {
+			mParagraphs.clear();
+			mText = text;
+			mPendingStart = mPendingEnd = -1;
+		}
+		else if (text.length() != mTextLength && !mParagraphs.isEmpty()) {
+			// the text has grown (streaming), the last paragraph may have been cut
+			Map.Entry<Integer, Paragraph> last = mParagraphs.lastEntry();
+			if (last.getValue().mEnd == mTextLength) {
+				mParagraphs.remove(last.getKey());
+			}
+		}
+		mTextLength = text.length();
+
+		if (!view.getVisibleRange(mVisible)) {
+			return;
+		}
+
+		// widen to whole paragraphs
+		int start = mVisible[0];
+		while (start > 0 && text.charAt(start - 1) != '\n') {
+			start--;
+		}
+		int end = mVisible[1];
+		while (end < text.length() && text.charAt(end) != '\n') {
+			end++;
+		}
+
+		// skip the paragraphs already segmented at both ends
+		Map.Entry<Integer, Paragraph> entry = mParagraphs.floorEntry(start);
+		while (entry != null && entry.getValue().mStart <= start && entry.getValue().mEnd >= start && start < end) {
+			start = entry.getValue().mEnd + 1;
+			entry = mParagraphs.floorEntry(start);
+		}
+		entry = mParagraphs.floorEntry(end);
+		while (entry != null && entry.getValue().mEnd >= end && entry.getValue().mStart > start) {
+			end = entry.getValue().mStart - 1;
+			entry = mParagraphs.floorEntry(end);
+		}
+
+		if (start >= end || (start >= mPendingStart && end <= mPendingEnd)) {
+			return;
+		}
+
+		mPendingStart = start;
+		mPendingEnd = end;
+		final CharSequence owner = text;
+		final int offset = start;
+		final String snapshot = text.subSequence(start, end).toString();
+		BackgroundExecutor.submit(new Runnable() {
+			@Override
+			public void run() {
+				final Paragraph[] paragraphs = segment(snapshot, offset);
+				mHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						if (owner == mText) {
+							for (Paragraph paragraph : paragraphs) {
+								mParagraphs.put(paragraph.mStart, paragraph);
+							}
+						}
+						if (offset == mPendingStart) {
+							mPendingStart = mPendingEnd = -1;
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Find the word containing the specified offset.
+	 *
+	 * @param offset the offset
+	 * @param range  receives the start and the end (exclusive) of the word
+	 * @return true if the word was found, false if the paragraph is not segmented yet
+	 */
+	public boolean getWordAt(int offset, int[] range) {
+		Map.Entry<Integer, Paragraph> entry = mParagraphs.floorEntry(offset);
+		if (entry == null || offset >= entry.getValue().mEnd) {
+			return false;
+		}
+
+		int[] boundaries = entry.getValue().mBoundaries;
+		int index = Arrays.binarySearch(boundaries, offset);
+		if (index < 0) {
+			index = -index - 2;
+		}
+		range[0] = boundaries[index];
+		range[1] = boundaries[index + 1];
+		return true;
+	}
+
+	/**
+	 * segment the paragraphs of the text, on the background thread
+	 *
+	 * @param text   the paragraphs, separated by new lines
+	 * @param offset the offset of the text in the view
+	 */
+	private Paragraph[] segment(String text, int offset) {
+		int count = 1;
+		for (int i = 0; i < text.length(); i++) {
+			if (text.charAt(i) == '\n') {
+				count++;
+			}
+		}
+
+		Paragraph[] paragraphs = new Paragraph[count];
+		int start = 0;
+		for (int i = 0; i < count; i++) {
+			int end = text.indexOf('\n', start);
+			if (end < 0) {
+				end = text.length();
+			}
+			int[] boundaries = mTrie != null ? segmentWithDictionary(text, start, end) : segmentWithBreakIterator(text, start, end);
+			for (int j = 0; j < boundaries.length; j++) {
+				boundaries[j] += offset;
+			}
+			paragraphs[i] = new Paragraph(start + offset, end + offset, boundaries);
+			start = end + 1;
+		}
+		return paragraphs;
+	}
+
+	/**
+	 * forward maximum matching: take the longest headword at each position, a run of letters or
+	 * digits of other scripts (e.g. latin words), or a single character
+	 */
+	private int[] segmentWithDictionary(String text, int start, int end) {
+		int[] boundaries = new int[end - start + 1];
+		int count = 0;
+		int i = start;
+		boundaries[count++] = i;
+		while (i < end) {
+			int length = mTrie.longestPrefix(text, i, Math.min(end, i + MAX_WORD_LENGTH), null);
+			if (length == 0) {
+				length = 1;
+				if (Character.isLetterOrDigit(text.charAt(i)) && !isIdeographic(text.charAt(i))) {
+					while (i + length < end && Character.isLetterOrDigit(text.charAt(i + length)) &&
+							  !isIdeographic(text.charAt(i + length))) {
+						length++;
+					}
+				}
+			}
+			i += length;
+			boundaries[count++] = i;
+		}
+		return Arrays.copyOf(boundaries, count);
+	}
+
+	private static int[] segmentWithBreakIterator(String text, int start, int end) {
+		BreakIterator iterator = BreakIterator.getWordInstance();
+		iterator.setText(text.substring(start, end));
+
+		int[] boundaries = new int[end - start + 1];
+		int count = 0;
+		for (int b = iterator.first(); b != BreakIterator.DONE; b = iterator.next()) {
+			boundaries[count++] = start + b;
+		}
+		if (count == 0 || boundaries[count - 1] != end) {
+			boundaries[count++] = end;
+		}
+		return Arrays.copyOf(boundaries, count);
+	}
+
+	private static boolean isIdeographic(char c) {
+		Character.UnicodeBlock block = Character.UnicodeBlock.of(c);
+		return block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS ||
+				  block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_A ||
+				  block == Character.UnicodeBlock.CJK_COMPATIBILITY_IDEOGRAPHS ||
+				  block == Character.UnicodeBlock.HIRAGANA ||
+				  block == Character.UnicodeBlock.KATAKANA;
+	}
+}
@@ -0,0 +1,610 @@
+/*
+ Copyright (C) 2013 Ray Zhou
+
+ JadeRead is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ JadeRead is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with JadeRead.  If not, see <http://www.gnu.org/licenses/>
+
+ */
+package com.zyz.mobile.example;
+
+import android.content.Context;
+import android.text.style.BackgroundColorSpan;
+import android.util.AttributeSet;
+import android.view.View;
+import android.view.ViewTreeObserver;
+import android.widget.LinearLayout;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A vertical LinearLayout whose SelectableTextView children share a single selection.
+ * <p/>
+ * The texts of the children are laid end to end in one global offset space: child i owns the
+ * offsets [getChildTextStart(i), getChildTextStart(i + 1)). One pair of cursor handles, borrowed
+ * from the window like the handles of a SelectableTextView, can be dragged from one child into
+ * another. The child under a cursor is found by binary search over the cumulative tops of the
+ * children, and a drag only updates the spans of the children between the old and the new offset
+ * of the cursor, never the whole chain.
+ * <p/>
+ * Children that are not SelectableTextView are skipped and take no offsets.
+ */
+public class SelectableTextContainer extends LinearLayout {
+
+	private static final int DEFAULT_SELECTION_COLOR = 0x40FF00FF;
+
+	/**
+	 * the SelectableTextView children, in layout order
+	 */
+	private final ArrayList<SelectableTextView> mTextViews = new ArrayList<SelectableTextView>();
+
+	/**
+	 * mTextStarts[i] is the global offset of the first character of child i, the last entry is the
+	 * total length
+	 */
+	private int[] mTextStarts = new int[1];
+
+	/**
+	 * mChildTops[i] is the top of child i in the container, the last entry is the bottom of the last
+	 * child
+	 */
+	private int[] mChildTops = new int[1];
+
+	/**
+	 * the part of the selection on each child, created when a child is first selected
+	 */
+	private SelectionInfo[] mChildSelections = new SelectionInfo[0];
+
+	private int mSelectionColor = DEFAULT_SELECTION_COLOR;
+
+	private ContainerSelectionController mSelectionController;
+
+	private final int[] mTempCoords = new int[2];
+
+	public SelectableTextContainer(Context context) {
+		super(context);
+		init();
+	}
+
+	public SelectableTextContainer(Context context, AttributeSet attrs) {
+		super(context, attrs);
+		init();
+	}
+
+	private void init() {
+		setOrientation(VERTICAL);
+	}
+
+	public void setSelectionColor(int color) {
+		mSelectionColor = color;
+	}
+
+	@Override
+	protected void onLayout(boolean changed, int l, int t, int r, int b) {
+		super.onLayout(changed, l, t, r, b);
+		updateIndex();
+		if (mSelectionController != null) {
+			mSelectionController.snapToSelection();
+		}
+	}
+
+	/**
+	 * rebuild the offsets and the tops of the children. O(children), so it is done whenever the
+	 * children may have changed rather than tracking every change.
+	 */
+	private void updateIndex() {
+		mTextViews.clear();
+		for (int i = 0; i < getChildCount(); i++) {
+			View child = getChildAt(i);
+			if (child instanceof SelectableTextView && child.getVisibility() != GONE) {
+				mTextViews.add((SelectableTextView) child);
+			}
+		}
+
+		int count = mTextViews.size();
+		if (mTextStarts.length != count + 1) {
+			mTextStarts = new int[count + 1];
+			mChildTops = new int[count + 1];
+		}
+		if (mChildSelections.length < count) {
+			mChildSelections = Arrays.copyOf(mChildSelections, count);
+		}
+
+		for (int i = 0; i < count; i++) {
+			SelectableTextView child = mTextViews.get(i);
+			mTextStarts[i + 1] = mTextStarts[i] + child.getText().length();
+			mChildTops[i] = child.getTop();
+			mChildTops[i + 1] = child.getBottom();
+		}
+	}
+
+	/**
+	 * @return the number of SelectableTextView children
+	 */
+	public int getTextViewCount() {
+		return mTextViews.size();
+	}
+
+	public SelectableTextView getTextView(int index) {
+		return mTextViews.get(index);
+	}
+
+	/**
+	 * @param index the index of the SelectableTextView child
+	 * @return the global offset of the first character of the child
+	 */
+	public int getChildTextStart(int index) {
+		return mTextStarts[index];
+	}
+
+	/**
+	 * @return the length of the texts of all the children
+	 */
+	public int getTextLength() {
+		return mTextStarts[mTextViews.size()];
+	}
+
+	/**
+	 * convert an offset in a child to the global offset
+	 *
+	 * @param child  a SelectableTextView child
+	 * @param offset the offset in the text of the child
+	 * @return the global offset, -1 if the view is not a child of this container
+	 */
+	public int getGlobalOffset(SelectableTextView child, int offset) {
+		updateIndex();
+		int index = mTextViews.indexOf(child);
+		return index < 0 ? -1 : mTextStarts[index] + offset;
+	}
+
+	/**
+	 * Find the child holding the specified global offset. An offset on the boundary of two children
+	 * is the end of the first one if isEnd is true, the start of the second one otherwise.
+	 *
+	 * @param offset the global offset
+	 * @param isEnd  whether the offset ends a range
+	 * @return the index of the child, -1 if there is no child
+	 */
+	public int getChildForOffset(int offset, boolean isEnd) {
+		int count = mTextViews.size();
+		if (count == 0) {
+			return -1;
+		}
+
+		// the last child whose start is before (or at, for a start offset) the offset
+		int low = 0;
+		int high = count - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (isEnd ? mTextStarts[mid] < offset : mTextStarts[mid] <= offset) {
+				low = mid;
+			}
+			else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * @param y y relative to the container
+	 * @return the index of the child at y, the nearest child if y is above, below or between children.
+	 * -1 if there is no child
+	 */
+	private int getChildForVertical(int y) {
+		int count = mTextViews.size();
+		if (count == 0) {
+			return -1;
+		}
+
+		int low = 0;
+		int high = count - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (mChildTops[mid] <= y) {
+				low = mid;
+			}
+			else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * select the text between the specified global offsets and show the cursors
+	 *
+	 * @param start the global offset of the first cursor
+	 * @param end   the global offset of the second cursor
+	 */
+	public void showSelectionControls(int start, int end) {
+		updateIndex();
+
+		int length = getTextLength();
+		start = Math.max(0, Math.min(start, length));
+		end = Math.max(0, Math.min(end, length));
+
+		getSelectionController().show(start, end);
+	}
+
+	/**
+	 * hide the cursors and remove the selection from all the children
+	 */
+	public void hideCursor() {
+		if (mSelectionController != null) {
+			mSelectionController.hide();
+		}
+	}
+
+	public boolean isSelectionShowing() {
+		return mSelectionController != null && mSelectionController.isShowing();
+	}
+
+	/**
+	 * @return the smaller global offset of the selection
+	 */
+	public int getSelectionStart() {
+		return mSelectionController == null ? -1 : mSelectionController.getMin();
+	}
+
+	/**
+	 * @return the larger global offset of the selection
+	 */
+	public int getSelectionEnd() {
+		return mSelectionController == null ? -1 : mSelectionController.getMax();
+	}
+
+	/**
+	 * @return the selected text of all the children, joined
+	 */
+	public CharSequence getSelectedText() {
+		StringBuilder builder = new StringBuilder();
+		if (isSelectionShowing()) {
+			int start = getSelectionStart();
+			int end = getSelectionEnd();
+			int first = getChildForOffset(start, false);
+			int last = getChildForOffset(end, true);
+			for (int i = first; i <= last && i >= 0; i++) {
+				CharSequence text = mTextViews.get(i).getText();
+				int s = Math.max(start - mTextStarts[i], 0);
+				int e = Math.min(end - mTextStarts[i], text.length());
+				if (e > s) {
+					builder.append(text, s, e);
+				}
+			}
+		}
+		return builder;
+	}
+
+	private ContainerSelectionController getSelectionController() {
+		if (mSelectionController == null) {
+			mSelectionController = new ContainerSelectionController();
+			registerSelectionListeners();
+		}
+		return mSelectionController;
+	}
+
+	private void registerSelectionListeners() {
+		final ViewTreeObserver observer = getViewTreeObserver();
+		if (observer != null) {
+			observer.addOnTouchModeChangeListener(mSelectionController);
+		}
+		if (getParent() instanceof ObservableScrollView) {
+			((ObservableScrollView) getParent()).addOnScrollChangedListener(mSelectionController);
+		}
+	}
+
+	private void unregisterSelectionListeners() {
+		final ViewTreeObserver observer = getViewTreeObserver();
+		if (observer != null && observer.isAlive()) {
+			observer.removeOnTouchModeChangeListener(mSelectionController);
+		}
+		if (getParent() instanceof ObservableScrollView) {
+			((ObservableScrollView) getParent()).removeOnScrollChangedListener(mSelectionController);
+		}
+	}
+
+	@Override
+	protected void onAttachedToWindow() {
+		super.onAttachedToWindow();
+
+		if (mSelectionController != null) {
+			registerSelectionListeners();
+		}
+	}
+
+	@Override
+	protected void onDetachedFromWindow() {
+		if (mSelectionController != null) {
+			mSelectionController.hide();
+			unregisterSelectionListeners();
+		}
+		super.onDetachedFromWindow();
+	}
+
+	/**
+	 * Update the spans of the children [first, last] to the selection [start, end). The children
+	 * outside the range are left alone.
+	 */
+	private void selectChildren(int first, int last, int start, int end) {
+		for (int i = Math.max(first, 0); i <= last && i < mTextViews.size(); i++) {
+			SelectableTextView child = mTextViews.get(i);
+			int s = Math.max(start - mTextStarts[i], 0);
+			int e = Math.min(end - mTextStarts[i], child.getText().length());
+
+			SelectionInfo selection = mChildSelections[i];
+			if (e <= s) {
+				if (selection != null) {
+					selection.remove();
+				}
+				continue;
+			}
+
+			if (selection == null) {
+				selection = new SelectionInfo();
+				mChildSelections[i] = selection;
+			}
+			Object span = selection.getSpan();
+			if (!(span instanceof BackgroundColorSpan) ||
+					  ((BackgroundColorSpan) span).getBackgroundColor() != mSelectionColor) {
+				selection.remove();
+				span = new BackgroundColorSpan(mSelectionColor);
+			}
+			// the text of a child may have been replaced since the last selection
+			if (selection.getSpannable() != child.getText()) {
+				selection.remove();
+			}
+			selection.set(child.getText(), span, s, e);
+			selection.select();
+		}
+	}
+
+	/**
+	 * remove the selection from every child
+	 */
+	private void clearChildren() {
+		for (int i = 0; i < mChildSelections.length; i++) {
+			if (mChildSelections[i] != null) {
+				mChildSelections[i].remove();
+			}
+		}
+	}
+
+	/**
+	 * Hit test the raw coordinates against the child under them.
+	 *
+	 * @param x              raw x
+	 * @param y              raw y
+	 * @param previousOffset the global offset the cursor was on
+	 * @return the global offset under (x, y), -1 if there is no child
+	 */
+	private int getHysteresisOffset(int x, int y, int previousOffset) {
+		final int[] coords = mTempCoords;
+		getLocationInWindow(coords);
+
+		int index = getChildForVertical(y - coords[1]);
+		if (index < 0) {
+			return -1;
+		}
+
+		SelectableTextView child = mTextViews.get(index);
+		int length = child.getText().length();
+		int childX = x - coords[0] - child.getLeft() - child.getTotalPaddingLeft();
+		int childY = y - coords[1] - child.getTop() - child.getTotalPaddingTop();
+
+		// the hysteresis only makes sense on the same child, a cursor entering a child comes in
+		// from its first or its last line
+		int previous = previousOffset - mTextStarts[index];
+		if (previous < 0) {
+			previous = 0;
+		}
+		else if (previous > length) {
+			previous = length;
+		}
+
+		int offset = child.getHysteresisOffsetForLayout(childX, childY, previous);
+		if (offset < 0) {
+			return -1;
+		}
+		return mTextStarts[index] + Math.min(offset, length);
+	}
+
+	/**
+	 * the window coordinates of the global offset, see SelectableTextView.getAdjusteStartXY and
+	 * getAdjustedEndXY
+	 *
+	 * @return false if there is no child to place the offset in
+	 */
+	private boolean getXY(int offset, boolean isEnd, int[] coords) {
+		int index = getChildForOffset(offset, isEnd);
+		if (index < 0) {
+			return false;
+		}
+
+		SelectableTextView child = mTextViews.get(index);
+		child.getLocationInWindow(coords);
+		int scroll_x = -coords[0] - child.getTotalPaddingLeft();
+		int scroll_y = -coords[1] - child.getTotalPaddingTop();
+
+		int local = offset - mTextStarts[index];
+		if (isEnd) {
+			child.getAdjustedEndXY(local, scroll_x, scroll_y, coords);
+		}
+		else {
+			child.getAdjusteStartXY(local, scroll_x, scroll_y, coords);
+		}
+		return true;
+	}
+
+
+	/**
+	 * The selection controller of the container, the counterpart of the SelectionCursorController of
+	 * SelectableTextView in global offsets.
+	 */
+	private class ContainerSelectionController implements ViewTreeObserver.OnTouchModeChangeListener,
+			  OnScrollChangedListener, CursorHandle.Owner {
+
+		private CursorHandle mStartHandle;
+		private CursorHandle mEndHandle;
+
+		/**
+		 * the pool the handles were borrowed from, null while the selection is not showing
+		 */
+		private SelectionHandlePool mPool;
+
+		/**
+		 * the global offsets of the start and the end handle, in no particular order
+		 */
+		private int mStart;
+		private int mEnd;
+
+		private boolean mIsShowing;
+
+		public void show(int start, int end) {
+			SelectionHandlePool pool = SelectionHandlePool.get(SelectableTextContainer.this);
+			if (pool == null) {
+				// not in a window, there is nowhere to show the handles
+				return;
+			}
+			if (mIsShowing) {
+				clearChildren();
+			}
+			if (mPool != null && mPool != pool) {
+				mPool.release(this);
+			}
+			pool.acquire(this);
+			mPool = pool;
+			mStartHandle = pool.getStartHandle();
+			mEndHandle = pool.getEndHandle();
+
+			mStart = start;
+			mEnd = end;
+			mIsShowing = true;
+
+			selectChildren(getChildForOffset(getMin(), false), getChildForOffset(getMax(), true),
+					  getMin(), getMax());
+			snapToSelection();
+		}
+
+		public void hide() {
+			if (mIsShowing) {
+				clearChildren();
+				mPool.release(this);
+				mPool = null;
+				mStartHandle = null;
+				mEndHandle = null;
+				mIsShowing = false;
+			}
+		}
+
+		public boolean isShowing() {
+			return mIsShowing;
+		}
+
+		public int getMin() {
+			return Math.min(mStart, mEnd);
+		}
+
+		public int getMax() {
+			return Math.max(mStart, mEnd);
+		}
+
+		/**
+		 * snap the cursors to the current selection
+		 */
+		public void snapToSelection() {
+			if (!mIsShowing) {
+				return;
+			}
+
+			int start = getMin();
+			int end = getMax();
+
+			// find the corresponding handle for the start/end calculated above
+			CursorHandle startHandle = start == mStart ? mStartHandle : mEndHandle;
+			CursorHandle endHandle = startHandle == mStartHandle ? mEndHandle : mStartHandle;
+
+			final int[] coords = mTempCoords;
+			if (getXY(start, false, coords)) {
+				startHandle.showAt(SelectableTextContainer.this, coords[0], coords[1]);
+			}
+			if (getXY(end, true, coords)) {
+				endHandle.showAt(SelectableTextContainer.this, coords[0], coords[1]);
+			}
+		}
+
+		/**
+		 * move the dragged cursor and update the children it crossed
+		 */
+		public void updatePosition(CursorHandle handle, int x, int y) {
+			if (!mIsShowing) {
+				return;
+			}
+
+			int oldOffset = handle == mStartHandle ? mStart : mEnd;
+			int offset = getHysteresisOffset(x, y, oldOffset);
+
+			if (offset >= 0 && offset != oldOffset) {
+				if (handle == mStartHandle) {
+					mStart = offset;
+				}
+				else {
+					mEnd = offset;
+				}
+
+				// the other cursor stays put, so only the characters between the old and the new
+				// offset of the dragged cursor change, even when the cursors cross each other
+				int low = Math.min(oldOffset, offset);
+				int high = Math.max(oldOffset, offset);
+				selectChildren(getChildForOffset(low, false), getChildForOffset(high, true),
+						  getMin(), getMax());
+			}
+
+			handle.pointTo(x, y);
+		}
+
+		@Override
+		public void onDragStarts(CursorHandle handle) {
+			// the texts may have changed since the selection was shown
+			updateIndex();
+		}
+
+		@Override
+		public void onDragMoved(CursorHandle handle, int x, int y, int oldx, int oldy) {
+			updatePosition(handle, x, y);
+		}
+
+		@Override
+		public void onDragEnds(CursorHandle handle) {
+			snapToSelection();
+		}
+
+		@Override
+		public void onHandlesRevoked() {
+			// a view of the window is showing its own selection
+			hide();
+		}
+
+		@Override
+		public void onScrollChanged(ObservableScrollView scrollView, int x, int y, int oldx, int oldy) {
+			snapToSelection();
+		}
+
+		@Override
+		public void onTouchModeChanged(boolean isInTouchMode) {
+			if (!isInTouchMode) {
+				hide();
+			}
+		}
+	}
+}
@@ -23,18 +23,31 @@ package com.zyz.mobile.example;
 
 import android.content.Context;
 import android.graphics.Canvas;
-import android.graphics.drawable.Drawable;
+import android.graphics.Rect;
+import android.text.Editable;
 import android.text.Layout;
+import android.text.NoCopySpan;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.TextUtils;
 import android.text.style.BackgroundColorSpan;
+import android.text.style.MetricAffectingSpan;
 import android.util.AttributeSet;
-import android.view.Gravity;
+import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
+import android.view.ViewConfiguration;
 import android.view.ViewTreeObserver;
-import android.widget.PopupWindow;
 import android.widget.ScrollView;
 import android.widget.TextView;
 
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
 /**
  * User: ray Date: 2013-02-01
  * <p/>
@@ -42,23 +55,200 @@ import android.widget.TextView;
  * functionality have only been tested under the assumption that the parent of the view is a
  * ScrollView.
  * <p/>
- * The functionality WILL PROBABLY breaks if the TextView is not inside a ScrollView.
+ * The functionality WILL PROBABLY breaks if the TextView is not inside a ScrollView, unless the
+ * page mode is enabled (see {@link #setPageMode(boolean)}).
  */
 public class SelectableTextView extends TextView {
 
+	private static final String TAG = "SelectableTextView";
+
+	private static final int DEFAULT_STREAMING_CHUNK_SIZE = 4096;
+
+	/**
+	 * the height of the tiles of the tile cache in dip
+	 */
+	private static final int TILE_HEIGHT_DIP = 256;
+
 	private int mDefaultSelectionColor;
 
+	/**
+	 * the offset and cursor geometry, working on the layout through mLineMetrics. Created by the first
+	 * hit test, most views are never touched.
+	 */
+	private LayoutLineMetrics mLineMetrics;
+	private SelectionGeometry mGeometry;
+
 	/**
 	 * the selection information used by the cursor
 	 */
 	private SelectionInfo mCursorSelection;
 
+	/**
+	 * the generation of the selection to be removed by mRemoveSelectionRunnable
+	 */
+	private int mPendingRemovalGeneration;
+
+	private final Runnable mRemoveSelectionRunnable = new Runnable() {
+		@Override
+		public void run() {
+			if (mCursorSelection.getGeneration() == mPendingRemovalGeneration) {
+				mCursorSelection.remove();
+			}
+		}
+	};
+
+	/**
+	 * the coalesced highlights of the text, created on the first call to addHighlight
+	 */
+	private HighlightCoalescer mHighlights;
 
 	private final int[] mTempCoords = new int[2];
+	private final Rect mTempRect = new Rect();
 
 
 	private OnCursorStateChangedListener mOnCursorStateChangedListener;
 
+	/**
+	 * maps freeform gestures to selections when gesture selection is enabled, null otherwise
+	 */
+	private GestureSelectionTracker mGestureTracker;
+
+	private OnGestureSelectionListener mOnGestureSelectionListener;
+
+	/**
+	 * the highlights added by the last gesture selection, removed by the next one
+	 */
+	private final List<SelectionInfo> mGestureHighlights = new ArrayList<SelectionInfo>();
+
+	/**
+	 * whether a double tap selects a sentence and a triple tap a paragraph
+	 */
+	private boolean mMultiTapEnabled;
+
+	/**
+	 * the sentences and paragraphs of the text, null until the background pass finishes
+	 */
+	private SentenceIndex mSentenceIndex;
+
+	/**
+	 * whether a background pass computing the sentences is running
+	 */
+	private boolean mSentenceIndexPending;
+
+	/**
+	 * the taps of the current multi-tap: their count, where and when the last one went down and
+	 * when it went up
+	 */
+	private int mTapCount;
+	private float mTapX;
+	private float mTapY;
+	private long mTapDownTime;
+	private long mTapUpTime;
+
+	/**
+	 * whether the rest of the touch belongs to a multi-tap that already made its selection
+	 */
+	private boolean mTapConsumed;
+
+	/**
+	 * the offset and tap count of a multi-tap waiting for the sentence index, -1 if none
+	 */
+	private int mPendingTapOffset = -1;
+	private int mPendingTapCount;
+
+	/**
+	 * delivers the offset ranges of the cursor selection, null if no one listens
+	 */
+	private SelectionChangeDispatcher mSelectionChangeDispatcher;
+
+	/**
+	 * records the long presses and the drags of the cursors, null if not recording
+	 */
+	private TouchTraceRecorder mTouchTraceRecorder;
+
+	/**
+	 * whether a magnifier is shown above the cursor being dragged
+	 */
+	private boolean mMagnifierEnabled = true;
+
+	/**
+	 * the tiles of the laid-out text drawn instead of the text, null if disabled
+	 */
+	private TileRenderCache mTileCache;
+
+	/**
+	 * whether spannable text is kept in an IndexedSpannable instead of a CompactSpannable
+	 */
+	private boolean mIndexedSpans;
+
+	/**
+	 * whether the spannable factory has been set. Set during the constructor of TextView, before the
+	 * field initializers of this class run, so it must not have one.
+	 */
+	private boolean mFactorySet;
+
+	/**
+	 * drops the cached advances of mLineMetrics when a span changing the metrics of the text is
+	 * set. Created by the first setText, during the constructor of TextView, so it has no initializer
+	 * either.
+	 */
+	private MetricsWatcher mMetricsWatcher;
+
+	/**
+	 * Watches the spans of the text for the ones that change its metrics. A NoCopySpan, so it stays
+	 * with the text it watches.
+	 */
+	private class MetricsWatcher implements SpanWatcher, NoCopySpan {
+		@Override
+		public void onSpanAdded(Spannable text, Object what, int start, int end) {
+			onSpan(what);
+		}
+
+		@Override
+		public void onSpanRemoved(Spannable text, Object what, int start, int end) {
+			onSpan(what);
+		}
+
+		@Override
+		public void onSpanChanged(Spannable text, Object what, int ostart, int oend, int nstart, int nend) {
+			onSpan(what);
+		}
+
+		private void onSpan(Object what) {
+			// the cache is checked by line bounds only, which such a span may not move
+			if (what instanceof MetricAffectingSpan && mLineMetrics != null) {
+				mLineMetrics.clearCache();
+			}
+		}
+	}
+
+	/**
+	 * whether the text is shown one page at a time instead of being scrolled by a ScrollView
+	 */
+	private boolean mPageMode;
+
+	/**
+	 * the page breaks of the current layout, null until the background pass finishes
+	 */
+	private PageIndex mPageIndex;
+
+	/**
+	 * whether a background pass computing the page breaks is running
+	 */
+	private boolean mPageIndexPending;
+
+	private int mPage;
+
+	/**
+	 * the start offset of the current page, used to find the page again after a re-pagination
+	 */
+	private int mPageStart;
+
+	/**
+	 * the text currently being streamed into the view, null if none
+	 */
+	private StreamingTextLoader mStreamingLoader;
+
 	/**
 	 * DONT ACCESS DIRECTLY, use getSelectionController() instead
 	 */
@@ -86,30 +276,225 @@ public class SelectableTextView extends TextView {
 	private void init() {
 		mCursorSelection = new SelectionInfo();
 
+		// the spannable factory is already set, see setText(CharSequence, BufferType)
+
+		// the selection controller and its listeners are created on the first showSelectionControls,
+		// most views are never long clicked and shouldn't pay for them
+	}
+
+	@Override
+	public void setText(CharSequence text, BufferType type) {
+		if (!mFactorySet) {
+			// TextView's constructor applies the text (e.g. from the layout) before init() runs. Set
+			// the factory first, while the text is still empty, so that the text is converted into a
+			// CompactSpannable and laid out only once.
+			mFactorySet = true;
+			setSpannableFactory(getSpannableFactory());
+		}
+		// a multi-tap waiting for the sentences of the old text must not select in the new one
+		mPendingTapOffset = -1;
+		// whatever replaces the text also replaces the Editable a stream appends to
+		if (mStreamingLoader != null) {
+			mStreamingLoader.cancel();
+		}
+		super.setText(text, type);
+
+		if (mMetricsWatcher == null) {
+			mMetricsWatcher = new MetricsWatcher();
+		}
+		CharSequence current = getText();
+		if (current instanceof Spannable) {
+			((Spannable) current).setSpan(mMetricsWatcher, 0, current.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+		}
+	}
+
+	@Override
+	protected void onTextChanged(CharSequence text, int start, int lengthBefore, int lengthAfter) {
+		super.onTextChanged(text, start, lengthBefore, lengthAfter);
+		// an edit that keeps the bounds of the lines (e.g. a replacement of the same length) would
+		// leave stale advances in the cache
+		if (mLineMetrics != null) {
+			mLineMetrics.clearCache();
+		}
+		if (mSelectionController != null) {
+			mSelectionController.invalidateMagnifier();
+		}
+	}
 
-		mSelectionController = new SelectionCursorController();
+	/**
+	 * get the selection controller, creating it and registering its listeners the first time
+	 *
+	 * @return the selection controller
+	 */
+	private SelectionCursorController getSelectionController() {
+		if (mSelectionController == null) {
+			mSelectionController = new SelectionCursorController();
+			registerSelectionListeners();
+		}
+		return mSelectionController;
+	}
+
+	/**
+	 * snap the cursors to the selection, if the selection controller exists
+	 */
+	private void snapToSelection() {
+		if (mSelectionController != null) {
+			mSelectionController.snapToSelection();
+		}
+	}
 
+	private void registerSelectionListeners() {
 		final ViewTreeObserver observer = getViewTreeObserver();
 		if (observer != null) {
 			observer.addOnTouchModeChangeListener(mSelectionController);
 		}
 
+		// TextView will take care of the color span of the text when it's being scroll by
+		// its parent ScrollView. But the cursors position is not handled. Calling snapToSelection
+		// will move the cursors along with the selection.
+		if (getParent() instanceof ObservableScrollView) {
+			((ObservableScrollView) getParent()).addOnScrollChangedListener(mSelectionController);
+		}
+	}
+
+	private void unregisterSelectionListeners() {
+		final ViewTreeObserver observer = getViewTreeObserver();
+		if (observer != null && observer.isAlive()) {
+			observer.removeOnTouchModeChangeListener(mSelectionController);
+		}
+		if (getParent() instanceof ObservableScrollView) {
+			((ObservableScrollView) getParent()).removeOnScrollChangedListener(mSelectionController);
+		}
 	}
 
 	@Override
 	protected void onAttachedToWindow() {
 		super.onAttachedToWindow();
 
-		// TextView will take care of the color span of the text when it's being scroll by
-		// its parent ScrollView. But the cursors position is not handled. Calling snapToSelection
-		// will move the cursors along with the selection.
-		if (getParent() instanceof ObservableScrollView) {
-			((ObservableScrollView) getParent()).addOnScrollChangedListener(new OnScrollChangedListener() {
-				@Override
-				public void onScrollChanged(ObservableScrollView scrollView, int x, int y, int oldx, int oldy) {
-					mSelectionController.snapToSelection();
-				}
-			});
+		if (mSelectionController != null) {
+			registerSelectionListeners();
+		}
+	}
+
+	@Override
+	protected void onDetachedFromWindow() {
+		if (mSelectionController != null) {
+			mSelectionController.hide();
+			unregisterSelectionListeners();
+		}
+		if (mTileCache != null) {
+			mTileCache.release();
+		}
+		super.onDetachedFromWindow();
+	}
+
+	/**
+	 * Replace the text of the view with the text read from {@code reader}. The text is read in the
+	 * background and appended chunk by chunk, so the first chunk is shown without waiting for the
+	 * rest. The selection can be used while the text is loading.
+	 *
+	 * @param reader the source of the text, closed by the loader
+	 * @return the loader, to track or cancel the load
+	 */
+	public StreamingTextLoader loadText(Reader reader) {
+		return loadText(reader, DEFAULT_STREAMING_CHUNK_SIZE);
+	}
+
+	/**
+	 * @param reader    the source of the text, closed by the loader
+	 * @param chunkSize the maximum number of characters appended per frame
+	 * @return the loader, to track or cancel the load
+	 * @see #loadText(Reader)
+	 */
+	public StreamingTextLoader loadText(Reader reader, int chunkSize) {
+		if (mStreamingLoader != null) {
+			mStreamingLoader.cancel();
+		}
+		hideCursor();
+
+		// the buffer must be Editable to be appended to
+		setText("", BufferType.EDITABLE);
+		mStreamingLoader = new StreamingTextLoader(this, reader, chunkSize);
+		mStreamingLoader.start();
+		return mStreamingLoader;
+	}
+
+	/**
+	 * called by the StreamingTextLoader after a chunk has been appended
+	 */
+	void onTextAppended() {
+		snapToSelection();
+		if (mPendingTapOffset >= 0) {
+			requestSentenceIndex();
+		}
+	}
+
+	/**
+	 * called by the StreamingTextLoader once it's done, successfully or not
+	 */
+	void onStreamingFinished(StreamingTextLoader loader) {
+		if (mStreamingLoader == loader) {
+			mStreamingLoader = null;
+			// let the page index catch up with the appended text
+			invalidate();
+			if (mPendingTapOffset >= 0) {
+				requestSentenceIndex();
+			}
+		}
+	}
+
+	/**
+	 * Keep spannable text in an IndexedSpannable instead of a CompactSpannable. Worth it for a text
+	 * carrying thousands of spans, e.g. the notes of a whole book. The current text is converted,
+	 * its selection and highlights are removed.
+	 *
+	 * @param indexed true to index the spans
+	 */
+	public void setIndexedSpans(boolean indexed) {
+		mIndexedSpans = indexed;
+		setSpannableFactory(getSpannableFactory());
+
+		CharSequence text = getText();
+		if (text instanceof Spannable && !(text instanceof Editable) && (text instanceof IndexedSpannable) != indexed) {
+			hideCursor();
+			removeSelection();
+			clearHighlights();
+			setText(text, BufferType.SPANNABLE);
+		}
+	}
+
+	/**
+	 * @return the factory the view keeps its spannable text with
+	 */
+	Spannable.Factory getSpannableFactory() {
+		return mIndexedSpans ? IndexedSpannable.Factory.getInstance() : CompactSpannable.Factory.getInstance();
+	}
+
+	/**
+	 * Replace the text with a text prepared in the background, see {@link ChapterPrefetcher}. A text
+	 * made by {@link #getSpannableFactory()} is kept without being copied. In page mode, page breaks
+	 * computed for the same width and page height are used instead of computing them again.
+	 *
+	 * @param text      the text
+	 * @param pageIndex the page breaks of a layout of the text, null if none
+	 */
+	void setPreparedText(Spannable text, PageIndex pageIndex) {
+		if (mStreamingLoader != null) {
+			mStreamingLoader.cancel();
+		}
+		hideCursor();
+		setText(text, BufferType.SPANNABLE);
+
+		mPage = 0;
+		mPageStart = 0;
+		if (mPageMode) {
+			scrollTo(getScrollX(), 0);
+			mPageIndex = null;
+			Layout layout = getLayout();
+			if (pageIndex != null && layout != null && layout.getWidth() == pageIndex.getLayout().getWidth()
+					  && pageIndex.getPageHeight() == getPageHeight() && pageIndex.getTextLength() == text.length()) {
+				mPageIndex = pageIndex.rebind(layout);
+			}
 		}
 	}
 
@@ -136,11 +521,19 @@ public class SelectableTextView extends TextView {
 		}
 
 		/* My Note
-         have to create a new one each time instead of using the {@code set} method.
-         if I use set, will mess up the removeSelection function as the content of the
-         reference has changed
+         the selection and its span are reused, a new span is only created when the color
+         changes. A pending removeSelection(delay) doesn't hold on to the selection, it remembers
+         its generation instead, which set() bumps, so it can't remove a later selection.
 		 */
-		mCursorSelection = new SelectionInfo(getText(), new BackgroundColorSpan(color), start, end);
+		Object span = mCursorSelection.getSpan();
+		if (mCursorSelection.getSpannable() != getText()) {
+			mCursorSelection.remove();
+		}
+		if (!(span instanceof BackgroundColorSpan) || ((BackgroundColorSpan) span).getBackgroundColor() != color) {
+			mCursorSelection.remove();
+			span = new BackgroundColorSpan(color);
+		}
+		mCursorSelection.set(getText(), span, start, end);
 		mCursorSelection.select();
 		removeSelection(duration);
 	}
@@ -174,8 +567,18 @@ public class SelectableTextView extends TextView {
 		mCursorSelection.remove();
 	}
 
+	/**
+	 * remove the current selection after the specified time, unless another selection has been set
+	 * by then
+	 *
+	 * @param delay the milliseconds to wait before removing the selection, negative to keep it
+	 */
 	public void removeSelection(int delay) {
-		removeSelection(mCursorSelection, delay);
+		if (delay >= 0) {
+			mPendingRemovalGeneration = mCursorSelection.getGeneration();
+			removeCallbacks(mRemoveSelectionRunnable);
+			postDelayed(mRemoveSelectionRunnable, delay);
+		}
 	}
 
 	/**
@@ -195,37 +598,696 @@ public class SelectableTextView extends TextView {
 		}
 	}
 
-
+
+	/**
+	 * highlight the text between {@code start} and {@code end}. Overlapping highlights are merged
+	 * into disjoint runs, so the text only carries one span per distinct run.
+	 *
+	 * @param color the color of the highlight
+	 * @param start the start offset
+	 * @param end   the end offset
+	 * @return the highlight, to be passed to {@link #removeHighlight(SelectionInfo)}, null if the
+	 *         range is empty once clamped to the text
+	 */
+	public SelectionInfo addHighlight(int color, int start, int end) {
+		// make sure we are not highlighting beyond the text, like setSelection
+		int length = getText().length();
+		int a = Math.max(0, Math.min(start, end));
+		end = Math.min(length, Math.max(start, end));
+		start = a;
+		if (end <= start) {
+			return null;
+		}
+
+		SelectionInfo highlight = new SelectionInfo(getText(), new BackgroundColorSpan(color), start, end);
+		addHighlight(highlight);
+		return highlight;
+	}
+
+	/**
+	 * add the specified highlight. The span of the highlight must be a BackgroundColorSpan and is
+	 * not attached to the text itself.
+	 *
+	 * @param highlight the highlight to add
+	 */
+	public void addHighlight(SelectionInfo highlight) {
+		if (!(getText() instanceof Spannable)) {
+			return;
+		}
+		int min = Math.min(highlight.getStart(), highlight.getEnd());
+		int max = Math.max(highlight.getStart(), highlight.getEnd());
+		if (min < 0 || max > getText().length()) {
+			return;
+		}
+		if (mHighlights == null || mHighlights.getSpannable() != getText()) {
+			// the text has been replaced since, the old runs went with it
+			mHighlights = new HighlightCoalescer((Spannable) getText());
+		}
+		mHighlights.add(highlight);
+	}
+
+	/**
+	 * remove a highlight added by {@link #addHighlight(SelectionInfo)}
+	 *
+	 * @param highlight the highlight to remove
+	 */
+	public void removeHighlight(SelectionInfo highlight) {
+		if (mHighlights != null && mHighlights.getSpannable() == getText()) {
+			mHighlights.remove(highlight);
+		}
+	}
+
+	/**
+	 * remove all the highlights
+	 */
+	public void clearHighlights() {
+		if (mHighlights != null) {
+			mHighlights.clear();
+		}
+	}
+
+	/**
+	 * show the selection cursors and select the text between the specified offset
+	 *
+	 * @param start the start offset
+	 * @param end   the end offset
+	 */
+	public void showSelectionControls(int start, int end) {
+		assert (start >= 0);
+		assert (end >= 0);
+		assert (start < getText().length());
+		assert (end < getText().length());
+
+		if (mTouchTraceRecorder != null) {
+			mTouchTraceRecorder.recordLongPress(start, end);
+		}
+		getSelectionController().show(start, end);
+	}
+
+	/**
+	 * Record the selections shown and the drags of the cursors into a trace, to replay an interaction
+	 * reported from the field.
+	 *
+	 * @param recorder the recorder, null to stop recording
+	 */
+	public void setTouchTraceRecorder(TouchTraceRecorder recorder) {
+		mTouchTraceRecorder = recorder;
+	}
+
+	/**
+	 * @return the current selection information. The same instance is reused for every selection,
+	 *         use {@link SelectionInfo#getGeneration()} to tell two selections apart.
+	 */
+	public SelectionInfo getCursorSelection() {
+		return mCursorSelection;
+	}
+
+	/**
+	 * @return the latest snapshot of the cursor selection, can be called from any thread
+	 * @see SelectionInfo#getSnapshot()
+	 */
+	public SelectionSnapshot getSelectionSnapshot() {
+		return mCursorSelection.getSnapshot();
+	}
+
+
+	/**
+	 * set the OnCursorHiddenListner when then the cursors hide
+	 *
+	 * @param onCursorStateChangedListener the OnCursorVisibilityChangedListener
+	 */
+	public void setOnCursorStateChangedListener(OnCursorStateChangedListener onCursorStateChangedListener) {
+		mOnCursorStateChangedListener = onCursorStateChangedListener;
+	}
+
+	/**
+	 * Enable or disable gesture selection. While enabled, swiping across the text or drawing a lasso
+	 * around it selects the text under the path instead of scrolling. The longest range gets the
+	 * selection cursors, the other ranges are highlighted with the default selection color.
+	 *
+	 * @param enabled true to enable gesture selection
+	 */
+	public void setGestureSelectionEnabled(boolean enabled) {
+		if (!enabled) {
+			mGestureTracker = null;
+		}
+		else if (mGestureTracker == null) {
+			float tolerance = 2 * ViewConfiguration.get(getContext()).getScaledTouchSlop();
+			mGestureTracker = new GestureSelectionTracker(tolerance);
+		}
+	}
+
+	public boolean isGestureSelectionEnabled() {
+		return mGestureTracker != null;
+	}
+
+	/**
+	 * set the listener notified when a gesture selection completes
+	 *
+	 * @param onGestureSelectionListener the listener
+	 */
+	public void setOnGestureSelectionListener(OnGestureSelectionListener onGestureSelectionListener) {
+		mOnGestureSelectionListener = onGestureSelectionListener;
+	}
+
+	/**
+	 * Enable or disable the multi-tap selection. While enabled, a double tap selects the sentence
+	 * under the finger and a triple tap its paragraph, with the selection cursors shown. The
+	 * sentences are found in the background the first time the text is touched.
+	 *
+	 * @param enabled true to enable the multi-tap selection
+	 */
+	public void setMultiTapSelectionEnabled(boolean enabled) {
+		mMultiTapEnabled = enabled;
+		mTapCount = 0;
+		if (!enabled) {
+			mSentenceIndex = null;
+			mPendingTapOffset = -1;
+		}
+	}
+
+	public boolean isMultiTapSelectionEnabled() {
+		return mMultiTapEnabled;
+	}
+
+	@Override
+	public boolean onTouchEvent(MotionEvent event) {
+		if (mMultiTapEnabled && getLayout() != null && onMultiTapEvent(event)) {
+			return true;
+		}
+
+		if (mGestureTracker == null || getLayout() == null) {
+			return super.onTouchEvent(event);
+		}
+
+		switch (event.getAction()) {
+			case MotionEvent.ACTION_DOWN: {
+				hideCursor();
+				mGestureTracker.reset(getLayout());
+				mGestureTracker.addPoint(toLayoutX(event.getX()), toLayoutY(event.getY()));
+				if (getParent() != null) {
+					// don't let the ScrollView steal the gesture
+					getParent().requestDisallowInterceptTouchEvent(true);
+				}
+				break;
+			}
+			case MotionEvent.ACTION_MOVE: {
+				for (int i = 0; i < event.getHistorySize(); i++) {
+					mGestureTracker.addPoint(toLayoutX(event.getHistoricalX(i)), toLayoutY(event.getHistoricalY(i)));
+				}
+				mGestureTracker.addPoint(toLayoutX(event.getX()), toLayoutY(event.getY()));
+
+				// preview the whole covered range until the gesture completes
+				int count = mGestureTracker.getRangeCount();
+				if (count > 0) {
+					int start = mGestureTracker.getRangeStart(0);
+					int end = mGestureTracker.getRangeEnd(count - 1);
+					setSelection(start, end - start);
+				}
+				break;
+			}
+			case MotionEvent.ACTION_UP: {
+				mGestureTracker.addPoint(toLayoutX(event.getX()), toLayoutY(event.getY()));
+				removeSelection();
+				finishGestureSelection();
+				break;
+			}
+			case MotionEvent.ACTION_CANCEL: {
+				removeSelection();
+				break;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Count the taps, and select a sentence on the second one or a paragraph on the third one.
+	 *
+	 * @return true if the event belongs to a multi-tap and must not be handled further
+	 */
+	private boolean onMultiTapEvent(MotionEvent event) {
+		final ViewConfiguration configuration = ViewConfiguration.get(getContext());
+
+		switch (event.getAction()) {
+			case MotionEvent.ACTION_DOWN: {
+				float dx = event.getX() - mTapX;
+				float dy = event.getY() - mTapY;
+				int slop = configuration.getScaledDoubleTapSlop();
+				if (mTapCount > 0 && mTapCount < 3 &&
+						  event.getEventTime() - mTapUpTime <= ViewConfiguration.getDoubleTapTimeout() &&
+						  dx * dx + dy * dy <= slop * slop) {
+					mTapCount++;
+				}
+				else {
+					mTapCount = 1;
+					// the next tap may come soon, have the sentences ready for it
+					requestSentenceIndex();
+				}
+				mTapX = event.getX();
+				mTapY = event.getY();
+				mTapDownTime = event.getEventTime();
+
+				mTapConsumed = mTapCount > 1;
+				if (mTapConsumed) {
+					cancelLongPress();
+					selectForTaps(getPreciseOffset((int) mTapX, (int) mTapY), mTapCount);
+				}
+				return mTapConsumed;
+			}
+			case MotionEvent.ACTION_MOVE: {
+				float dx = event.getX() - mTapX;
+				float dy = event.getY() - mTapY;
+				int slop = configuration.getScaledTouchSlop();
+				if (!mTapConsumed && dx * dx + dy * dy > slop * slop) {
+					// a drag, not a tap
+					mTapCount = 0;
+				}
+				return mTapConsumed;
+			}
+			case MotionEvent.ACTION_UP: {
+				mTapUpTime = event.getEventTime();
+				if (mTapUpTime - mTapDownTime > ViewConfiguration.getLongPressTimeout()) {
+					// a long press, not a tap
+					mTapCount = 0;
+				}
+				boolean consumed = mTapConsumed;
+				mTapConsumed = false;
+				return consumed;
+			}
+			case MotionEvent.ACTION_CANCEL: {
+				mTapCount = 0;
+				boolean consumed = mTapConsumed;
+				mTapConsumed = false;
+				return consumed;
+			}
+		}
+		return mTapConsumed;
+	}
+
+	/**
+	 * Select the sentence (2 taps) or the paragraph (3 taps) at the offset, once the sentence index
+	 * of the current text is ready.
+	 */
+	private void selectForTaps(int offset, int taps) {
+		if (offset < 0) {
+			return;
+		}
+
+		SentenceIndex index = mSentenceIndex;
+		if (index == null || index.getText() != getText() || !index.covers(offset, getText().length())) {
+			// select when the background pass finishes, unless another tap comes first
+			mPendingTapOffset = offset;
+			mPendingTapCount = taps;
+			requestSentenceIndex();
+			return;
+		}
+		mPendingTapOffset = -1;
+
+		int[] range = new int[2];
+		boolean found = taps == 2 ? index.getSentenceAt(offset, range) : index.getParagraphAt(offset, range);
+		int end = Math.min(range[1], getText().length() - 1);
+		if (found && end > range[0]) {
+			showSelectionControls(range[0], end);
+		}
+	}
+
+	/**
+	 * compute the sentences and the paragraphs of the current text in the background
+	 */
+	private void requestSentenceIndex() {
+		final CharSequence text = getText();
+		final int length = text.length();
+		SentenceIndex current = mSentenceIndex;
+		if (current != null && (current.getText() != text || current.getTextLength() > length)) {
+			current = null;
+		}
+		if (mSentenceIndexPending || (current != null && current.getTextLength() == length)) {
+			return;
+		}
+
+		mSentenceIndexPending = true;
+		// an Editable text (e.g. one being streamed) may change on the UI thread, index a copy of it.
+		// Only the part appended since the last pass is copied, the rest of the index is kept.
+		final SentenceIndex previous = text instanceof Editable ? current : null;
+		final CharSequence snapshot;
+		if (text instanceof Editable) {
+			int from = previous == null ? 0 : previous.getResumeOffset();
+			char[] chars = new char[length - from];
+			TextUtils.getChars(text, from, length, chars, 0);
+			snapshot = new String(chars);
+		}
+		else {
+			snapshot = text;
+		}
+		BackgroundExecutor.submit(new Runnable() {
+			@Override
+			public void run() {
+				final SentenceIndex index = previous == null ? SentenceIndex.compute(snapshot) : previous.extend(snapshot);
+				post(new Runnable() {
+					@Override
+					public void run() {
+						mSentenceIndexPending = false;
+						if (!mMultiTapEnabled) {
+							return;
+						}
+						if (text != getText()) {
+							// the text has been replaced meanwhile, a tap on the new one is still waiting
+							if (mPendingTapOffset >= 0) {
+								requestSentenceIndex();
+							}
+							return;
+						}
+						mSentenceIndex = index.rebind(text);
+						// while streaming, a tap on the last paragraph waits for the next chunk
+						if (mPendingTapOffset >= 0 &&
+								  (mStreamingLoader == null || mSentenceIndex.covers(mPendingTapOffset, text.length()))) {
+							selectForTaps(mPendingTapOffset, mPendingTapCount);
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * convert the ranges of the completed gesture into selections
+	 */
+	private void finishGestureSelection() {
+		int count = mGestureTracker.getRangeCount();
+		if (count == 0) {
+			return;
+		}
+
+		final int last = getText().length() - 1;
+		List<SelectionInfo> ranges = new ArrayList<SelectionInfo>(count);
+		int longest = 0;
+		for (int i = 0; i < count; i++) {
+			int start = mGestureTracker.getRangeStart(i);
+			int end = Math.min(mGestureTracker.getRangeEnd(i), last);
+			SelectionInfo range = new SelectionInfo(getText(), new BackgroundColorSpan(mDefaultSelectionColor), start, end);
+			// compare the clamped lengths, the last range may have been cut at the end of the text
+			if (i > 0 && range.getEnd() - range.getStart() > ranges.get(longest).getEnd() - ranges.get(longest).getStart()) {
+				longest = i;
+			}
+			ranges.add(range);
+		}
+
+		// the ranges of the previous gesture are replaced, not piled up
+		for (SelectionInfo highlight : mGestureHighlights) {
+			removeHighlight(highlight);
+		}
+		mGestureHighlights.clear();
+		for (int i = 0; i < count; i++) {
+			if (i != longest) {
+				addHighlight(ranges.get(i));
+				mGestureHighlights.add(ranges.get(i));
+			}
+		}
+		SelectionInfo selection = ranges.get(longest);
+		if (selection.getEnd() > selection.getStart()) {
+			showSelectionControls(selection.getStart(), selection.getEnd());
+		}
+
+		if (mOnGestureSelectionListener != null) {
+			mOnGestureSelectionListener.onGestureSelection(this, ranges);
+		}
+	}
+
+	/**
+	 * Show or not a magnifier above the cursor while it's being dragged.
+	 *
+	 * @param enabled true to show the magnifier
+	 */
+	public void setMagnifierEnabled(boolean enabled) {
+		mMagnifierEnabled = enabled;
+		if (!enabled && mSelectionController != null) {
+			mSelectionController.hideMagnifier();
+		}
+	}
+
+	public boolean isMagnifierEnabled() {
+		return mMagnifierEnabled;
+	}
+
+	/**
+	 * Draw the text from a cache of bitmap tiles rendered in the background, which makes flinging
+	 * over a very tall text cheaper. Tiles are dropped when a span over them changes, and evicted
+	 * least recently drawn first once they take more than the budget. Not used in page mode nor for
+	 * an Editable text.
+	 *
+	 * @param budget the maximum number of bytes taken by the tiles, 0 to disable the cache
+	 */
+	public void setTileCacheBudget(int budget) {
+		if (budget <= 0) {
+			if (mTileCache != null) {
+				mTileCache.release();
+				mTileCache = null;
+			}
+		}
+		else if (mTileCache == null) {
+			int tileHeight = (int) (TILE_HEIGHT_DIP * getResources().getDisplayMetrics().density + 0.5f);
+			mTileCache = new TileRenderCache(this, tileHeight, budget);
+		}
+		else {
+			mTileCache.setBudget(budget);
+		}
+		invalidate();
+	}
+
+	/**
+	 * Enable or disable the page mode. In page mode the view is not meant to be inside a ScrollView,
+	 * it shows one page of whole lines at a time and is turned with {@link #setPage(int)}. The page
+	 * breaks are computed in the background whenever the layout changes.
+	 *
+	 * @param enabled true to show the text page by page
+	 */
+	public void setPageMode(boolean enabled) {
+		if (mPageMode != enabled) {
+			mPageMode = enabled;
+			mPageIndex = null;
+			mPage = 0;
+			mPageStart = 0;
+			scrollTo(getScrollX(), 0);
+			invalidate();
+		}
+	}
+
+	public boolean isPageMode() {
+		return mPageMode;
+	}
+
+	/**
+	 * @return the page breaks of the current layout, null if not in page mode or if they are still
+	 *         being computed
+	 */
+	public PageIndex getPageIndex() {
+		return mPageIndex != null && mPageIndex.getLayout() == getLayout() ? mPageIndex : null;
+	}
+
+	/**
+	 * @return the current page
+	 */
+	public int getPage() {
+		return mPage;
+	}
+
+	/**
+	 * Turn to the specified page. The selection is kept, the cursors follow it and are hidden while
+	 * their offset is not on the page.
+	 *
+	 * @param page the page
+	 * @return true if the page was turned, false if the page doesn't exist or the page breaks are not
+	 *         available yet
+	 */
+	public boolean setPage(int page) {
+		PageIndex index = getPageIndex();
+		if (index == null || page < 0 || page >= index.getPageCount()) {
+			return false;
+		}
+
+		mPage = page;
+		mPageStart = index.getStart(page);
+		scrollTo(getScrollX(), index.getTop(page));
+		invalidate();
+		snapToSelection();
+		return true;
+	}
+
+	public boolean nextPage() {
+		return setPage(mPage + 1);
+	}
+
+	public boolean previousPage() {
+		return setPage(mPage - 1);
+	}
+
+	/**
+	 * @return the height available for the text on a page
+	 */
+	private int getPageHeight() {
+		return getHeight() - getTotalPaddingTop() - getTotalPaddingBottom();
+	}
+
+	/**
+	 * compute the page breaks of the current layout in the background
+	 */
+	private void requestPageIndex() {
+		final Layout layout = getLayout();
+		final int pageHeight = getPageHeight();
+		// the layout of a streaming text is modified on the UI thread, it can't be read in the background
+		if (mPageIndexPending || mStreamingLoader != null || layout == null || pageHeight <= 0) {
+			return;
+		}
+
+		mPageIndexPending = true;
+		BackgroundExecutor.submit(new Runnable() {
+			@Override
+			public void run() {
+				PageIndex computed = null;
+				try {
+					computed = PageIndex.compute(layout, pageHeight);
+				}
+				catch (RuntimeException e) {
+					// the DynamicLayout has been reflowed on the UI thread while it was read
+					Log.w(TAG, "unable to compute the page index", e);
+				}
+				finally {
+					final PageIndex index = computed;
+					post(new Runnable() {
+						@Override
+						public void run() {
+							mPageIndexPending = false;
+							if (index != null && mPageMode && layout == getLayout() &&
+									  index.getTextLength() == getText().length()) {
+								mPageIndex = index;
+								setPage(index.getPageForOffset(mPageStart));
+							}
+							// draw again, which will start another pass if the layout changed meanwhile
+							invalidate();
+						}
+					});
+				}
+			}
+		});
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		if (mPageMode) {
+			Layout layout = getLayout();
+			if (layout != null && (mPageIndex == null || mPageIndex.getLayout() != layout ||
+					  mPageIndex.getPageHeight() != getPageHeight() ||
+					  mPageIndex.getTextLength() != getText().length())) {
+				requestPageIndex();
+			}
+
+			PageIndex index = getPageIndex();
+			if (index != null) {
+				// don't show the partial line that belongs to the next page
+				int top = getScrollY() + getTotalPaddingTop();
+				canvas.save();
+				canvas.clipRect(getScrollX(), top, getScrollX() + getWidth(), top + index.getHeight(mPage));
+				super.onDraw(canvas);
+				canvas.restore();
+				return;
+			}
+		}
+
+		Layout layout = getLayout();
+		if (mTileCache != null && !mPageMode && layout != null && !(getText() instanceof Editable)) {
+			// what TextView.onDraw would do before drawing the layout, the tiles copy this paint
+			getPaint().setColor(getCurrentTextColor());
+			getPaint().drawableState = getDrawableState();
+
+			int left = getTotalPaddingLeft();
+			int top = getTotalPaddingTop();
+			canvas.save();
+			canvas.clipRect(getScrollX() + left, getScrollY() + top,
+					  getScrollX() + getWidth() - getTotalPaddingRight(), getScrollY() + getHeight() - getTotalPaddingBottom());
+			canvas.translate(left, top);
+			mTileCache.draw(canvas, layout);
+			canvas.restore();
+			return;
+		}
+		super.onDraw(canvas);
+	}
+
 	/**
-	 * show the selection cursors and select the text between the specified offset
+	 * Get the range of the text that is on the screen, i.e. the lines visible in the parent
+	 * ScrollView or the current page in page mode.
 	 *
-	 * @param start the start offset
-	 * @param end   the end offset
+	 * @param range receives the start and the end (exclusive) offsets
+	 * @return false if there is no layout yet or the view is not visible
 	 */
-	public void showSelectionControls(int start, int end) {
-		assert (start >= 0);
-		assert (end >= 0);
-		assert (start < getText().length());
-		assert (end < getText().length());
+	public boolean getVisibleRange(int[] range) {
+		Layout layout = getLayout();
+		if (layout == null) {
+			return false;
+		}
+
+		if (mPageMode) {
+			PageIndex index = getPageIndex();
+			if (index == null) {
+				return false;
+			}
+			range[0] = index.getStart(mPage);
+			range[1] = index.getEnd(mPage);
+			return true;
+		}
 
-		mSelectionController.show(start, end);
+		final Rect rect = mTempRect;
+		if (!getLocalVisibleRect(rect)) {
+			return false;
+		}
+		range[0] = layout.getLineStart(layout.getLineForVertical(rect.top - getTotalPaddingTop()));
+		range[1] = layout.getLineEnd(layout.getLineForVertical(rect.bottom - getTotalPaddingTop()));
+		return true;
 	}
 
 	/**
-	 * @return the current selection information
+	 * @param offset the offset
+	 * @return true if the offset is visible, i.e. always unless in page mode and the offset is not on
+	 *         the current page
 	 */
-	public SelectionInfo getCursorSelection() {
-		return mCursorSelection;
+	private boolean isOffsetOnPage(int offset) {
+		PageIndex index = getPageIndex();
+		return !mPageMode || index == null || index.getPageForOffset(offset) == mPage;
 	}
 
+	/**
+	 * Set the listener notified with the offset range of the cursor selection whenever it changes.
+	 * Unlike {@link OnCursorStateChangedListener#onPositionChanged}, which fires for every move of a
+	 * cursor, the changes are coalesced: see {@link SelectionChangeDispatcher}.
+	 *
+	 * @param listener the listener, null to remove it
+	 * @param executor where to call the listener, null for the UI thread
+	 * @param debounce the milliseconds the selection must stay unchanged before being delivered
+	 * @param throttle the maximum milliseconds between two deliveries while the cursors keep
+	 *                 moving, 0 to only deliver once they stop
+	 */
+	public void setOnSelectionChangedListener(SelectionChangeDispatcher.OnSelectionChangedListener listener,
+	                                          Executor executor, long debounce, long throttle) {
+		if (mSelectionChangeDispatcher != null) {
+			mSelectionChangeDispatcher.cancel();
+		}
+		mSelectionChangeDispatcher = listener == null ? null :
+				  new SelectionChangeDispatcher(this, listener, executor, debounce, throttle);
+	}
 
 	/**
-	 * set the OnCursorHiddenListner when then the cursors hide
+	 * report the current state of the cursor selection to the selection change listener
 	 *
-	 * @param onCursorStateChangedListener the OnCursorVisibilityChangedListener
+	 * @param showing whether the cursors are showing
 	 */
-	public void setOnCursorStateChangedListener(OnCursorStateChangedListener onCursorStateChangedListener) {
-		mOnCursorStateChangedListener = onCursorStateChangedListener;
+	private void dispatchSelectionChanged(boolean showing) {
+		if (mSelectionChangeDispatcher != null) {
+			if (showing) {
+				mSelectionChangeDispatcher.onSelectionChanged(mCursorSelection.getStart(), mCursorSelection.getEnd());
+			}
+			else {
+				mSelectionChangeDispatcher.onSelectionChanged(-1, -1);
+			}
+		}
 	}
 
 	/**
@@ -234,6 +1296,13 @@ public class SelectableTextView extends TextView {
 	private int getScrollYInternal() {
 		int y = this.getScrollY();
 
+		// in page mode the view scrolls itself to the origin of the page
+		if (mPageMode) {
+			final int[] coords = mTempCoords;
+			getLocationInWindow(coords);
+			return y - coords[1] - getTotalPaddingTop();
+		}
+
 		// a TextView inside a ScrollView is not scrolled, so getScrollY() returns 0.
 		// We must use getScrollY() from the ScrollView instead
 		if (this.getParent() instanceof ScrollView) {
@@ -265,6 +1334,12 @@ public class SelectableTextView extends TextView {
 	private int getScrollXInternal() {
 		int x = this.getScrollX();
 
+		if (mPageMode) {
+			final int[] coords = mTempCoords;
+			getLocationInWindow(coords);
+			return x - coords[0] - getTotalPaddingLeft();
+		}
+
 		// a TextView inside a ScrollView is not scrolled, so getScrollX() returns 0.
 		// We must use getScrollX() from the ScrollView instead
 		if (this.getParent() instanceof ScrollView) {
@@ -280,6 +1355,39 @@ public class SelectableTextView extends TextView {
 		return x;
 	}
 
+	/**
+	 * bind the selection geometry to the current layout
+	 *
+	 * @return the geometry, null if there is no layout
+	 */
+	private SelectionGeometry getGeometry() {
+		Layout layout = getLayout();
+		if (layout == null) {
+			return null;
+		}
+		if (mGeometry == null) {
+			mLineMetrics = new LayoutLineMetrics();
+			mGeometry = new SelectionGeometry(mLineMetrics);
+		}
+		mLineMetrics.setLayout(layout);
+		return mGeometry;
+	}
+
+	/**
+	 * convert an x coordinate relative to this TextView into the coordinate space of its layout
+	 */
+	private int toLayoutX(float x) {
+		return (int) x - getTotalPaddingLeft() + getScrollX();
+	}
+
+	/**
+	 * convert a y coordinate relative to this TextView into the coordinate space of its layout. In
+	 * page mode the view scrolls itself to the page shown.
+	 */
+	private int toLayoutY(float y) {
+		return (int) y - getTotalPaddingTop() + getScrollY();
+	}
+
 	/**
 	 * Gets the character offset of (x, y). If (x, y) lies on the right half of the character, it
 	 * returns the offset of the next character. If (x, y) lies on the left half of the character, it
@@ -290,15 +1398,8 @@ public class SelectableTextView extends TextView {
 	 * @return the offset at (x,y), -1 if error occurs
 	 */
 	public int getOffset(int x, int y) {
-		Layout layout = getLayout();
-		int offset = -1;
-
-		if (layout != null) {
-			int topVisibleLine = layout.getLineForVertical(y);
-			offset = layout.getOffsetForHorizontal(topVisibleLine, x);
-		}
-
-		return offset;
+		SelectionGeometry geometry = getGeometry();
+		return geometry == null ? -1 : geometry.getOffset(toLayoutX(x), toLayoutY(y));
 	}
 
 	/**
@@ -311,20 +1412,62 @@ public class SelectableTextView extends TextView {
 	 * @see {@link #getOffset(int, int)}
 	 */
 	public int getPreciseOffset(int x, int y) {
-		Layout layout = getLayout();
+		SelectionGeometry geometry = getGeometry();
+		return geometry == null ? -1 : geometry.getPreciseOffset(toLayoutX(x), toLayoutY(y));
+	}
 
-		if (layout != null) {
-			int topVisibleLine = layout.getLineForVertical(y);
-			int offset = layout.getOffsetForHorizontal(topVisibleLine, x);
+	/**
+	 * Batch version of {@link #getOffset(int, int)} and {@link #getPreciseOffset(int, int)} for
+	 * streams of points (e.g. stylus strokes). Consecutive points usually stay on the same line or
+	 * move to a neighbouring line, so the line of the previous point is reused instead of searching
+	 * the layout again for every point. No allocation is made.
+	 *
+	 * @param xs      x coordinates relative to this TextView
+	 * @param ys      y coordinates relative to this TextView
+	 * @param count   the number of points to map
+	 * @param precise true to map like getPreciseOffset, false to map like getOffset
+	 * @param offsets receives the offset of each point, -1 if there is no layout
+	 * @return the number of offsets written
+	 */
+	public int getOffsets(float[] xs, float[] ys, int count, boolean precise, int[] offsets) {
+		assert (xs.length >= count && ys.length >= count && offsets.length >= count);
 
-			int offset_x = (int) layout.getPrimaryHorizontal(offset);
-			if (offset_x > x) {
-				return layout.getOffsetToLeftOf(offset);
-			}
+		SelectionGeometry geometry = getGeometry();
+		if (geometry == null) {
+			Arrays.fill(offsets, 0, count, -1);
+			return count;
+		}
+
+		int line = -1;
+		for (int i = 0; i < count; i++) {
+			line = geometry.getLineForVertical(toLayoutY(ys[i]), line);
+			offsets[i] = geometry.getOffsetForLine(line, toLayoutX(xs[i]), precise);
+		}
+		return count;
+	}
+
+	/**
+	 * same as {@link #getOffsets(float[], float[], int, boolean, int[])} for integer coordinates
+	 */
+	public int getOffsets(int[] xs, int[] ys, int count, boolean precise, int[] offsets) {
+		assert (xs.length >= count && ys.length >= count && offsets.length >= count);
+
+		SelectionGeometry geometry = getGeometry();
+		if (geometry == null) {
+			Arrays.fill(offsets, 0, count, -1);
+			return count;
+		}
+
+		int line = -1;
+		for (int i = 0; i < count; i++) {
+			line = geometry.getLineForVertical(toLayoutY(ys[i]), line);
+			offsets[i] = geometry.getOffsetForLine(line, toLayoutX(xs[i]), precise);
 		}
-		return getOffset(x, y);
+		return count;
 	}
 
+
+
 	////////////////////////////////////////////////
 	// copied & modified from Android source code //
 	////////////////////////////////////////////////
@@ -378,92 +1521,24 @@ public class SelectableTextView extends TextView {
 	 * @return offset of the specified (x,y)
 	 */
 	private int getHysteresisOffset(int x, int y, int previousOffset) {
-		final Layout layout = getLayout();
-		if (layout == null) return -1;
-
-        
-		y += getScrollYInternal();
-		x += getScrollXInternal();
-        
-		int line = getLayout().getLineForVertical(y);
-        
-		// The "HACK BLOCK"S in this function is required because of how Android Layout for
-		// TextView works - if 'offset' equals to the last character of a line, then
-		//
-		// * getLineForOffset(offset) will result the NEXT line
-		// * getPrimaryHorizontal(offset) will return 0 because the next insertion point is on the next line
-		// * getOffsetForHorizontal(line, x) will not return the last offset of a line no matter where x is
-		// These are highly undesired and is worked around with the HACK BLOCK
-		//
-		// @see Moon+ Reader/Color Note - see how it can't select the last character of a line unless you move
-		// the cursor to the beginning of the next line.
-		//
-		////////////////////HACK BLOCK////////////////////////////////////////////////////
-		if (isEndOfLineOffset(previousOffset)) {
-			// we have to minus one from the offset so that the code below to find
-			// the previous line can work correctly.
-			int left = (int) layout.getPrimaryHorizontal(previousOffset - 1);
-			int right = (int) layout.getLineRight(line);
-			int threshold = (right - left) / 2; // half the width of the last character
-			if (x > right - threshold) {
-				previousOffset -= 1;
-			}
-		}
-		///////////////////////////////////////////////////////////////////////////////////
-
-		final int previousLine = layout.getLineForOffset(previousOffset);
-		final int previousLineTop = layout.getLineTop(previousLine);
-		final int previousLineBottom = layout.getLineBottom(previousLine);
-		final int hysteresisThreshold = (previousLineBottom - previousLineTop) / 2;
-
-		// If new line is just before or after previous line and y position is less than
-		// hysteresisThreshold away from previous line, keep cursor on previous line.
-		if (((line == previousLine + 1) && ((y - previousLineBottom) < hysteresisThreshold)) ||
-            ((line == previousLine - 1) && ((previousLineTop - y) < hysteresisThreshold)))
-		{
-			line = previousLine;
-		}
-
-		int offset = layout.getOffsetForHorizontal(line, x);
-
-
-		// This allow the user to select the last character of a line without moving the
-		// cursor to the next line. (As Layout.getOffsetForHorizontal does not return the
-		// offset of the last character of the specified line)
-		//
-		// But this function will probably get called again immediately, must decrement the offset
-		// by 1 to compensate for the change made below. (see previous HACK BLOCK)
-		/////////////////////HACK BLOCK///////////////////////////////////////////////////
-		if (offset < getText().length() - 1) {
-			if (isEndOfLineOffset(offset + 1)) {
-				int left = (int) layout.getPrimaryHorizontal(offset);
-				int right = (int) layout.getLineRight(line);
-				int threshold = (right - left) / 2; // half the width of the last character
-				if (x > right - threshold) {
-					offset += 1;
-				}
-			}
-		}
-		//////////////////////////////////////////////////////////////////////////////////
+		if (getLayout() == null) return -1;
 
-		return offset;
+		return getHysteresisOffsetForLayout(x + getScrollXInternal(), y + getScrollYInternal(),
+				  previousOffset);
 	}
 
-
 	/**
-	 * Checks whether the specified offset is at the end of a line.
-	 * <p/>
-	 * PRECONDITION: assumes layout exists and is valid
+	 * Same as getHysteresisOffset but the coordinates are already relative to the layout, so that a
+	 * parent moving a cursor across several views can hit test the view under the cursor.
 	 *
-	 * @param offset the offset to check
-	 * @return true if the offset is at the end of a line, false otherwise.
+	 * @param x              x relative to the layout
+	 * @param y              y relative to the layout
+	 * @param previousOffset previous offset
+	 * @return offset of the specified (x,y), -1 if there is no layout
 	 */
-	private boolean isEndOfLineOffset(int offset) {
-		if (offset > 0) {
-			return getLayout().getLineForOffset(offset) ==
-					  getLayout().getLineForOffset(offset - 1) + 1;
-		}
-		return false;
+	int getHysteresisOffsetForLayout(int x, int y, int previousOffset) {
+		SelectionGeometry geometry = getGeometry();
+		return geometry == null ? -1 : geometry.getHysteresisOffset(x, y, previousOffset);
 	}
 
 	////////////////////////////////////////////////
@@ -487,28 +1562,6 @@ public class SelectableTextView extends TextView {
 		return getLayout().getOffsetForHorizontal(line, x);
 	}
 
-	/**
-	 * get the (x,y) screen coordinates from the specified offset.
-	 *
-	 * @param offset   the offset
-	 * @param scroll_x the horizontal scroll distance to take away
-	 * @param scroll_y the horizontal scroll distance to take away
-	 * @param coords   the returned x, y coordinate array, must have a length of 2
-	 */
-	private void getXY(int offset, int scroll_x, int scroll_y, int[] coords) {
-		assert (coords.length >= 2);
-
-		coords[0] = coords[1] = -1;
-		Layout layout = getLayout();
-
-		if (layout != null) {
-			int line = layout.getLineForOffset(offset);
-			int base = layout.getLineBottom(line);
-
-			coords[0] = (int) layout.getPrimaryHorizontal(offset) - scroll_x; // x
-			coords[1] = base - scroll_y; // y
-		}
-	}
 
 	/**
 	 * Get the (x,y) screen coordinate from the specified offset. If the specified offset is beyond the
@@ -519,21 +1572,12 @@ public class SelectableTextView extends TextView {
 	 * @param scroll_y the horizontal scroll distance to take away
 	 * @param coords   the returned x, y coordinate array, muust have a length of 2
 	 */
-	private void getAdjusteStartXY(int offset, int scroll_x, int scroll_y, int[] coords) {
-		if (offset < getText().length()) {
-			final Layout layout = getLayout();
-			if (layout != null) {
-				if (isEndOfLineOffset(offset + 1)) {
-					float a = layout.getPrimaryHorizontal(offset);
-					float b = layout.getLineRight(layout.getLineForOffset(offset));
-					if (a == b) {
-						// this means the we encounter a new line character, i think.
-						offset += 1;
-					}
-				}
-			}
+	void getAdjusteStartXY(int offset, int scroll_x, int scroll_y, int[] coords) {
+		coords[0] = coords[1] = -1;
+		SelectionGeometry geometry = getGeometry();
+		if (geometry != null) {
+			geometry.getAdjustedStartXY(offset, scroll_x, scroll_y, coords);
 		}
-		getXY(offset, scroll_x, scroll_y, coords);
 	}
 
 	/**
@@ -546,30 +1590,18 @@ public class SelectableTextView extends TextView {
 	 * @param scroll_y the horizontal scroll distance to take away
 	 * @param coords   the returned x, y coordinate array, must have a length of 2
 	 */
-	private void getAdjustedEndXY(int offset, int scroll_x, int scroll_y, int[] coords) {
-		if (offset > 0) {
-			final Layout layout = getLayout();
-			if (layout != null) {
-				//if (this_line > prev_line) {
-				if (isEndOfLineOffset(offset)) {
-					// if we are at the end of a line, calculate the X using getLineRight instead of
-					// getPrimaryHorizontal.
-					// (Because getPrimaryHorizontal returns 0 for offset sitting at the end of a line.
-					// getPrimaryHorizontal returns the next insertion point, which will be the next line)
-					int prev_line = layout.getLineForOffset(offset - 1);
-					float right = layout.getLineRight(prev_line);
-					int y = layout.getLineBottom(prev_line);
-					coords[0] = (int) right - scroll_x;
-					coords[1] = y - scroll_y;
-					return;
-				}
-			}
+	void getAdjustedEndXY(int offset, int scroll_x, int scroll_y, int[] coords) {
+		coords[0] = coords[1] = -1;
+		SelectionGeometry geometry = getGeometry();
+		if (geometry != null) {
+			geometry.getAdjustedEndXY(offset, scroll_x, scroll_y, coords);
 		}
-		getXY(offset, scroll_x, scroll_y, coords);
 	}
 
 	public void hideCursor() {
-		mSelectionController.hide();
+		if (mSelectionController != null) {
+			mSelectionController.hide();
+		}
 	}
 
     
@@ -583,28 +1615,36 @@ public class SelectableTextView extends TextView {
 	 * Manages the two cursors that control the selection. Internal used only. For outsider, please use
 	 * SelectionModifier
 	 */
-	private class SelectionCursorController implements ViewTreeObserver.OnTouchModeChangeListener {
+	private class SelectionCursorController implements ViewTreeObserver.OnTouchModeChangeListener,
+			  OnScrollChangedListener, CursorHandle.Owner {
 
 		/**
 		 * The two cursor handle that controls the selection. Note that the two cursors are allowed to
 		 * swap positions and thus the name of the handle has no bearing on the relative position of the
 		 * handle to each other. (e.g. mStartHandle can be positioned leagally at an offset greater than
 		 * the offset mEndHandle is resting on)
+		 * <p/>
+		 * The handles are borrowed from the SelectionHandlePool of the window while the selection is
+		 * showing, and are null otherwise.
 		 */
 		private CursorHandle mStartHandle;
 		private CursorHandle mEndHandle;
 
+		/**
+		 * the pool the handles were borrowed from, null while the selection is not showing
+		 */
+		private SelectionHandlePool mPool;
+
 
 		/**
 		 * whether the selection controller is displaying on the screen
 		 */
 		private boolean mIsShowing;
 
-
-		public SelectionCursorController() {
-			mStartHandle = new CursorHandle(this);
-			mEndHandle = new CursorHandle(this);
-		}
+		/**
+		 * the magnifier of the window while a cursor is being dragged, null otherwise
+		 */
+		private Magnifier mMagnifier;
 
 
 		/**
@@ -628,10 +1668,25 @@ public class SelectableTextView extends TextView {
 				int scroll_x = SelectableTextView.this.getScrollXInternal();
 
 				SelectableTextView.this.getAdjusteStartXY(start, scroll_x, scroll_y, coords);
-				startHandle.pointTo(coords[0], coords[1]);
+				snapHandle(startHandle, start, coords);
 
 				SelectableTextView.this.getAdjustedEndXY(end, scroll_x, scroll_y, coords);
-				endHandle.pointTo(coords[0], coords[1]);
+				snapHandle(endHandle, Math.max(start, end - 1), coords);
+			}
+		}
+
+		/**
+		 * point the handle to the coordinates, hiding it if its offset is on another page
+		 */
+		private void snapHandle(CursorHandle handle, int offset, int[] coords) {
+			if (!mPageMode) {
+				handle.pointTo(coords[0], coords[1]);
+			}
+			else if (SelectableTextView.this.isOffsetOnPage(offset)) {
+				handle.showAt(SelectableTextView.this, coords[0], coords[1]);
+			}
+			else {
+				handle.hide();
 			}
 		}
         
@@ -647,18 +1702,34 @@ public class SelectableTextView extends TextView {
 			int a = Math.min(start, end);
 			int b = Math.max(start, end);
 
+			// take the handles of the window, another view showing a selection will hide it
+			SelectionHandlePool pool = SelectionHandlePool.get(SelectableTextView.this);
+			if (pool == null) {
+				// not in a window, there is nowhere to show the handles
+				return;
+			}
+			if (mPool != null && mPool != pool) {
+				// moved to another window while showing
+				mPool.release(this);
+			}
+			pool.acquire(this);
+			mPool = pool;
+			mStartHandle = pool.getStartHandle();
+			mEndHandle = pool.getEndHandle();
+
 			final int[] coords = mTempCoords;
 			int scroll_y = SelectableTextView.this.getScrollY();
 			int scroll_x = SelectableTextView.this.getScrollX();
 
 			SelectableTextView.this.getAdjusteStartXY(a, scroll_x, scroll_y, coords);
-			mStartHandle.show(coords[0], coords[1]);
+			mStartHandle.show(SelectableTextView.this, coords[0], coords[1], coords);
 
 			SelectableTextView.this.getAdjustedEndXY(b, scroll_x, scroll_y, coords);
-			mEndHandle.show(coords[0], coords[1]);
+			mEndHandle.show(SelectableTextView.this, coords[0], coords[1], coords);
 
 			mIsShowing = true;
 			select(a, b);
+			dispatchSelectionChanged(true);
 
 			if (mOnCursorStateChangedListener != null) {
 				mOnCursorStateChangedListener.onShowCursors(SelectableTextView.this);
@@ -671,10 +1742,14 @@ public class SelectableTextView extends TextView {
 		 */
 		public void hide() {
 			if (mIsShowing) {
+				hideMagnifier();
 				SelectableTextView.this.removeSelection();
-				mStartHandle.hide();
-				mEndHandle.hide();
+				mPool.release(this);
+				mPool = null;
+				mStartHandle = null;
+				mEndHandle = null;
 				mIsShowing = false;
+				dispatchSelectionChanged(false);
                 
 				if (mOnCursorStateChangedListener != null) {
 					mOnCursorStateChangedListener.onHideCursors(SelectableTextView.this);
@@ -702,6 +1777,11 @@ public class SelectableTextView extends TextView {
             SelectableTextView.this.getCursorSelection().getStart() :
             SelectableTextView.this.getCursorSelection().getEnd();
             
+			if (mTouchTraceRecorder != null && getLayout() != null) {
+				// the trace is relative to the text, like getHysteresisOffsetForLayout
+				mTouchTraceRecorder.recordMove(x + getScrollXInternal(), y + getScrollYInternal());
+			}
+
 			int offset = SelectableTextView.this.getHysteresisOffset(x, y, old_offset);
 
 			if (offset != old_offset) {
@@ -713,9 +1793,16 @@ public class SelectableTextView extends TextView {
 					SelectableTextView.this.getCursorSelection().setEnd(offset);
 				}
 				SelectableTextView.this.getCursorSelection().select();
+				dispatchSelectionChanged(true);
 			}
             
 			cursorHandle.pointTo(x, y);
+
+			if (mMagnifier != null) {
+				final int[] coords = mTempCoords;
+				SelectableTextView.this.getLocationInWindow(coords);
+				showMagnifier(offset, x - coords[0] + SelectableTextView.this.getScrollX());
+			}
             
 			if (mOnCursorStateChangedListener != null) {
 				mOnCursorStateChangedListener.onPositionChanged(SelectableTextView.this, x, y, oldx, oldy);
@@ -750,225 +1837,113 @@ public class SelectableTextView extends TextView {
 		}
         
         
-		@Override
-		public void onTouchModeChanged(boolean isInTouchMode) {
-			if (!isInTouchMode) {
-				hide();
-			}
-		}
-	}
-    
-    
-	/**
-	 * represents a single cursor
-	 */
-	private class CursorHandle extends View {
-        
-		/**
-		 * the {@link PopupWindow} containing the cursor drawable
-		 */
-		private final PopupWindow mContainer;
-        
-		/**
-		 * the drawble of the cursor
-		 */
-		private Drawable mDrawable;
-        
-		/**
-		 * whether the user is dragging the cursor
-		 */
-		@SuppressWarnings("unused")
-		private boolean mIsDragging;
-        
-		/**
-		 * the controller that's controlling the cursor
-		 */
-		private SelectionCursorController mController;
-        
-		/**
-		 * the height of the cursor
-		 */
-		private int mHeight;
-        
-		/**
-		 * the width of the cursor
-		 */
-		private int mWidth;
-        
-		/**
-		 * the x coordinate of the "pointer" of the cursor
-		 */
-		private int mHotspotX;
-        
 		/**
-		 * the y coordinate of the "pointer" of the cursor which is usually the top, so it's zero.
+		 * show the magnifier over the line of the offset
+		 *
+		 * @param offset the offset the dragged cursor is on
+		 * @param x      the x coordinate to magnify, relative to the view (scroll included)
 		 */
-		private int mHotspotY;
-        
-        
+		private void showMagnifier(int offset, int x) {
+			Layout layout = SelectableTextView.this.getLayout();
+			if (layout == null) {
+				return;
+			}
+			int line = layout.getLineForOffset(offset);
+			int centerY = SelectableTextView.this.getTotalPaddingTop()
+					  + (layout.getLineTop(line) + layout.getLineBottom(line)) / 2;
+			mMagnifier.show(SelectableTextView.this, getCursorSelection(), x, centerY);
+		}
+
 		/**
-		 * Adjustment to add to the Raw x, y coordinate of the touch position to get the location of where
-		 * the cursor is pointing to
+		 * the text changed, the magnifier must draw it again
 		 */
-		private int mAdjustX;
-		private int mAdjustY;
-        
-		private int mOldX;
-		private int mOldY;
-        
-		public CursorHandle(SelectionCursorController controller) {
-			super(SelectableTextView.this.getContext());
-            
-			mController = controller;
-            
-			mDrawable = getResources().getDrawable(R.drawable.cursor);
-            
-			/* My Note
-             At first I tried using mContainer = new PopupWindow(SelectableTextView.this.getContext())
-             and mContainer.setContentView(this) in the show() method AND FAILED to draw the
-             PopupWindow properly (e.g. PopupWindow can't contain the whole drawable, background
-             of the PopupWindow is not transparent. I think it's because calling
-             new PopupWindow(context) uses the internal's default style which messes up
-			 */
-			mContainer = new PopupWindow(this);
-			// mContainer.setSplitTouchEnabled(true);
-			mContainer.setClippingEnabled(false);
-            
-			/* My Note
-             getIntrinsicWidth() returns the width of the drawable after it has been
-             scaled to the current device's density
-             e.g. if the drawable is a 15 x 20 image and we load the image on a Nexus 4 (which
-             has a density of 2.0), getIntrinsicWidth() shall return 15 * 2 = 30
-			 */
-			mHeight = mDrawable.getIntrinsicHeight();
-			mWidth = mDrawable.getIntrinsicWidth();
-            
-			// the PopupWindow has an initial dimension of (0, 0)
-			// must set the width/height of the popupwindow in order for it to be drawn
-			mContainer.setWidth(mWidth);
-			mContainer.setHeight(mHeight);
-            
-			// this is the location of where the pointer is relative to the cursor itself
-			// if the left and right cursor are different, mHotspotX will need to be calculated
-			// differently for each cursor. Currently, I'm using the same left and right cursor
-			mHotspotX = mWidth / 2;
-			mHotspotY = 0;
-            
-			invalidate();
-		}
-        
-        
-		@Override
-		protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
-			setMeasuredDimension(mWidth, mHeight);
+		public void invalidateMagnifier() {
+			if (mMagnifier != null) {
+				mMagnifier.invalidateCache();
+			}
 		}
-        
-		@Override
-		protected void onDraw(Canvas canvas) {
-			mDrawable.setBounds(0, 0, mWidth, mHeight);
-			mDrawable.draw(canvas);
+
+		public void hideMagnifier() {
+			if (mMagnifier != null) {
+				mMagnifier.hide();
+				mMagnifier = null;
+			}
 		}
-        
+
 		@Override
-		public boolean /*CursorHandle::*/onTouchEvent(MotionEvent event) {
-            
-			int rawX = (int) event.getRawX();
-			int rawY = (int) event.getRawY();
-            
-			switch (event.getAction()) {
-				case MotionEvent.ACTION_DOWN: {
-					// calculate distance from the (x,y) of the finger to where the cursor
-					// points to
-					mAdjustX = mHotspotX - (int) event.getX();
-					mAdjustY = mHotspotY - (int) event.getY();
-					mOldX = mAdjustX + rawX;
-					mOldY = mAdjustY + rawY;
-                    
-					mIsDragging = true;
-					if (SelectableTextView.this.mOnCursorStateChangedListener != null) {
-						SelectableTextView.this.mOnCursorStateChangedListener.onDragStarts(SelectableTextView.this);
-					}
-					break;
-				}
-				case MotionEvent.ACTION_UP:
-				case MotionEvent.ACTION_CANCEL: {
-					mIsDragging = false;
-					mController.snapToSelection();
-					break;
-				}
-				case MotionEvent.ACTION_MOVE: {
-					// calculate the raw (x, y) the cursor is POINTING TO
-					int x = mAdjustX + rawX;
-					int y = mAdjustY + rawY;
-                    
-					mController.updatePosition(this, x, y, mOldX, mOldY);
-                    
-					mOldX = x;
-					mOldY = y;
-					break;
+		public void onDragStarts(CursorHandle handle) {
+			if (mTouchTraceRecorder != null && mIsShowing) {
+				recordDragStarts(handle);
+			}
+
+			if (mMagnifierEnabled && mIsShowing) {
+				mMagnifier = mPool.getMagnifier();
+				mMagnifier.invalidateCache();
+
+				int offset = handle == mStartHandle ?
+						  SelectableTextView.this.getCursorSelection().getStart() :
+						  SelectableTextView.this.getCursorSelection().getEnd();
+				Layout layout = SelectableTextView.this.getLayout();
+				if (layout != null) {
+					int x = (int) layout.getPrimaryHorizontal(offset) + SelectableTextView.this.getTotalPaddingLeft();
+					showMagnifier(offset, x);
 				}
 			}
-			return true; // consume the event
+
+			if (mOnCursorStateChangedListener != null) {
+				mOnCursorStateChangedListener.onDragStarts(SelectableTextView.this);
+			}
 		}
-        
-        
-		public boolean isShowing() {
-			return mContainer.isShowing();
+
+		@Override
+		public void onDragMoved(CursorHandle handle, int x, int y, int oldx, int oldy) {
+			updatePosition(handle, x, y, oldx, oldy);
 		}
-        
+
 		/**
-		 * Show the cursor pointing to the specified point.
-		 *
-		 * @param x the x coordinate of the point relative to the TextView
-		 * @param y the y coordinate of the point relative to the TextView
+		 * record the point the handle starts from, relative to the text
 		 */
-		public void show(int x, int y) {
+		private void recordDragStarts(CursorHandle handle) {
 			final int[] coords = mTempCoords;
-			SelectableTextView.this.getLocationInWindow(coords);
-            
-			coords[0] += x - mHotspotX;
-			coords[1] += y - mHotspotY;
-			mContainer.showAtLocation(SelectableTextView.this, Gravity.NO_GRAVITY, coords[0], coords[1]);
+			if (handle == mStartHandle) {
+				SelectableTextView.this.getAdjusteStartXY(getCursorSelection().getStart(), 0, 0, coords);
+			}
+			else {
+				SelectableTextView.this.getAdjustedEndXY(getCursorSelection().getEnd(), 0, 0, coords);
+			}
+			mTouchTraceRecorder.recordDown(handle == mStartHandle ? TouchTrace.START_HANDLE : TouchTrace.END_HANDLE,
+					  coords[0], coords[1]);
 		}
-        
-		/**
-		 * move the cursor to point the (x,y) location on the screen.
-		 *
-		 * @param x the x coordinate on the screen
-		 * @param y the y coordinate on the screen
-		 */
-		private void pointTo(int x, int y) {
-			if (isShowing()) {
-				mContainer.update(x - mHotspotX, y - mHotspotY, -1, -1);
+
+		@Override
+		public void onDragEnds(CursorHandle handle) {
+			if (mTouchTraceRecorder != null && mIsShowing) {
+				mTouchTraceRecorder.recordUp();
 			}
+			hideMagnifier();
+			snapToSelection();
 		}
-        
-        
-		/**
-		 * hide this cursor
-		 */
-		public void hide() {
-			mIsDragging = false;
-			mContainer.dismiss();
+
+		@Override
+		public void onHandlesRevoked() {
+			// another view of the window is showing a selection
+			hide();
 		}
-        
-		@SuppressWarnings("unused")
-		public void dismiss() {
-			mContainer.dismiss();
-			onDetached();
+
+		@Override
+		public void onScrollChanged(ObservableScrollView scrollView, int x, int y, int oldx, int oldy) {
+			snapToSelection();
 		}
-        
-		private void onDetached() {
-			// hide action windows
-            
-			// This is not used but kept for future reference.
-			// Since no action windows is associate with the cursor, nothing is removed.
-			// I've made the action window a task of the View using SelectableTextView instead of
-			// embedding it in here.
+
+		@Override
+		public void onTouchModeChanged(boolean isInTouchMode) {
+			if (!isInTouchMode) {
+				hide();
+			}
 		}
-        
 	}
-
+    
+    
 	public interface OnCursorStateChangedListener {
 		/**
 		 * What to do when the cursors is hidden from the view
@@ -994,6 +1969,17 @@ public class SelectableTextView extends TextView {
 		public void onPositionChanged(View v, int x, int y, int oldx, int oldy);
 	}
 
+	public interface OnGestureSelectionListener {
+		/**
+		 * What to do when a gesture selection completes
+		 *
+		 * @param v      the view the gesture was drawn on
+		 * @param ranges the selected ranges in text order. The longest one holds the cursors, the
+		 *               others are highlights that can be removed with removeHighlight
+		 */
+		public void onGestureSelection(SelectableTextView v, List<SelectionInfo> ranges);
+	}
+
 }
 
 /*
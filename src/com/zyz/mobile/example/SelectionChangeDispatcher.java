@@ -0,0 +1,196 @@
+/*
+ Copyright (C) 2013 Ray Zhou
+
+ JadeRead is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ JadeRead is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with JadeRead.  If not, see <http://www.gnu.org/licenses/>
+
+ */
+package com.zyz.mobile.example;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Coalesces the changes of the cursor selection of a view into a stream of offset ranges.
+ * <p/>
+ * Changes are reported on the UI thread by the view. A delivery happens once the selection has not
+ * changed for the debounce delay, or, if the throttle interval is set, at most once per interval
+ * while the cursors keep moving. Only the latest range is ever delivered: a delivery still waiting
+ * on a busy executor picks up the latest range when it runs instead of queueing another one, and a
+ * range equal to the one delivered last is dropped. Nothing is allocated per change.
+ * <p/>
+ * The deliveries never overlap, even on an executor with several threads: a single delivery runs
+ * at a time, and it delivers again before it finishes if the range changed meanwhile, so the last
+ * range the listener gets is the latest one.
+ */
+public class SelectionChangeDispatcher {
+
+	public interface OnSelectionChangedListener {
+		/**
+		 * What to do when the selection changes, called on the executor of the dispatcher
+		 *
+		 * @param v     the view
+		 * @param start the start offset of the selection, -1 if the selection was removed
+		 * @param end   the end offset of the selection (exclusive), -1 if the selection was removed
+		 */
+		public void onSelectionChanged(SelectableTextView v, int start, int end);
+	}
+
+	private final SelectableTextView mView;
+	private final OnSelectionChangedListener mListener;
+	private final Executor mExecutor;
+	private final long mDebounce;
+	private final long mThrottle;
+
+	/**
+	 * the latest range reported by the view, UI thread only
+	 */
+	private long mLatest = pack(-1, -1);
+	private long mLastChangeTime;
+	private long mLastDeliveryTime;
+	private boolean mScheduled;
+
+	/**
+	 * the range handed to the executor, and whether a delivery is already waiting or running there
+	 */
+	private volatile long mOutgoing = pack(-1, -1);
+	private final AtomicBoolean mQueued = new AtomicBoolean();
+
+	/**
+	 * the range delivered last, only accessed by the running delivery, which may be on another
+	 * thread than the previous one
+	 */
+	private volatile long mDelivered = pack(-1, -1);
+
+	private volatile boolean mCancelled;
+
+	private final Runnable mFireTask = new Runnable() {
+		@Override
+		public void run() {
+			mScheduled = false;
+			if (mCancelled) {
+				return;
+			}
+			long now = SystemClock.uptimeMillis();
+			long due = getDueTime();
+			if (now < due) {
+				schedule(due - now);
+				return;
+			}
+			mLastDeliveryTime = now;
+			mOutgoing = mLatest;
+			if (!mQueued.getAndSet(true)) {
+				mExecutor.execute(mDeliverTask);
+			}
+		}
+	};
+
+	private final Runnable mDeliverTask = new Runnable() {
+		@Override
+		public void run() {
+			while (!mCancelled) {
+				long range = mOutgoing;
+				if (range != mDelivered) {
+					mDelivered = range;
+					mListener.onSelectionChanged(mView, (int) (range >> 32), (int) range);
+				}
+
+				// a range handed over while delivering didn't queue a delivery, deliver it now unless a
+				// new delivery has been queued since the flag was cleared
+				mQueued.set(false);
+				if (mOutgoing == range || !mQueued.compareAndSet(false, true)) {
+					return;
+				}
+			}
+		}
+	};
+
+	/**
+	 * @param view     the view whose selection is observed
+	 * @param listener the listener
+	 * @param executor where to deliver the changes, null for the UI thread
+	 * @param debounce the milliseconds the selection must stay unchanged before being delivered
+	 * @param throttle the maximum milliseconds between two deliveries while the selection keeps
+	 *                 changing, 0 to only deliver once the changes stop
+	 */
+	public SelectionChangeDispatcher(final SelectableTextView view, OnSelectionChangedListener listener,
+	                                 Executor executor, long debounce, long throttle) {
+		mView = view;
+		mListener = listener;
+		mDebounce = Math.max(0, debounce);
+		mThrottle = Math.max(0, throttle);
+		mExecutor = executor != null ? executor : new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				view.post(command);
+			}
+		};
+	}
+
+	/**
+	 * report the current selection of the view, UI thread only
+	 *
+	 * @param start the start offset, -1 if there is no selection
+	 * @param end   the end offset, -1 if there is no selection
+	 */
+	void onSelectionChanged(int start, int end) {
+		if (mCancelled) {
+			return;
+		}
+		long range = pack(Math.min(start, end), Math.max(start, end));
+		if (range == mLatest) {
+			return;
+		}
+		long now = SystemClock.uptimeMillis();
+		if (!mScheduled) {
+			// the throttle interval starts with the burst, not with the last delivery
+			if (now - mLastChangeTime > mDebounce) {
+				mLastDeliveryTime = now;
+			}
+		}
+		mLatest = range;
+		mLastChangeTime = now;
+		if (!mScheduled) {
+			schedule(getDueTime() - now);
+		}
+	}
+
+	/**
+	 * stop any pending delivery, including one already handed to the executor. The dispatcher
+	 * doesn't deliver anything afterwards.
+	 */
+	void cancel() {
+		mCancelled = true;
+		mView.removeCallbacks(mFireTask);
+		mScheduled = false;
+	}
+
+	private long getDueTime() {
+		long due = mLastChangeTime + mDebounce;
+		if (mThrottle > 0) {
+			due = Math.min(due, mLastDeliveryTime + mThrottle);
+		}
+		return due;
+	}
+
+	private void schedule(long delay) {
+		mScheduled = true;
+		mView.postDelayed(mFireTask, Math.max(0, delay));
+	}
+
+	private static long pack(int start, int end) {
+		return ((long) start << 32) | (end & 0xFFFFFFFFL);
+	}
+}
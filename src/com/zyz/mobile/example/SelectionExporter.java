@@ -0,0 +1,396 @@
+/*
+ Copyright (C) 2013 Ray Zhou
+
+ JadeRead is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ JadeRead is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with JadeRead.  If not, see <http://www.gnu.org/licenses/>
+
+ */
+package com.zyz.mobile.example;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.ClipboardManager;
+import android.text.Editable;
+import android.text.SpannableStringBuilder;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Copies a range of a text to the clipboard, a share target or a Writer without blocking the UI
+ * thread.
+ * <p/>
+ * The range is copied chunk by chunk on the {@link BackgroundExecutor}. Plain text goes through one
+ * reused char buffer straight into the destination, so no copy of the range is made besides the
+ * one the destination needs. An Editable text (e.g. one being streamed in) may be edited on the UI
+ * thread while it is exported, and the spans of any text may be moved there (e.g. by a drag of the
+ * selection), so each chunk of an Editable text or of a styled export is copied on the UI thread,
+ * which takes a fraction of a frame, while everything else still happens in the background.
+ * <p/>
+ * The listener is called on the UI thread. Nothing is called once the export is cancelled.
+ */
+public class SelectionExporter {
+
+	private static final String TAG = "SelectionExporter";
+
+	public static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+
+	/**
+	 * The most characters put in a share intent. The extras of an intent go to the system through a
+	 * binder transaction, whose buffer of about 1 MB is shared by the whole process, and a String
+	 * takes 2 bytes per character there. startActivity fails on a larger text.
+	 */
+	public static final int MAX_SHARE_LENGTH = 128 * 1024;
+
+	private static final int TARGET_TEXT = 0;
+	private static final int TARGET_CLIPBOARD = 1;
+	private static final int TARGET_SHARE = 2;
+	private static final int TARGET_WRITER = 3;
+
+	public interface OnExportListener {
+		/**
+		 * called on the UI thread as the chunks are exported. Calls are coalesced, so not every chunk
+		 * is reported.
+		 *
+		 * @param exported the number of characters exported so far
+		 * @param total    the number of characters to export
+		 */
+		public void onExportProgress(int exported, int total);
+
+		/**
+		 * called on the UI thread once the whole range has been exported
+		 *
+		 * @param result the exported text, null if it was written to a Writer
+		 */
+		public void onExportFinished(CharSequence result);
+
+		/**
+		 * called on the UI thread if the export failed
+		 *
+		 * @param e the error
+		 */
+		public void onExportFailed(IOException e);
+	}
+
+	private final CharSequence mText;
+	private final int mStart;
+	private final int mEnd;
+
+	private int mChunkSize = DEFAULT_CHUNK_SIZE;
+
+	/**
+	 * the most characters the destination takes
+	 */
+	private int mLimit = Integer.MAX_VALUE;
+	private boolean mKeepStyles;
+	private OnExportListener mOnExportListener;
+
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+	private boolean mStarted;
+	private volatile boolean mCancelled;
+	private volatile int mExported;
+	private final AtomicBoolean mProgressPosted = new AtomicBoolean();
+
+	private final Runnable mProgressTask = new Runnable() {
+		@Override
+		public void run() {
+			mProgressPosted.set(false);
+			if (!mCancelled && mOnExportListener != null) {
+				mOnExportListener.onExportProgress(mExported, getTotal());
+			}
+		}
+	};
+
+	/**
+	 * @param text  the text to export from
+	 * @param start the start of the range
+	 * @param end   the end of the range (exclusive)
+	 */
+	public SelectionExporter(CharSequence text, int start, int end) {
+		mText = text;
+		mStart = Math.max(0, Math.min(start, end));
+		mEnd = Math.min(text.length(), Math.max(start, end));
+	}
+
+	/**
+	 * @param chunkSize the number of characters copied at a time
+	 */
+	public void setChunkSize(int chunkSize) {
+		mChunkSize = Math.max(1, chunkSize);
+	}
+
+	/**
+	 * Keep the spans of the text in the result of {@link #toCharSequence()}. The other destinations
+	 * only take plain text and always strip the spans.
+	 *
+	 * @param keepStyles true to keep the spans
+	 */
+	public void setKeepStyles(boolean keepStyles) {
+		mKeepStyles = keepStyles;
+	}
+
+	public void setOnExportListener(OnExportListener onExportListener) {
+		mOnExportListener = onExportListener;
+	}
+
+	/**
+	 * @return the number of characters to export, fewer than the range if the destination can't take
+	 *         all of them
+	 */
+	public int getTotal() {
+		return Math.max(0, Math.min(mEnd - mStart, mLimit));
+	}
+
+	/**
+	 * @return the number of characters exported so far
+	 */
+	public int getExported() {
+		return mExported;
+	}
+
+	/**
+	 * export the range and pass it to {@link OnExportListener#onExportFinished(CharSequence)}
+	 */
+	public void toCharSequence() {
+		start(TARGET_TEXT, null, null, null);
+	}
+
+	/**
+	 * Export the range and put it on the clipboard. Note the clipboard of the system is another
+	 * process, the text is handed to it through a binder transaction limited to about 1 MB, so a
+	 * range of more than a few hundred thousand characters may still be refused by it.
+	 *
+	 * @param context the context to get the clipboard from
+	 */
+	public void toClipboard(Context context) {
+		start(TARGET_CLIPBOARD, context.getApplicationContext(), null, null);
+	}
+
+	/**
+	 * Export the range and offer it to the apps accepting text. The text is put in the intent, which
+	 * goes through a binder transaction limited to about 1 MB, so only the first
+	 * {@link #MAX_SHARE_LENGTH} characters of a longer range are shared (see {@link #getTotal()}). To
+	 * share more, write the range to a file with {@link #toWriter(Writer)} and share the file.
+	 *
+	 * @param context      the context to start the chooser from
+	 * @param chooserTitle the title of the chooser
+	 */
+	public void toShareIntent(Context context, CharSequence chooserTitle) {
+		mLimit = MAX_SHARE_LENGTH;
+		start(TARGET_SHARE, context, chooserTitle, null);
+	}
+
+	/**
+	 * write the range to the specified writer, the writer is closed once the export finishes, fails
+	 * or is cancelled
+	 *
+	 * @param writer the destination
+	 */
+	public void toWriter(Writer writer) {
+		start(TARGET_WRITER, null, null, writer);
+	}
+
+	/**
+	 * stop the export, the listener won't be called anymore
+	 */
+	public void cancel() {
+		mCancelled = true;
+		mHandler.removeCallbacks(mProgressTask);
+	}
+
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+	private void start(final int target, final Context context, final CharSequence chooserTitle,
+	                   final Writer writer) {
+		if (mStarted) {
+			throw new IllegalStateException("the export has already been started");
+		}
+		mStarted = true;
+
+		BackgroundExecutor.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					export(target, context, chooserTitle, writer);
+				}
+				catch (RuntimeException e) {
+					// the executor would swallow it, and the listener would never hear of the export again
+					Log.w(TAG, "the export failed", e);
+					postFailed(new IOException("the export failed: " + e));
+				}
+			}
+		});
+	}
+
+	/**
+	 * copy the range chunk by chunk. Runs on the background thread.
+	 */
+	private void export(int target, Context context, CharSequence chooserTitle, Writer writer) {
+		final boolean styled = mKeepStyles && target == TARGET_TEXT;
+		final int total = getTotal();
+		final int end = mStart + total;
+
+		SpannableStringBuilder spanned = styled ? new SpannableStringBuilder() : null;
+		StringBuilder plain = styled || writer != null ? null : new StringBuilder(total);
+		char[] buffer = styled ? null : new char[Math.min(mChunkSize, total)];
+
+		try {
+			int position = mStart;
+			while (position < end) {
+				if (mCancelled) {
+					return;
+				}
+
+				int next = Math.min(position + mChunkSize, end);
+				copy(position, next, buffer, spanned);
+
+				if (writer != null) {
+					writer.write(buffer, 0, next - position);
+				}
+				else if (plain != null) {
+					plain.append(buffer, 0, next - position);
+				}
+
+				position = next;
+				mExported = position - mStart;
+				if (mProgressPosted.compareAndSet(false, true)) {
+					mHandler.post(mProgressTask);
+				}
+			}
+
+			if (writer != null) {
+				writer.flush();
+			}
+			if (plain != null && end < mEnd && plain.length() > 0 &&
+					  Character.isHighSurrogate(plain.charAt(plain.length() - 1))) {
+				// don't split a surrogate pair where the range was cut
+				plain.setLength(plain.length() - 1);
+			}
+			// the builder itself is the result, toString would copy the whole range again
+			postFinished(target, context, chooserTitle, styled ? spanned : plain);
+		}
+		catch (IOException e) {
+			postFailed(e);
+		}
+		finally {
+			if (writer != null) {
+				try {
+					writer.close();
+				}
+				catch (IOException e) {
+					Log.w(TAG, "unable to close the writer", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * copy text[start, end) into the buffer, or append it with its spans to spanned
+	 */
+	private void copy(final int start, final int end, final char[] buffer, final SpannableStringBuilder spanned)
+			  throws IOException {
+		if (!(mText instanceof Editable) && spanned == null) {
+			copyChunk(start, end, buffer, spanned);
+			return;
+		}
+
+		// the text may be edited and the spans moved on the UI thread, so read them there
+		FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				copyChunk(start, end, buffer, spanned);
+				return null;
+			}
+		});
+		mHandler.post(task);
+		try {
+			task.get();
+		}
+		catch (InterruptedException e) {
+			throw new InterruptedIOException("the export was interrupted");
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private void copyChunk(int start, int end, char[] buffer, SpannableStringBuilder spanned) throws IOException {
+		if (end > mText.length()) {
+			throw new IOException("the text was shortened during the export");
+		}
+		if (spanned != null) {
+			spanned.append(mText, start, end);
+		}
+		else {
+			TextUtils.getChars(mText, start, end, buffer, 0);
+		}
+	}
+
+	private void postFinished(final int target, final Context context, final CharSequence chooserTitle,
+	                          final CharSequence result) {
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (mCancelled) {
+					return;
+				}
+
+				if (target == TARGET_CLIPBOARD) {
+					((ClipboardManager) context.getSystemService(Context.CLIPBOARD_SERVICE)).setText(result);
+				}
+				else if (target == TARGET_SHARE) {
+					Intent intent = new Intent(Intent.ACTION_SEND);
+					intent.setType("text/plain");
+					intent.putExtra(Intent.EXTRA_TEXT, result);
+
+					Intent chooser = Intent.createChooser(intent, chooserTitle);
+					if (!(context instanceof Activity)) {
+						chooser.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+					}
+					context.startActivity(chooser);
+				}
+
+				if (mOnExportListener != null) {
+					mOnExportListener.onExportFinished(result);
+				}
+			}
+		});
+	}
+
+	private void postFailed(final IOException e) {
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (!mCancelled && mOnExportListener != null) {
+					mOnExportListener.onExportFailed(e);
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,290 @@
+/*
+ Copyright (C) 2013 Ray Zhou
+
+ JadeRead is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ JadeRead is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with JadeRead.  If not, see <http://www.gnu.org/licenses/>
+
+ */
+package com.zyz.mobile.example;
+
+/**
+ * The offset and cursor geometry of a selection: hit testing with hysteresis and the position of
+ * the cursors, including the workarounds for the offsets at the end of a wrapped line.
+ * <p/>
+ * Everything is computed from a {@link LineMetrics}, in coordinates relative to the text, and
+ * nothing depends on Android or on the state of a view. SelectableTextView adapts its Layout with a
+ * {@link LayoutLineMetrics} and its scroll; the same code can run on a plain JVM against any other
+ * metrics.
+ */
+public class SelectionGeometry {
+
+	private LineMetrics mMetrics;
+
+	public SelectionGeometry() {
+	}
+
+	public SelectionGeometry(LineMetrics metrics) {
+		mMetrics = metrics;
+	}
+
+	public void setLineMetrics(LineMetrics metrics) {
+		mMetrics = metrics;
+	}
+
+	public LineMetrics getLineMetrics() {
+		return mMetrics;
+	}
+
+	/**
+	 * Gets the character offset of (x, y). If (x, y) lies on the right half of the character, it
+	 * returns the offset of the next character. If (x, y) lies on the left half of the character, it
+	 * returns the offset of this character.
+	 *
+	 * @param x x relative to the text
+	 * @param y y relative to the text
+	 * @return the offset at (x,y)
+	 */
+	public int getOffset(int x, int y) {
+		return mMetrics.getOffsetForHorizontal(mMetrics.getLineForVertical(y), x);
+	}
+
+	/**
+	 * Gets the character offset where (x, y) is pointing to.
+	 *
+	 * @param x x relative to the text
+	 * @param y y relative to the text
+	 * @return the offset at (x, y)
+	 */
+	public int getPreciseOffset(int x, int y) {
+		return getOffsetForLine(mMetrics.getLineForVertical(y), x, true);
+	}
+
+	/**
+	 * the offset of x on the given line, see {@link #getOffset(int, int)} and {@link
+	 * #getPreciseOffset(int, int)}
+	 */
+	public int getOffsetForLine(int line, int x, boolean precise) {
+		int offset = mMetrics.getOffsetForHorizontal(line, x);
+		if (precise) {
+			// the character pointed at is the one before the insertion point, in reading order
+			int horizontal = (int) mMetrics.getPrimaryHorizontal(offset);
+			if (!isRtl(line) && horizontal > x) {
+				return mMetrics.getOffsetToLeftOf(offset);
+			}
+			if (isRtl(line) && horizontal < x && offset > 0) {
+				return offset - 1;
+			}
+		}
+		return offset;
+	}
+
+	/**
+	 * @return true if the paragraph of the line reads right-to-left
+	 */
+	private boolean isRtl(int line) {
+		return mMetrics.getParagraphDirection(line) == LineMetrics.DIR_RIGHT_TO_LEFT;
+	}
+
+	/**
+	 * @return the edge of the line where its text ends, the right edge unless the paragraph reads
+	 *         right-to-left
+	 */
+	public float getLineEndEdge(int line) {
+		return isRtl(line) ? mMetrics.getLineLeft(line) : mMetrics.getLineRight(line);
+	}
+
+	/**
+	 * @param line     the line
+	 * @param x        the horizontal position
+	 * @param lastChar the horizontal position of the last character of the line
+	 * @return true if x is past the middle of the last character of the line
+	 */
+	private boolean isPastLastCharacter(int line, int x, int lastChar) {
+		int end = (int) getLineEndEdge(line);
+		int threshold = Math.abs(end - lastChar) / 2; // half the width of the last character
+		return isRtl(line) ? x < end + threshold : x > end - threshold;
+	}
+
+	/**
+	 * Same as {@link LineMetrics#getLineForVertical(int)} but checks the hinted line and its
+	 * neighbours before falling back to the binary search.
+	 *
+	 * @param metrics the line metrics
+	 * @param y       the vertical position
+	 * @param hint    the line of the previous point, -1 if none
+	 * @return the line at y
+	 */
+	public static int getLineForVertical(LineMetrics metrics, int y, int hint) {
+		if (hint >= 0) {
+			int last = metrics.getLineCount() - 1;
+			for (int line = Math.max(0, hint - 1); line <= Math.min(last, hint + 1); line++) {
+				// the first and the last line extend to infinity, like getLineForVertical
+				if ((line == 0 || y >= metrics.getLineTop(line)) &&
+						  (line == last || y < metrics.getLineBottom(line))) {
+					return line;
+				}
+			}
+		}
+		return metrics.getLineForVertical(y);
+	}
+
+	public int getLineForVertical(int y, int hint) {
+		return getLineForVertical(mMetrics, y, hint);
+	}
+
+	/**
+	 * Get the offset character closest to the specified position. If the resulting offset is too
+	 * close to the previous offset, return the previous offset instead.
+	 *
+	 * @param x              x relative to the text
+	 * @param y              y relative to the text
+	 * @param previousOffset previous offset
+	 * @return offset of the specified (x,y)
+	 */
+	public int getHysteresisOffset(int x, int y, int previousOffset) {
+		final LineMetrics metrics = mMetrics;
+
+		int line = metrics.getLineForVertical(y);
+
+		// The "HACK BLOCK"S in this function is required because of how Android Layout for
+		// TextView works - if 'offset' equals to the last character of a line, then
+		//
+		// * getLineForOffset(offset) will result the NEXT line
+		// * getPrimaryHorizontal(offset) will return 0 because the next insertion point is on the next line
+		// * getOffsetForHorizontal(line, x) will not return the last offset of a line no matter where x is
+		// These are highly undesired and is worked around with the HACK BLOCK
+		//
+		// @see Moon+ Reader/Color Note - see how it can't select the last character of a line unless you move
+		// the cursor to the beginning of the next line.
+		//
+		////////////////////HACK BLOCK////////////////////////////////////////////////////
+		if (isEndOfLineOffset(previousOffset)) {
+			// we have to minus one from the offset so that the code below to find
+			// the previous line can work correctly.
+			if (isPastLastCharacter(line, x, (int) metrics.getPrimaryHorizontal(previousOffset - 1))) {
+				previousOffset -= 1;
+			}
+		}
+		///////////////////////////////////////////////////////////////////////////////////
+
+		final int previousLine = metrics.getLineForOffset(previousOffset);
+		final int previousLineTop = metrics.getLineTop(previousLine);
+		final int previousLineBottom = metrics.getLineBottom(previousLine);
+		final int hysteresisThreshold = (previousLineBottom - previousLineTop) / 2;
+
+		// If new line is just before or after previous line and y position is less than
+		// hysteresisThreshold away from previous line, keep cursor on previous line.
+		if (((line == previousLine + 1) && ((y - previousLineBottom) < hysteresisThreshold)) ||
+            ((line == previousLine - 1) && ((previousLineTop - y) < hysteresisThreshold)))
+		{
+			line = previousLine;
+		}
+
+		int offset = metrics.getOffsetForHorizontal(line, x);
+
+
+		// This allow the user to select the last character of a line without moving the
+		// cursor to the next line. (As Layout.getOffsetForHorizontal does not return the
+		// offset of the last character of the specified line)
+		//
+		// But this function will probably get called again immediately, must decrement the offset
+		// by 1 to compensate for the change made below. (see previous HACK BLOCK)
+		/////////////////////HACK BLOCK///////////////////////////////////////////////////
+		if (offset < metrics.getTextLength() - 1) {
+			if (isEndOfLineOffset(offset + 1)) {
+				if (isPastLastCharacter(line, x, (int) metrics.getPrimaryHorizontal(offset))) {
+					offset += 1;
+				}
+			}
+		}
+		//////////////////////////////////////////////////////////////////////////////////
+
+		return offset;
+	}
+
+	/**
+	 * Checks whether the specified offset is at the end of a line.
+	 *
+	 * @param offset the offset to check
+	 * @return true if the offset is at the end of a line, false otherwise.
+	 */
+	public boolean isEndOfLineOffset(int offset) {
+		if (offset > 0) {
+			return mMetrics.getLineForOffset(offset) == mMetrics.getLineForOffset(offset - 1) + 1;
+		}
+		return false;
+	}
+
+	/**
+	 * get the (x,y) coordinates from the specified offset.
+	 *
+	 * @param offset   the offset
+	 * @param scroll_x the horizontal scroll distance to take away
+	 * @param scroll_y the vertical scroll distance to take away
+	 * @param coords   the returned x, y coordinate array, must have a length of 2
+	 */
+	public void getXY(int offset, int scroll_x, int scroll_y, int[] coords) {
+		int line = mMetrics.getLineForOffset(offset);
+		int base = mMetrics.getLineBottom(line);
+
+		coords[0] = (int) mMetrics.getPrimaryHorizontal(offset) - scroll_x; // x
+		coords[1] = base - scroll_y; // y
+	}
+
+	/**
+	 * Get the (x,y) coordinates from the specified offset. If the specified offset is beyond the end
+	 * of the line, move the offset to the beginning of the next line.
+	 *
+	 * @param offset   the offset
+	 * @param scroll_x the horizontal scroll distance to take away
+	 * @param scroll_y the vertical scroll distance to take away
+	 * @param coords   the returned x, y coordinate array, must have a length of 2
+	 */
+	public void getAdjustedStartXY(int offset, int scroll_x, int scroll_y, int[] coords) {
+		if (offset < mMetrics.getTextLength()) {
+			if (isEndOfLineOffset(offset + 1)) {
+				float a = mMetrics.getPrimaryHorizontal(offset);
+				float b = getLineEndEdge(mMetrics.getLineForOffset(offset));
+				if (a == b) {
+					// this means the we encounter a new line character, i think.
+					offset += 1;
+				}
+			}
+		}
+		getXY(offset, scroll_x, scroll_y, coords);
+	}
+
+	/**
+	 * Get the (x,y) coordinates from the specified offset. If the offset is the at the end of a
+	 * wrapped line, return the (x,y) at the end of that line instead of the (x, y) at the beginning
+	 * of the next line (which is the default behaviour for Android)
+	 *
+	 * @param offset   the offset
+	 * @param scroll_x the horizontal scroll distance to take away
+	 * @param scroll_y the vertical scroll distance to take away
+	 * @param coords   the returned x, y coordinate array, must have a length of 2
+	 */
+	public void getAdjustedEndXY(int offset, int scroll_x, int scroll_y, int[] coords) {
+		if (isEndOfLineOffset(offset)) {
+			// if we are at the end of a line, calculate the X using the end edge of the line (its
+			// right, or its left if it reads right-to-left) instead of getPrimaryHorizontal.
+			// (Because getPrimaryHorizontal returns 0 for offset sitting at the end of a line.
+			// getPrimaryHorizontal returns the next insertion point, which will be the next line)
+			int prev_line = mMetrics.getLineForOffset(offset - 1);
+			coords[0] = (int) getLineEndEdge(prev_line) - scroll_x;
+			coords[1] = mMetrics.getLineBottom(prev_line) - scroll_y;
+			return;
+		}
+		getXY(offset, scroll_x, scroll_y, coords);
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ Copyright (C) 2013 Ray Zhou
+
+ JadeRead is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ JadeRead is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with JadeRead.  If not, see <http://www.gnu.org/licenses/>
+
+ */
+package com.zyz.mobile.example;
+
+import android.graphics.drawable.Drawable;
+import android.view.View;
+
+/**
+ * The single pair of cursor handles of a window.
+ * <p/>
+ * Only one selection can be dragged at a time, so instead of every SelectableTextView building its
+ * own handles, popup windows and cursor drawable, the views of a window borrow the same pair while
+ * they are showing a selection. The handles and the drawable are created the first time a view of
+ * the window shows a selection. Borrowing the handles from another view hides the selection of
+ * that view. The magnifier shown while a handle is dragged is pooled the same way.
+ */
+class SelectionHandlePool {
+
+	private final View mRoot;
+	private CursorHandle mStartHandle;
+	private CursorHandle mEndHandle;
+	private Magnifier mMagnifier;
+	private CursorHandle.Owner mOwner;
+
+	private SelectionHandlePool(View root) {
+		mRoot = root;
+	}
+
+	/**
+	 * Get the pool of the window of the view. A view without a window (not attached yet, or detached
+	 * from its parent, e.g. a recycled row of a ListView) is its own root, so it has no pool. Keep the
+	 * pool the handles were acquired from to release them, the view may be detached meanwhile.
+	 *
+	 * @param view a view
+	 * @return the pool of the window of the view, null if the view is not attached to a window
+	 */
+	static SelectionHandlePool get(View view) {
+		if (view.getWindowToken() == null) {
+			return null;
+		}
+		// kept as a tag of the root view, so that there is one pool per window and it goes away with
+		// the window
+		View root = view.getRootView();
+		SelectionHandlePool pool = (SelectionHandlePool) root.getTag(R.id.selection_handle_pool);
+		if (pool == null) {
+			pool = new SelectionHandlePool(root);
+			root.setTag(R.id.selection_handle_pool, pool);
+		}
+		return pool;
+	}
+
+	/**
+	 * Lend the handles to the specified owner. The previous owner, if any, is told to hide first.
+	 *
+	 * @param owner the new owner
+	 */
+	void acquire(CursorHandle.Owner owner) {
+		if (mOwner != null && mOwner != owner) {
+			mOwner.onHandlesRevoked();
+			release(mOwner);
+		}
+		if (mStartHandle == null) {
+			Drawable drawable = mRoot.getResources().getDrawable(R.drawable.cursor);
+			mStartHandle = new CursorHandle(mRoot.getContext(), drawable);
+			mEndHandle = new CursorHandle(mRoot.getContext(), drawable);
+		}
+		mOwner = owner;
+		mStartHandle.setOwner(owner);
+		mEndHandle.setOwner(owner);
+	}
+
+	/**
+	 * Take the handles back from the specified owner and hide them. Does nothing if the owner has
+	 * already lost the handles to someone else.
+	 *
+	 * @param owner the owner
+	 */
+	void release(CursorHandle.Owner owner) {
+		if (mOwner == owner && mOwner != null) {
+			mOwner = null;
+			mStartHandle.hide();
+			mEndHandle.hide();
+			if (mMagnifier != null) {
+				mMagnifier.hide();
+			}
+			mStartHandle.setOwner(null);
+			mEndHandle.setOwner(null);
+		}
+	}
+
+	boolean isOwner(CursorHandle.Owner owner) {
+		return mOwner == owner;
+	}
+
+	CursorHandle getStartHandle() {
+		return mStartHandle;
+	}
+
+	CursorHandle getEndHandle() {
+		return mEndHandle;
+	}
+
+	/**
+	 * @return the magnifier of the window, created the first time it's asked for
+	 */
+	Magnifier getMagnifier() {
+		if (mMagnifier == null) {
+			mMagnifier = new Magnifier(mRoot.getContext());
+		}
+		return mMagnifier;
+	}
+}
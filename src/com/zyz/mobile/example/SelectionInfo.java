@@ -27,6 +27,9 @@ import android.text.style.CharacterStyle;
 
 /**
  * class to hold the selection information
+ * <p/>
+ * A SelectionInfo is changed on the UI thread. Other threads must read it through
+ * {@link #getSnapshot()}.
  */
 public class SelectionInfo {
     
@@ -34,6 +37,22 @@ public class SelectionInfo {
 	private int mStart;
 	private int mEnd;
 	private Spannable mSpannable;
+
+	/**
+	 * incremented every time the selection is set to a new range
+	 */
+	private int mGeneration;
+
+	/**
+	 * The range as last published for other threads, see {@link #getSnapshot()}. A change copies the
+	 * range here instead of allocating a snapshot, so moving a cursor doesn't allocate. The sequence
+	 * is odd while a change is being copied and is increased by 2 by every change.
+	 */
+	private volatile long mSequence;
+	private volatile Spannable mPublishedSpannable;
+	private volatile int mPublishedStart;
+	private volatile int mPublishedEnd;
+	private volatile int mPublishedGeneration;
     
 	public SelectionInfo() {
 		clear();
@@ -53,8 +72,9 @@ public class SelectionInfo {
     
 	public void select(Spannable text) {
 		if (text != null) {
-			text.removeSpan(mSpan);
-			text.setSpan(mSpan, Math.min(mStart, mEnd), Math.max(mStart, mEnd), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+			// setting the span again moves it, so the span watchers only see the bounds that changed.
+			// exclusive, so that text streamed in right after the selection doesn't extend it
+			text.setSpan(mSpan, Math.min(mStart, mEnd), Math.max(mStart, mEnd), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
 		}
 	}
     
@@ -76,12 +96,15 @@ public class SelectionInfo {
 		mSpannable = null;
 		mStart = 0;
 		mEnd = 0;
+		publish();
 	}
     
 	public void set(Object span, int start, int end) {
+		mGeneration++;
 		mSpan = span;
 		mStart = start;
 		mEnd = end;
+		publish();
 	}
     
 	public void set(CharSequence text, Object span, int start, int end) {
@@ -90,6 +113,50 @@ public class SelectionInfo {
 		}
 		set(span, start, end);
 	}
+
+	/**
+	 * publish the current range to the other threads
+	 */
+	private void publish() {
+		final long sequence = mSequence;
+		mSequence = sequence + 1;
+		mPublishedSpannable = mSpannable;
+		mPublishedStart = mStart;
+		mPublishedEnd = mEnd;
+		mPublishedGeneration = mGeneration;
+		mSequence = sequence + 2;
+	}
+
+	/**
+	 * @return the version of the published range, increased by every change
+	 */
+	long getVersion() {
+		return mSequence >> 1;
+	}
+
+	/**
+	 * Get a snapshot of the latest range of the selection. Unlike the other methods, it can be called
+	 * from any thread: the start and the end of the snapshot always belong to the same range. The
+	 * snapshot is allocated by the caller, the UI thread changing the selection doesn't allocate.
+	 *
+	 * @return the snapshot, never null
+	 */
+	public SelectionSnapshot getSnapshot() {
+		while (true) {
+			final long sequence = mSequence;
+			if ((sequence & 1) == 0) {
+				Spannable spannable = mPublishedSpannable;
+				int start = mPublishedStart;
+				int end = mPublishedEnd;
+				int generation = mPublishedGeneration;
+				if (mSequence == sequence) {
+					return new SelectionSnapshot(this, spannable, start, end, generation, sequence >> 1);
+				}
+			}
+			// the UI thread is in the middle of a change, it takes a few writes
+			Thread.yield();
+		}
+	}
     
 	public CharSequence getSelectedText() {
 		if (mSpannable != null) {
@@ -102,6 +169,19 @@ public class SelectionInfo {
 		}
 		return "";
 	}
+
+	/**
+	 * Prepare an export of the selected text. Unlike getSelectedText, the text is copied in the
+	 * background, which is the way to go for a selection spanning chapters.
+	 *
+	 * @return the exporter, call one of its to* methods to start it
+	 */
+	public SelectionExporter export() {
+		if (mSpannable == null) {
+			return new SelectionExporter("", 0, 0);
+		}
+		return new SelectionExporter(mSpannable, mStart, mEnd);
+	}
     
 	public Object getSpan() {
 		return mSpan;
@@ -128,6 +208,7 @@ public class SelectionInfo {
 	public void setStart(int start) {
 		assert (start >= 0);
 		mStart = start;
+		publish();
 	}
     
 	/**
@@ -146,14 +227,27 @@ public class SelectionInfo {
 	public void setEnd(int end) {
 		assert (end >= 0);
 		mEnd = end;
+		publish();
 	}
     
+	/**
+	 * Get the generation of the selection. It changes each time the selection is {@code set} to a new
+	 * range (but not when the cursors move its start or end), so a reused SelectionInfo can be told
+	 * apart from the selection it held before.
+	 *
+	 * @return the generation of the selection
+	 */
+	public int getGeneration() {
+		return mGeneration;
+	}
+
 	public Spannable getSpannable() {
 		return mSpannable;
 	}
     
 	public void setSpannable(Spannable spannable) {
 		mSpannable = spannable;
+		publish();
 	}
     
 	/**
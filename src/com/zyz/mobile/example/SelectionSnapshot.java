@@ -0,0 +1,125 @@
+/*
+ Copyright (C) 2013 Ray Zhou
+
+ JadeRead is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ JadeRead is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with JadeRead.  If not, see <http://www.gnu.org/licenses/>
+
+ */
+package com.zyz.mobile.example;
+
+/**
+ * An immutable copy of the range of a {@link SelectionInfo}, safe to read from any thread.
+ * <p/>
+ * The SelectionInfo is changed in place on the UI thread, e.g. by every move of a cursor, so a
+ * background thread reading its start and end may see the start of one range and the end of
+ * another. Instead, a background thread gets a consistent range with
+ * {@link SelectionInfo#getSnapshot()}, without locking, and later checks whether it's still the
+ * latest with {@link #isCurrent()}.
+ * <p/>
+ * The text is referenced, not copied. Its characters are only safe to read in the background if
+ * the text is not edited, which holds for the CompactSpannable the view keeps (the spans still
+ * aren't).
+ */
+public final class SelectionSnapshot {
+
+	private final SelectionInfo mOwner;
+	private final CharSequence mText;
+	private final int mStart;
+	private final int mEnd;
+	private final int mGeneration;
+	private final long mVersion;
+
+	SelectionSnapshot(SelectionInfo owner, CharSequence text, int start, int end, int generation,
+	                  long version) {
+		mOwner = owner;
+		mText = text;
+		mStart = start;
+		mEnd = end;
+		mGeneration = generation;
+		mVersion = version;
+	}
+
+	/**
+	 * @return the text the selection is in, null if none
+	 */
+	public CharSequence getText() {
+		return mText;
+	}
+
+	/**
+	 * @return the starting offset, not necessarily smaller than the ending offset
+	 */
+	public int getStart() {
+		return mStart;
+	}
+
+	/**
+	 * @return the ending offset, not necessarily larger than the starting offset
+	 */
+	public int getEnd() {
+		return mEnd;
+	}
+
+	/**
+	 * @return the smaller of the two offsets
+	 */
+	public int getMin() {
+		return Math.min(mStart, mEnd);
+	}
+
+	/**
+	 * @return the larger of the two offsets (exclusive)
+	 */
+	public int getMax() {
+		return Math.max(mStart, mEnd);
+	}
+
+	public boolean isEmpty() {
+		return mStart == mEnd;
+	}
+
+	/**
+	 * @return the {@link SelectionInfo#getGeneration() generation} of the selection when the snapshot
+	 *         was taken
+	 */
+	public int getGeneration() {
+		return mGeneration;
+	}
+
+	/**
+	 * @return the version of the snapshot, increased by every change of the selection
+	 */
+	public long getVersion() {
+		return mVersion;
+	}
+
+	/**
+	 * Check whether the selection has changed since the snapshot was taken, e.g. before delivering
+	 * the result of a lookup. It costs one volatile read.
+	 *
+	 * @return true if the selection hasn't changed since
+	 */
+	public boolean isCurrent() {
+		return mOwner.getVersion() == mVersion;
+	}
+
+	/**
+	 * @return the selected text, a copy unless the text is null or the selection empty
+	 */
+	public CharSequence getSelectedText() {
+		if (mText == null || isEmpty() || getMax() > mText.length()) {
+			return "";
+		}
+		return mText.subSequence(getMin(), getMax());
+	}
+}
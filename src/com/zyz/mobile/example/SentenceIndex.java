@@ -0,0 +1,229 @@
+/*
+ Copyright (C) 2013 Ray Zhou
+
+ JadeRead is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ JadeRead is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with JadeRead.  If not, see <http://www.gnu.org/licenses/>
+
+ */
+package com.zyz.mobile.example;
+
+import java.text.BreakIterator;
+import java.util.Arrays;
+
+/**
+ * The sentence and paragraph starts of a text, for the multi-tap selection of
+ * {@link SelectableTextView}.
+ * <p/>
+ * Immutable once computed, so it can be built on a background thread and handed to the UI thread.
+ * Sentences come from a sentence BreakIterator run on each paragraph, paragraphs end at a new line.
+ * Finding the sentence or the paragraph of an offset is then a binary search.
+ */
+public class SentenceIndex {
+
+	private final CharSequence mText;
+	private final int mTextLength;
+
+	/**
+	 * the start of each sentence, plus the text length as a sentinel. Every paragraph start is also
+	 * a sentence start.
+	 */
+	private final int[] mSentences;
+
+	/**
+	 * the start of each paragraph, plus the text length as a sentinel
+	 */
+	private final int[] mParagraphs;
+
+	private SentenceIndex(CharSequence text, int textLength, int[] sentences, int[] paragraphs) {
+		mText = text;
+		mTextLength = textLength;
+		mSentences = sentences;
+		mParagraphs = paragraphs;
+	}
+
+	/**
+	 * Compute the sentences and the paragraphs of the text. Only reads the text, so it's safe to call
+	 * off the UI thread as long as the text is not edited meanwhile.
+	 *
+	 * @param text the text to index
+	 * @return the index
+	 */
+	public static SentenceIndex compute(CharSequence text) {
+		return compute(text, text, 0, new int[16], 0, new int[16], 0);
+	}
+
+	/**
+	 * Extend the index to a longer text starting with the same characters, e.g. a text being
+	 * streamed. Only the characters from {@link #getResumeOffset()} on are read, the sentences and
+	 * the paragraphs before it are kept.
+	 *
+	 * @param tail the characters of the longer text from getResumeOffset() on, e.g. a copy of them
+	 *             made on the UI thread
+	 * @return the index of the longer text, over the text of this index
+	 */
+	public SentenceIndex extend(CharSequence tail) {
+		final int resume = getResumeOffset();
+		int paragraphCount = Math.max(0, mParagraphs.length - 2);
+		int sentenceCount = Arrays.binarySearch(mSentences, 0, mSentences.length - 1, resume);
+		if (sentenceCount < 0) {
+			sentenceCount = -sentenceCount - 1;
+		}
+		return compute(mText, tail, resume, Arrays.copyOf(mSentences, Math.max(16, mSentences.length)),
+				  sentenceCount, Arrays.copyOf(mParagraphs, Math.max(16, mParagraphs.length)), paragraphCount);
+	}
+
+	/**
+	 * @param owner          the text the index belongs to
+	 * @param text           the characters to index
+	 * @param base           the offset of the first character of text in owner
+	 * @param sentences      the sentence starts before base, with room to grow
+	 * @param sentenceCount  the number of sentence starts before base
+	 * @param paragraphs     the paragraph starts before base, with room to grow
+	 * @param paragraphCount the number of paragraph starts before base
+	 */
+	private static SentenceIndex compute(CharSequence owner, CharSequence text, int base, int[] sentences,
+	                                     int sentenceCount, int[] paragraphs, int paragraphCount) {
+		final int length = text.length();
+
+		BreakIterator iterator = BreakIterator.getSentenceInstance();
+		int start = 0;
+		while (start < length) {
+			int end = start;
+			while (end < length && text.charAt(end) != '\n') {
+				end++;
+			}
+
+			if (paragraphCount + 1 >= paragraphs.length) {
+				paragraphs = Arrays.copyOf(paragraphs, paragraphs.length * 2);
+			}
+			paragraphs[paragraphCount++] = base + start;
+
+			// the new line goes with the last sentence of the paragraph
+			iterator.setText(text.subSequence(start, end).toString());
+			for (int b = iterator.first(); b != BreakIterator.DONE && start + b < end; b = iterator.next()) {
+				if (sentenceCount + 1 >= sentences.length) {
+					sentences = Arrays.copyOf(sentences, sentences.length * 2);
+				}
+				sentences[sentenceCount++] = base + start + b;
+			}
+			if (end == start) {
+				// an empty paragraph is a sentence of its own
+				if (sentenceCount + 1 >= sentences.length) {
+					sentences = Arrays.copyOf(sentences, sentences.length * 2);
+				}
+				sentences[sentenceCount++] = base + start;
+			}
+			start = end + 1;
+		}
+
+		sentences[sentenceCount++] = base + length;
+		paragraphs[paragraphCount++] = base + length;
+		return new SentenceIndex(owner, base + length, Arrays.copyOf(sentences, sentenceCount),
+				  Arrays.copyOf(paragraphs, paragraphCount));
+	}
+
+	/**
+	 * @param text the text to use instead, e.g. the Editable a snapshot was copied from. It must
+	 *             have the same characters.
+	 * @return the same index over the specified text
+	 */
+	public SentenceIndex rebind(CharSequence text) {
+		return new SentenceIndex(text, mTextLength, mSentences, mParagraphs);
+	}
+
+	/**
+	 * @return the text the index was computed from
+	 */
+	public CharSequence getText() {
+		return mText;
+	}
+
+	/**
+	 * @return the length of the text when the index was computed
+	 */
+	public int getTextLength() {
+		return mTextLength;
+	}
+
+	/**
+	 * @return the start of the last paragraph, which a longer text may still continue. The
+	 *         sentences and the paragraphs before it are final.
+	 */
+	public int getResumeOffset() {
+		return mParagraphs.length < 2 ? 0 : mParagraphs[mParagraphs.length - 2];
+	}
+
+	/**
+	 * Whether the sentence and the paragraph of the offset are final in a text that has grown since
+	 * the index was computed, e.g. a text being streamed. They are if the paragraph of the offset
+	 * isn't the last one of the index.
+	 *
+	 * @param offset     the offset
+	 * @param textLength the current length of the text
+	 * @return true if the index can be used for the offset
+	 */
+	public boolean covers(int offset, int textLength) {
+		return textLength == mTextLength || (offset >= 0 && offset < getResumeOffset());
+	}
+
+	public int getSentenceCount() {
+		return mSentences.length - 1;
+	}
+
+	public int getParagraphCount() {
+		return mParagraphs.length - 1;
+	}
+
+	/**
+	 * Find the sentence containing the specified offset, without its trailing white spaces.
+	 *
+	 * @param offset the offset
+	 * @param range  receives the start and the end (exclusive) of the sentence
+	 * @return false if the text is empty
+	 */
+	public boolean getSentenceAt(int offset, int[] range) {
+		return getRange(mSentences, offset, range);
+	}
+
+	/**
+	 * Find the paragraph containing the specified offset, without its trailing white spaces.
+	 *
+	 * @param offset the offset
+	 * @param range  receives the start and the end (exclusive) of the paragraph
+	 * @return false if the text is empty
+	 */
+	public boolean getParagraphAt(int offset, int[] range) {
+		return getRange(mParagraphs, offset, range);
+	}
+
+	private boolean getRange(int[] starts, int offset, int[] range) {
+		if (mTextLength == 0) {
+			return false;
+		}
+		offset = Math.max(0, Math.min(offset, mTextLength - 1));
+
+		int index = Arrays.binarySearch(starts, offset);
+		if (index < 0) {
+			index = -index - 2;
+		}
+		int start = starts[index];
+		int end = starts[index + 1];
+		// only the trailing spaces and the new line are scanned
+		while (end > start + 1 && Character.isWhitespace(mText.charAt(end - 1))) {
+			end--;
+		}
+		range[0] = start;
+		range[1] = end;
+		return true;
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ Copyright (C) 2013 Ray Zhou
+
+ JadeRead is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ JadeRead is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with JadeRead.  If not, see <http://www.gnu.org/licenses/>
+
+ */
+package com.zyz.mobile.example;
+
+import android.text.Spanned;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+
+/**
+ * The spans of a {@link CompactSpannable}: a table of parallel arrays scanned linearly, which is
+ * the fastest there is for a handful of spans. See {@link IndexedSpanTable} for many spans.
+ */
+class SpanTable {
+
+	private static final int START = 0;
+	private static final int END = 1;
+	private static final int FLAGS = 2;
+	private static final int COLUMNS = 3;
+
+	private Object[] mSpans = new Object[0];
+	private int[] mSpanData = new int[0];
+	private int mSpanCount;
+
+	/**
+	 * @return an empty table of the same kind, for a copy of the text
+	 */
+	SpanTable newTable() {
+		return new SpanTable();
+	}
+
+	boolean contains(Object what) {
+		return indexOf(what) >= 0;
+	}
+
+	/**
+	 * add a span that is not in the table
+	 */
+	void add(Object what, int start, int end, int flags) {
+		if (mSpanCount == mSpans.length) {
+			int capacity = Math.max(4, mSpanCount * 2);
+			mSpans = Arrays.copyOf(mSpans, capacity);
+			mSpanData = Arrays.copyOf(mSpanData, capacity * COLUMNS);
+		}
+		mSpans[mSpanCount] = what;
+		mSpanData[mSpanCount * COLUMNS + START] = start;
+		mSpanData[mSpanCount * COLUMNS + END] = end;
+		mSpanData[mSpanCount * COLUMNS + FLAGS] = flags;
+		mSpanCount++;
+	}
+
+	/**
+	 * move a span that is in the table
+	 */
+	void update(Object what, int start, int end, int flags) {
+		int base = indexOf(what) * COLUMNS;
+		mSpanData[base + START] = start;
+		mSpanData[base + END] = end;
+		mSpanData[base + FLAGS] = flags;
+	}
+
+	void remove(Object what) {
+		int index = indexOf(what);
+		if (index < 0) {
+			return;
+		}
+
+		mSpanCount--;
+		System.arraycopy(mSpans, index + 1, mSpans, index, mSpanCount - index);
+		System.arraycopy(mSpanData, (index + 1) * COLUMNS, mSpanData, index * COLUMNS,
+				  (mSpanCount - index) * COLUMNS);
+		mSpans[mSpanCount] = null;
+	}
+
+	int getStart(Object what) {
+		int index = indexOf(what);
+		return index < 0 ? -1 : mSpanData[index * COLUMNS + START];
+	}
+
+	int getEnd(Object what) {
+		int index = indexOf(what);
+		return index < 0 ? -1 : mSpanData[index * COLUMNS + END];
+	}
+
+	int getFlags(Object what) {
+		int index = indexOf(what);
+		return index < 0 ? 0 : mSpanData[index * COLUMNS + FLAGS];
+	}
+
+	/**
+	 * the spans of the specified kind intersecting the query, in the order they were added, higher
+	 * priority first
+	 */
+	@SuppressWarnings("unchecked")
+	<T> T[] getSpans(int queryStart, int queryEnd, Class<T> kind) {
+		if (kind == null) {
+			kind = (Class<T>) Object.class;
+		}
+
+		// count first, so that the result is the only allocation
+		int count = 0;
+		boolean prioritized = false;
+		for (int i = 0; i < mSpanCount; i++) {
+			if (matches(i, queryStart, queryEnd) && kind.isInstance(mSpans[i])) {
+				count++;
+				prioritized |= (mSpanData[i * COLUMNS + FLAGS] & Spanned.SPAN_PRIORITY) != 0;
+			}
+		}
+
+		T[] result = (T[]) Array.newInstance(kind, count);
+		int found = 0;
+		for (int i = 0; i < mSpanCount && found < count; i++) {
+			if (matches(i, queryStart, queryEnd) && kind.isInstance(mSpans[i])) {
+				result[found++] = (T) mSpans[i];
+			}
+		}
+		if (prioritized) {
+			sortByPriority(result);
+		}
+		return result;
+	}
+
+	int nextSpanTransition(int start, int limit, Class kind) {
+		if (kind == null) {
+			kind = Object.class;
+		}
+		for (int i = 0; i < mSpanCount; i++) {
+			if (!kind.isInstance(mSpans[i])) {
+				continue;
+			}
+			int spanStart = mSpanData[i * COLUMNS + START];
+			int spanEnd = mSpanData[i * COLUMNS + END];
+			if (spanStart > start && spanStart < limit) {
+				limit = spanStart;
+			}
+			if (spanEnd > start && spanEnd < limit) {
+				limit = spanEnd;
+			}
+		}
+		return limit;
+	}
+
+	private boolean matches(int index, int queryStart, int queryEnd) {
+		return intersects(mSpanData[index * COLUMNS + START], mSpanData[index * COLUMNS + END],
+				  queryStart, queryEnd);
+	}
+
+	/**
+	 * same rule as SpannableString: an empty query or an empty span matches at the boundaries, a
+	 * non empty span only touching a non empty query doesn't
+	 */
+	static boolean intersects(int start, int end, int queryStart, int queryEnd) {
+		if (start > queryEnd || end < queryStart) {
+			return false;
+		}
+		if (start != end && queryStart != queryEnd) {
+			if (start == queryEnd || end == queryStart) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * stable insertion sort, higher priority first. The result holds few spans.
+	 */
+	private <T> void sortByPriority(T[] spans) {
+		for (int i = 1; i < spans.length; i++) {
+			T span = spans[i];
+			int priority = getFlags(span) & Spanned.SPAN_PRIORITY;
+			int j = i - 1;
+			while (j >= 0 && (getFlags(spans[j]) & Spanned.SPAN_PRIORITY) < priority) {
+				spans[j + 1] = spans[j];
+				j--;
+			}
+			spans[j + 1] = span;
+		}
+	}
+
+	private int indexOf(Object what) {
+		for (int i = mSpanCount - 1; i >= 0; i--) {
+			if (mSpans[i] == what) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
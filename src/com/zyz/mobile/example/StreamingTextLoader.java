@@ -0,0 +1,272 @@
+/*
+ Copyright (C) 2013 Ray Zhou
+
+ JadeRead is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ JadeRead is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with JadeRead.  If not, see <http://www.gnu.org/licenses/>
+
+ */
+package com.zyz.mobile.example;
+
+import android.text.Editable;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams a text into a {@link SelectableTextView} chunk by chunk.
+ * <p/>
+ * The chunks are read on the {@link BackgroundExecutor} and appended to the Editable of the view on
+ * the UI thread, one chunk per frame. The view lays out Spannable text with a DynamicLayout, which
+ * only reflows the paragraph an edit touches, so appending a chunk costs the layout of that chunk
+ * and not of the whole text. Appending at the end doesn't move anything before it, so the current
+ * selection and its cursors stay where they are.
+ * <p/>
+ * Use {@link SelectableTextView#loadText(Reader)} to start one.
+ */
+public class StreamingTextLoader {
+
+	private static final String TAG = "StreamingTextLoader";
+
+	/**
+	 * API 10 has no Choreographer, a chunk is appended about every frame instead
+	 */
+	private static final int FRAME_INTERVAL = 16;
+
+	/**
+	 * the number of chunks read ahead of the UI thread
+	 */
+	private static final int MAX_PENDING_CHUNKS = 4;
+
+	public interface OnLoadListener {
+		/**
+		 * called on the UI thread after a chunk has been appended
+		 *
+		 * @param loaded the number of characters loaded so far
+		 */
+		public void onChunkLoaded(int loaded);
+
+		/**
+		 * called on the UI thread once the whole text has been appended
+		 */
+		public void onLoadFinished();
+
+		/**
+		 * called on the UI thread if reading the text failed. The text read so far stays in the view.
+		 *
+		 * @param e the error
+		 */
+		public void onLoadFailed(IOException e);
+	}
+
+	private final SelectableTextView mView;
+	private final Reader mReader;
+	private final int mChunkSize;
+
+	/**
+	 * the Editable the chunks are appended to, the text of the view when the load started
+	 */
+	private CharSequence mText;
+
+	/**
+	 * the chunks read but not yet appended
+	 */
+	private final ConcurrentLinkedQueue<CharSequence> mChunks = new ConcurrentLinkedQueue<CharSequence>();
+	private final AtomicInteger mPendingChunks = new AtomicInteger();
+
+	private final AtomicBoolean mReading = new AtomicBoolean();
+	private volatile boolean mEndOfStream;
+	private volatile IOException mError;
+	private volatile boolean mCancelled;
+
+	/**
+	 * whether the reader has been closed, it's closed once by whichever thread gets there first
+	 */
+	private final AtomicBoolean mClosed = new AtomicBoolean();
+
+	private int mLoaded;
+	private OnLoadListener mOnLoadListener;
+
+	private final Runnable mReadTask = new Runnable() {
+		@Override
+		public void run() {
+			read();
+		}
+	};
+
+	private final Runnable mAppendTask = new Runnable() {
+		@Override
+		public void run() {
+			append();
+		}
+	};
+
+	/**
+	 * @param view      the view to load the text into, its text must be Editable
+	 * @param reader    the source of the text, closed once the load finishes or is cancelled
+	 * @param chunkSize the maximum number of characters appended per frame
+	 */
+	StreamingTextLoader(SelectableTextView view, Reader reader, int chunkSize) {
+		mView = view;
+		mReader = reader;
+		mChunkSize = chunkSize;
+	}
+
+	public void setOnLoadListener(OnLoadListener onLoadListener) {
+		mOnLoadListener = onLoadListener;
+	}
+
+	/**
+	 * @return the number of characters appended to the view so far
+	 */
+	public int getLoaded() {
+		return mLoaded;
+	}
+
+	public boolean isFinished() {
+		return mEndOfStream && mChunks.isEmpty();
+	}
+
+	/**
+	 * start reading. Must be called on the UI thread.
+	 */
+	void start() {
+		mText = mView.getText();
+		scheduleRead();
+		mView.postDelayed(mAppendTask, FRAME_INTERVAL);
+	}
+
+	/**
+	 * stop loading, the text appended so far stays in the view
+	 */
+	public void cancel() {
+		mCancelled = true;
+		mView.removeCallbacks(mAppendTask);
+		mView.onStreamingFinished(this);
+		scheduleRead(); // closes the reader
+	}
+
+	private void scheduleRead() {
+		if (!mEndOfStream && mReading.compareAndSet(false, true)) {
+			BackgroundExecutor.submit(mReadTask);
+		}
+	}
+
+	/**
+	 * read ahead until enough chunks are waiting. Runs on the background thread, and gives the
+	 * thread back between batches so that the other background passes are not starved.
+	 */
+	private void read() {
+		try {
+			while (!mCancelled && !mEndOfStream && mPendingChunks.get() < MAX_PENDING_CHUNKS) {
+				char[] buffer = new char[mChunkSize];
+				int count = 0;
+				while (count < buffer.length) {
+					int read = mReader.read(buffer, count, buffer.length - count);
+					if (read < 0) {
+						mEndOfStream = true;
+						break;
+					}
+					count += read;
+				}
+				if (count > 0) {
+					// never split a surrogate pair between two chunks
+					if (!mEndOfStream && Character.isHighSurrogate(buffer[count - 1])) {
+						int next = mReader.read();
+						if (next >= 0) {
+							buffer = Arrays.copyOf(buffer, count + 1);
+							buffer[count++] = (char) next;
+						}
+					}
+					mChunks.add(new String(buffer, 0, count));
+					mPendingChunks.incrementAndGet();
+				}
+			}
+		}
+		catch (IOException e) {
+			mError = e;
+			mEndOfStream = true;
+		}
+		finally {
+			if (mCancelled || mEndOfStream) {
+				mEndOfStream = true;
+				close();
+			}
+			mReading.set(false);
+
+			// cancel() may have come after the last check and failed to schedule a read because this
+			// one was still running, close the reader for it
+			if (mCancelled) {
+				close();
+			}
+		}
+	}
+
+	private void close() {
+		if (!mClosed.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			mReader.close();
+		}
+		catch (IOException e) {
+			Log.w(TAG, "unable to close the reader", e);
+		}
+	}
+
+	/**
+	 * append the next chunk on the UI thread and schedule the next frame
+	 */
+	private void append() {
+		if (mCancelled) {
+			return;
+		}
+		if (mView.getText() != mText) {
+			// the text has been replaced behind the back of the loader
+			cancel();
+			return;
+		}
+
+		CharSequence chunk = mChunks.poll();
+		if (chunk != null) {
+			mPendingChunks.decrementAndGet();
+			((Editable) mText).append(chunk);
+			mLoaded += chunk.length();
+			mView.onTextAppended();
+
+			if (mOnLoadListener != null) {
+				mOnLoadListener.onChunkLoaded(mLoaded);
+			}
+		}
+
+		if (isFinished()) {
+			mView.onStreamingFinished(this);
+			if (mOnLoadListener != null) {
+				if (mError != null) {
+					mOnLoadListener.onLoadFailed(mError);
+				}
+				else {
+					mOnLoadListener.onLoadFinished();
+				}
+			}
+			return;
+		}
+
+		scheduleRead();
+		mView.postDelayed(mAppendTask, FRAME_INTERVAL);
+	}
+}
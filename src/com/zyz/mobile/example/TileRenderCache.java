@@ -0,0 +1,380 @@
+/*
+ Copyright (C) 2013 Ray Zhou
+
+ JadeRead is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ JadeRead is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with JadeRead.  If not, see <http://www.gnu.org/licenses/>
+
+ */
+package com.zyz.mobile.example;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.text.Layout;
+import android.text.NoCopySpan;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.view.View;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * A cache of the laid-out text of a view cut in tiles of a fixed height, so that a fling over a
+ * very tall text draws a few bitmaps per frame instead of every glyph of the screen.
+ * <p/>
+ * A tile is rendered on the {@link BackgroundExecutor} from a snapshot taken on the UI thread: a
+ * copy of the few lines over the tile, with their spans, and of the paint. The background thread
+ * lays out the copy and never touches the text of the view, whose spans are changed on the UI
+ * thread. Starting a StaticLayout at the start of a line breaks the following lines where the view
+ * does, so the snapshot lines up with the view once their baselines are.
+ * <p/>
+ * The tiles on the screen are requested when they're missing, and drawn straight from the layout
+ * until they're ready. The tiles ahead of the scroll direction are requested in advance. The cache
+ * watches the spans of the text and only drops the tiles a span change touches, e.g. the tiles of
+ * the lines of a moving selection. The least recently drawn tiles are evicted when the bitmaps
+ * take more than the memory budget. All the tiles are dropped when the color of the text changes.
+ * All the methods must be called on the UI thread.
+ * <p/>
+ * The cache is a NoCopySpan, so it isn't copied into the snapshots nor into the exports of the text.
+ */
+class TileRenderCache implements SpanWatcher, NoCopySpan {
+
+	/**
+	 * the number of tiles requested ahead of the scroll direction
+	 */
+	private static final int PREFETCH_TILES = 2;
+
+	private final View mView;
+	private final int mTileHeight;
+	private int mBudget;
+
+	/**
+	 * the rendered tiles by index, in the order they were last drawn
+	 */
+	private final LinkedHashMap<Integer, Bitmap> mTiles = new LinkedHashMap<Integer, Bitmap>(16, 0.75f, true);
+	private int mBytes;
+
+	/**
+	 * the tiles being rendered by index. A result is only kept if its job is still the pending one.
+	 */
+	private final HashMap<Integer, TileJob> mPending = new HashMap<Integer, TileJob>();
+
+	/**
+	 * the layout the tiles are rendered from, and its text if the cache is watching its spans
+	 */
+	private Layout mLayout;
+	private Spannable mWatched;
+
+	/**
+	 * the color of the text the tiles were rendered with
+	 */
+	private int mColor;
+
+	private int mLastTop;
+	private int mDirection = 1;
+
+	private final Rect mClip = new Rect();
+
+	/**
+	 * @param view       the view to redraw when a tile is ready
+	 * @param tileHeight the height of a tile in pixels
+	 * @param budget     the maximum number of bytes taken by the tiles
+	 */
+	TileRenderCache(View view, int tileHeight, int budget) {
+		mView = view;
+		mTileHeight = tileHeight;
+		mBudget = budget;
+	}
+
+	void setBudget(int budget) {
+		mBudget = budget;
+		trim(-1);
+	}
+
+	/**
+	 * Draw the part of the layout within the clip of the canvas, from the tiles where they're ready
+	 * and from the layout otherwise.
+	 *
+	 * @param canvas the canvas, translated so that the layout is at the origin
+	 * @param layout the layout of the view
+	 */
+	void draw(Canvas canvas, Layout layout) {
+		if (layout != mLayout) {
+			bind(layout);
+		}
+		if (layout.getPaint().getColor() != mColor) {
+			// e.g. setTextColor, which doesn't touch the spans
+			clearTiles();
+			mColor = layout.getPaint().getColor();
+		}
+
+		final Rect clip = mClip;
+		int height = layout.getHeight();
+		if (!canvas.getClipBounds(clip) || height <= 0) {
+			return;
+		}
+		int first = Math.max(0, clip.top / mTileHeight);
+		int last = Math.min((height - 1) / mTileHeight, Math.max(clip.top, clip.bottom - 1) / mTileHeight);
+
+		if (clip.top != mLastTop) {
+			mDirection = clip.top > mLastTop ? 1 : -1;
+			mLastTop = clip.top;
+		}
+
+		for (int i = first; i <= last; i++) {
+			Bitmap tile = mTiles.get(i);
+			if (tile != null) {
+				canvas.drawBitmap(tile, 0, i * mTileHeight, null);
+			}
+			else {
+				canvas.save();
+				canvas.clipRect(0, i * mTileHeight, layout.getWidth(), (i + 1) * mTileHeight);
+				layout.draw(canvas);
+				canvas.restore();
+				request(i);
+			}
+		}
+
+		for (int k = 1; k <= PREFETCH_TILES; k++) {
+			int index = mDirection > 0 ? last + k : first - k;
+			if (index >= 0 && index * mTileHeight < height) {
+				request(index);
+			}
+		}
+	}
+
+	/**
+	 * start rendering the tile in the background, unless it's ready or already being rendered
+	 */
+	private void request(int index) {
+		if (mTiles.containsKey(index) || mPending.containsKey(index)) {
+			return;
+		}
+
+		final Layout layout = mLayout;
+		int width = layout.getWidth();
+		if (width <= 0 || width * mTileHeight * 4 > mBudget) {
+			return;
+		}
+
+		int top = index * mTileHeight;
+		int firstLine = layout.getLineForVertical(top);
+		int lastLine = layout.getLineForVertical(top + mTileHeight - 1);
+		int start = layout.getLineStart(firstLine);
+		int end = layout.getLineEnd(lastLine);
+
+		TileJob job = new TileJob(index, layout.getText().subSequence(start, end), new TextPaint(layout.getPaint()),
+				  width, layout.getAlignment(), layout.getSpacingMultiplier(), layout.getSpacingAdd(),
+				  layout.getTopPadding() != 0 || layout.getBottomPadding() != 0,
+				  layout.getLineBaseline(firstLine) - top);
+		mPending.put(index, job);
+		job.mFuture = BackgroundExecutor.submit(job);
+	}
+
+	/**
+	 * keep the tile if it's still wanted, called on the UI thread
+	 */
+	private void onTileRendered(TileJob job, Bitmap tile) {
+		if (mPending.get(job.mIndex) != job) {
+			return;
+		}
+		mPending.remove(job.mIndex);
+
+		mTiles.put(job.mIndex, tile);
+		mBytes += tile.getRowBytes() * tile.getHeight();
+		trim(job.mIndex);
+		mView.invalidate();
+	}
+
+	/**
+	 * evict the least recently drawn tiles until the tiles fit in the budget
+	 *
+	 * @param keep the index of a tile not to evict, -1 if none
+	 */
+	private void trim(int keep) {
+		Iterator<Map.Entry<Integer, Bitmap>> iterator = mTiles.entrySet().iterator();
+		while (mBytes > mBudget && iterator.hasNext()) {
+			Map.Entry<Integer, Bitmap> entry = iterator.next();
+			if (entry.getKey() != keep) {
+				Bitmap tile = entry.getValue();
+				mBytes -= tile.getRowBytes() * tile.getHeight();
+				// API 10 draws in software, nothing refers to the tile once it has been drawn, and the
+				// pixels of a bitmap live outside the Java heap until it's recycled
+				tile.recycle();
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * drop the tiles over the lines of text[start, end]
+	 */
+	private void invalidateRange(int start, int end) {
+		if (mLayout == null) {
+			return;
+		}
+		int length = mLayout.getText().length();
+		int firstLine = mLayout.getLineForOffset(Math.max(0, Math.min(start, length)));
+		int lastLine = mLayout.getLineForOffset(Math.max(0, Math.min(end, length)));
+		int first = mLayout.getLineTop(firstLine) / mTileHeight;
+		int last = Math.max(mLayout.getLineTop(lastLine), mLayout.getLineBottom(lastLine) - 1) / mTileHeight;
+
+		for (int i = first; i <= last; i++) {
+			Bitmap tile = mTiles.remove(i);
+			if (tile != null) {
+				mBytes -= tile.getRowBytes() * tile.getHeight();
+				tile.recycle();
+			}
+			TileJob job = mPending.remove(i);
+			if (job != null) {
+				job.mFuture.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * render from the specified layout from now on, watching the spans of its text
+	 */
+	private void bind(Layout layout) {
+		release();
+		mLayout = layout;
+
+		CharSequence text = layout.getText();
+		if (text instanceof Spannable) {
+			mWatched = (Spannable) text;
+			mWatched.setSpan(this, 0, text.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+		}
+	}
+
+	/**
+	 * drop all the tiles and cancel the pending ones
+	 */
+	private void clearTiles() {
+		for (TileJob job : mPending.values()) {
+			job.mFuture.cancel(false);
+		}
+		mPending.clear();
+		for (Bitmap tile : mTiles.values()) {
+			tile.recycle();
+		}
+		mTiles.clear();
+		mBytes = 0;
+	}
+
+	/**
+	 * drop all the tiles and stop watching the text. The cache binds itself again the next time it
+	 * draws.
+	 */
+	void release() {
+		clearTiles();
+
+		if (mWatched != null) {
+			mWatched.removeSpan(this);
+			mWatched = null;
+		}
+		mLayout = null;
+	}
+
+	@Override
+	public void onSpanAdded(Spannable text, Object what, int start, int end) {
+		if (what != this && text == mWatched) {
+			invalidateRange(start, end);
+		}
+	}
+
+	@Override
+	public void onSpanRemoved(Spannable text, Object what, int start, int end) {
+		if (what != this && text == mWatched) {
+			invalidateRange(start, end);
+		}
+	}
+
+	@Override
+	public void onSpanChanged(Spannable text, Object what, int ostart, int oend, int nstart, int nend) {
+		if (what != this && text == mWatched) {
+			// the text between the old and the new bounds is the only one drawn differently
+			if (ostart != nstart) {
+				invalidateRange(Math.min(ostart, nstart), Math.max(ostart, nstart));
+			}
+			if (oend != nend) {
+				invalidateRange(Math.min(oend, nend), Math.max(oend, nend));
+			}
+		}
+	}
+
+	/**
+	 * lays out and draws the snapshot of a tile on the background thread
+	 */
+	private class TileJob implements Runnable {
+		final int mIndex;
+		private final CharSequence mText;
+		private final TextPaint mPaint;
+		private final int mWidth;
+		private final Layout.Alignment mAlignment;
+		private final float mSpacingMult;
+		private final float mSpacingAdd;
+		private final boolean mIncludePad;
+
+		/**
+		 * the baseline of the first line relative to the top of the tile
+		 */
+		private final int mBaseline;
+
+		Future<?> mFuture;
+
+		TileJob(int index, CharSequence text, TextPaint paint, int width, Layout.Alignment alignment,
+		        float spacingMult, float spacingAdd, boolean includePad, int baseline) {
+			mIndex = index;
+			mText = text;
+			mPaint = paint;
+			mWidth = width;
+			mAlignment = alignment;
+			mSpacingMult = spacingMult;
+			mSpacingAdd = spacingAdd;
+			mIncludePad = includePad;
+			mBaseline = baseline;
+		}
+
+		@Override
+		public void run() {
+			final Bitmap tile;
+			try {
+				tile = Bitmap.createBitmap(mWidth, mTileHeight, Bitmap.Config.ARGB_8888);
+			}
+			catch (OutOfMemoryError e) {
+				// the tile is drawn from the layout instead
+				return;
+			}
+
+			StaticLayout layout = new StaticLayout(mText, mPaint, mWidth, mAlignment, mSpacingMult, mSpacingAdd,
+					  mIncludePad);
+			Canvas canvas = new Canvas(tile);
+			canvas.translate(0, mBaseline - layout.getLineBaseline(0));
+			layout.draw(canvas);
+
+			mView.post(new Runnable() {
+				@Override
+				public void run() {
+					onTileRendered(TileJob.this, tile);
+				}
+			});
+		}
+	}
+}
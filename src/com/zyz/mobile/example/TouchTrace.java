@@ -0,0 +1,201 @@
+/*
+ Copyright (C) 2013 Ray Zhou
+
+ JadeRead is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ JadeRead is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with JadeRead.  If not, see <http://www.gnu.org/licenses/>
+
+ */
+package com.zyz.mobile.example;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * A recorded sequence of selection interactions. {@link TouchTraceRecorder} captures one from a
+ * SelectableTextView in the field, the replayer of the tests runs it headless against the
+ * {@link SelectionGeometry}.
+ * <p/>
+ * The text format has one event per line, '#' starts a comment:
+ * <pre>
+ * time L start end     long press, showSelectionControls(start, end)
+ * time D handle x y    drag of the start (0) or the end (1) handle starts, pointing to (x, y)
+ * time M x y           the dragged handle points to (x, y)
+ * time U x y           the drag ends at (x, y)
+ * </pre>
+ * time is in milliseconds from the start of the trace. (x, y) is where the handle points to,
+ * relative to the top left of the text with the scroll included, i.e. what
+ * {@link SelectionGeometry#getHysteresisOffset(int, int, int)} is called with. A trace doesn't
+ * depend on the position of the view on the screen nor on how far it was scrolled.
+ */
+public class TouchTrace {
+
+	public static final char LONG_PRESS = 'L';
+	public static final char DOWN = 'D';
+	public static final char MOVE = 'M';
+	public static final char UP = 'U';
+
+	public static final int START_HANDLE = 0;
+	public static final int END_HANDLE = 1;
+
+	private long[] mTimes = new long[64];
+	private char[] mTypes = new char[64];
+
+	/**
+	 * the arguments of each event, three per event, unused ones are 0
+	 */
+	private int[] mArgs = new int[64 * 3];
+	private int mCount;
+
+	public int getEventCount() {
+		return mCount;
+	}
+
+	public long getTime(int index) {
+		return mTimes[index];
+	}
+
+	public char getType(int index) {
+		return mTypes[index];
+	}
+
+	/**
+	 * @param index    the index of the event
+	 * @param argument the index of the argument, in the order of the text format
+	 * @return the argument
+	 */
+	public int getArgument(int index, int argument) {
+		return mArgs[index * 3 + argument];
+	}
+
+	public void addLongPress(long time, int start, int end) {
+		add(time, LONG_PRESS, start, end, 0);
+	}
+
+	public void addDown(long time, int handle, int x, int y) {
+		add(time, DOWN, handle, x, y);
+	}
+
+	public void addMove(long time, int x, int y) {
+		add(time, MOVE, x, y, 0);
+	}
+
+	public void addUp(long time, int x, int y) {
+		add(time, UP, x, y, 0);
+	}
+
+	/**
+	 * remove all the events
+	 */
+	public void clear() {
+		mCount = 0;
+	}
+
+	private void add(long time, char type, int a, int b, int c) {
+		if (mCount == mTimes.length) {
+			mTimes = Arrays.copyOf(mTimes, mCount * 2);
+			mTypes = Arrays.copyOf(mTypes, mCount * 2);
+			mArgs = Arrays.copyOf(mArgs, mCount * 2 * 3);
+		}
+		mTimes[mCount] = time;
+		mTypes[mCount] = type;
+		mArgs[mCount * 3] = a;
+		mArgs[mCount * 3 + 1] = b;
+		mArgs[mCount * 3 + 2] = c;
+		mCount++;
+	}
+
+	/**
+	 * @return the number of arguments of the event type, -1 if the type is unknown
+	 */
+	private static int getArgumentCount(char type) {
+		switch (type) {
+			case LONG_PRESS:
+				return 2;
+			case DOWN:
+				return 3;
+			case MOVE:
+			case UP:
+				return 2;
+			default:
+				return -1;
+		}
+	}
+
+	/**
+	 * read a trace in the text format
+	 *
+	 * @param reader the source, not closed
+	 * @return the trace
+	 * @throws IOException if the source can't be read or is not a trace
+	 */
+	public static TouchTrace parse(Reader reader) throws IOException {
+		TouchTrace trace = new TouchTrace();
+		BufferedReader in = new BufferedReader(reader);
+
+		String line;
+		int number = 0;
+		while ((line = in.readLine()) != null) {
+			number++;
+			int comment = line.indexOf('#');
+			if (comment >= 0) {
+				line = line.substring(0, comment);
+			}
+			line = line.trim();
+			if (line.length() == 0) {
+				continue;
+			}
+
+			String[] fields = line.split("\\s+");
+			char type = fields.length > 1 && fields[1].length() == 1 ? fields[1].charAt(0) : 0;
+			int arguments = getArgumentCount(type);
+			if (arguments < 0 || fields.length != arguments + 2) {
+				throw new IOException("line " + number + ": not a trace event: " + line);
+			}
+
+			try {
+				int[] args = new int[3];
+				for (int i = 0; i < arguments; i++) {
+					args[i] = Integer.parseInt(fields[i + 2]);
+				}
+				trace.add(Long.parseLong(fields[0]), type, args[0], args[1], args[2]);
+			}
+			catch (NumberFormatException e) {
+				throw new IOException("line " + number + ": " + e.getMessage());
+			}
+		}
+		return trace;
+	}
+
+	/**
+	 * write the trace in the text format
+	 *
+	 * @param writer the destination, not closed
+	 * @throws IOException if the destination can't be written
+	 */
+	public void write(Writer writer) throws IOException {
+		StringBuilder line = new StringBuilder();
+		for (int i = 0; i < mCount; i++) {
+			line.setLength(0);
+			line.append(mTimes[i]).append(' ').append(mTypes[i]);
+			for (int j = 0; j < getArgumentCount(mTypes[i]); j++) {
+				line.append(' ').append(mArgs[i * 3 + j]);
+			}
+			line.append('\n');
+			writer.write(line.toString());
+		}
+		writer.flush();
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ Copyright (C) 2013 Ray Zhou
+
+ JadeRead is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ JadeRead is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with JadeRead.  If not, see <http://www.gnu.org/licenses/>
+
+ */
+package com.zyz.mobile.example;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Records the selection interactions of a SelectableTextView into a {@link TouchTrace}, so that a
+ * drag reported from the field can be replayed and measured by the replayer of the tests.
+ * <p/>
+ * Set it with {@link SelectableTextView#setTouchTraceRecorder(TouchTraceRecorder)}. The view reports
+ * the long presses and the points the dragged handle goes through, in coordinates relative to its
+ * text. Recording only appends to a few arrays, it doesn't slow the drag down noticeably.
+ */
+public class TouchTraceRecorder {
+
+	private final TouchTrace mTrace = new TouchTrace();
+
+	/**
+	 * the uptime of the first event, -1 until something is recorded
+	 */
+	private long mStartTime = -1;
+
+	/**
+	 * where the dragged handle last pointed to, for the end of the drag
+	 */
+	private int mLastX;
+	private int mLastY;
+
+	/**
+	 * @return the trace recorded so far
+	 */
+	public TouchTrace getTrace() {
+		return mTrace;
+	}
+
+	/**
+	 * forget the events recorded so far
+	 */
+	public void clear() {
+		mTrace.clear();
+		mStartTime = -1;
+	}
+
+	/**
+	 * write the trace recorded so far in the text format read by the replayer
+	 *
+	 * @param writer the destination, not closed
+	 * @throws IOException if the destination can't be written
+	 */
+	public void write(Writer writer) throws IOException {
+		mTrace.write(writer);
+	}
+
+	void recordLongPress(int start, int end) {
+		mTrace.addLongPress(getTime(), start, end);
+	}
+
+	void recordDown(int handle, int x, int y) {
+		mLastX = x;
+		mLastY = y;
+		mTrace.addDown(getTime(), handle, x, y);
+	}
+
+	void recordMove(int x, int y) {
+		mLastX = x;
+		mLastY = y;
+		mTrace.addMove(getTime(), x, y);
+	}
+
+	void recordUp() {
+		mTrace.addUp(getTime(), mLastX, mLastY);
+	}
+
+	private long getTime() {
+		long now = SystemClock.uptimeMillis();
+		if (mStartTime < 0) {
+			mStartTime = now;
+		}
+		return now - mStartTime;
+	}
+}
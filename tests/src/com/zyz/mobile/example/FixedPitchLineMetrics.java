@@ -0,0 +1,156 @@
+/*
+ Copyright (C) 2013 Ray Zhou
+
+ JadeRead is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ JadeRead is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with JadeRead.  If not, see <http://www.gnu.org/licenses/>
+
+ */
+package com.zyz.mobile.example;
+
+import java.util.Arrays;
+
+/**
+ * A headless {@link LineMetrics}: the text is laid out left-to-right in a fixed-pitch font, every
+ * character charWidth wide, wrapped at a column count and broken at the new lines. Enough to drive
+ * the {@link SelectionGeometry} on a plain JVM with the offsets and the number of lines of a real
+ * document.
+ */
+public class FixedPitchLineMetrics implements LineMetrics {
+
+	private final CharSequence mText;
+	private final int mCharWidth;
+	private final int mLineHeight;
+
+	/**
+	 * the start offset of each line, plus the text length as a sentinel
+	 */
+	private final int[] mStarts;
+
+	/**
+	 * @param text       the text
+	 * @param columns    the number of characters on a full line
+	 * @param charWidth  the width of a character
+	 * @param lineHeight the height of a line
+	 */
+	public FixedPitchLineMetrics(CharSequence text, int columns, int charWidth, int lineHeight) {
+		mText = text;
+		mCharWidth = charWidth;
+		mLineHeight = lineHeight;
+
+		int[] starts = new int[16];
+		int count = 0;
+		int start = 0;
+		do {
+			if (count + 1 >= starts.length) {
+				starts = Arrays.copyOf(starts, starts.length * 2);
+			}
+			starts[count++] = start;
+
+			// the new line belongs to the line it ends
+			int end = start;
+			while (end < text.length() && end - start < columns && text.charAt(end) != '\n') {
+				end++;
+			}
+			if (end < text.length() && text.charAt(end) == '\n') {
+				end++;
+			}
+			start = end;
+		}
+		while (start < text.length());
+
+		starts[count++] = text.length();
+		mStarts = Arrays.copyOf(starts, count);
+	}
+
+	@Override
+	public int getTextLength() {
+		return mText.length();
+	}
+
+	@Override
+	public int getLineCount() {
+		return mStarts.length - 1;
+	}
+
+	@Override
+	public int getLineForVertical(int y) {
+		return Math.max(0, Math.min(y / mLineHeight, getLineCount() - 1));
+	}
+
+	@Override
+	public int getLineForOffset(int offset) {
+		int index = Arrays.binarySearch(mStarts, 0, getLineCount(), offset);
+		if (index < 0) {
+			index = -index - 2;
+		}
+		return Math.max(0, index);
+	}
+
+	@Override
+	public int getLineTop(int line) {
+		return line * mLineHeight;
+	}
+
+	@Override
+	public int getLineBottom(int line) {
+		return (line + 1) * mLineHeight;
+	}
+
+	@Override
+	public float getLineLeft(int line) {
+		return 0;
+	}
+
+	@Override
+	public float getLineRight(int line) {
+		return (getVisibleEnd(line) - mStarts[line]) * mCharWidth;
+	}
+
+	@Override
+	public int getParagraphDirection(int line) {
+		return DIR_LEFT_TO_RIGHT;
+	}
+
+	@Override
+	public float getPrimaryHorizontal(int offset) {
+		return (offset - mStarts[getLineForOffset(offset)]) * mCharWidth;
+	}
+
+	@Override
+	public int getOffsetForHorizontal(int line, float x) {
+		int start = mStarts[line];
+		// like Layout, the offset at the end of a line is only returned on the last line
+		int max = mStarts[line + 1] - start;
+		if (line < getLineCount() - 1 && max > 0) {
+			max--;
+		}
+		int column = Math.round(x / mCharWidth);
+		return start + Math.max(0, Math.min(column, max));
+	}
+
+	@Override
+	public int getOffsetToLeftOf(int offset) {
+		return Math.max(0, offset - 1);
+	}
+
+	/**
+	 * @return the end of the line without its new line
+	 */
+	private int getVisibleEnd(int line) {
+		int end = mStarts[line + 1];
+		if (end > mStarts[line] && mText.charAt(end - 1) == '\n') {
+			end--;
+		}
+		return end;
+	}
+}
@@ -0,0 +1,451 @@
+/*
+ Copyright (C) 2013 Ray Zhou
+
+ JadeRead is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ JadeRead is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with JadeRead.  If not, see <http://www.gnu.org/licenses/>
+
+ */
+package com.zyz.mobile.example;
+
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.Spanned;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+/**
+ * Replays a {@link TouchTrace} headless against the {@link SelectionGeometry} and the spans of a
+ * {@link CompactSpannable}, and fails when the latency or the allocations of the events are over
+ * budget.
+ * <p/>
+ * The trace is recorded on a device by {@link TouchTraceRecorder}. A long press sets the selection,
+ * each move of a handle is hit tested with getHysteresisOffset and moves its end of the selection,
+ * and the end of a drag snaps both cursors, the same calls the SelectionCursorController makes. A
+ * move that changes the offset sets the selection span again, like SelectionInfo.select(), so the
+ * span table update and the dispatch to the span watchers are measured too. The text has one
+ * watcher over the whole text, like the one the view attaches, and optionally other spans standing
+ * for highlights. The text is laid out by a {@link FixedPitchLineMetrics}, so the trace should be
+ * replayed on the document it was recorded on, with about as many columns as the device showed.
+ * <p/>
+ * Not replayed: SelectionInfo itself (its export pulls in the Android clipboard, select() is
+ * mirrored instead), the CursorHandle popups, showSelectionControls, the scrolling of the view, the
+ * TextView watchers and the redraw. Their cost has to be measured on a device.
+ * <p/>
+ * The allocations are counted with the ThreadMXBean of HotSpot. On a JVM that can't count them, the
+ * allocation budget is not checked.
+ * <p/>
+ * Run it from the root of the project. tests/stubs holds the few android.text types the spannable
+ * needs on a plain JVM:
+ * <pre>
+ * javac -d out tests/stubs/android/text/*.java \
+ *     src/com/zyz/mobile/example/{LineMetrics,SelectionGeometry,TouchTrace}.java \
+ *     src/com/zyz/mobile/example/{CompactSpannable,SpanTable,IndexedSpannable,IndexedSpanTable}.java \
+ *     tests/src/com/zyz/mobile/example/*.java
+ * java -cp out com.zyz.mobile.example.TouchTraceReplayer trace.txt text.txt \
+ *     [-columns 40] [-charWidth 16] [-lineHeight 32] [-repeat 100] [-spans 0] [-indexed 0] \
+ *     [-p99Micros 500] [-bytesPerEvent 64]
+ * </pre>
+ * It exits with the status 1 if the replay is over budget.
+ */
+public class TouchTraceReplayer {
+
+	public static final long DEFAULT_P99_NANOS = 500 * 1000;
+	public static final long DEFAULT_BYTES_PER_EVENT = 0;
+
+	/**
+	 * the latency and allocation measures of a replay
+	 */
+	public static class Report {
+		private final long[] mLatencies;
+		private final long[] mAllocations;
+		private final int mSkipped;
+
+		Report(long[] latencies, long[] allocations, int skipped) {
+			mLatencies = latencies;
+			mAllocations = allocations;
+			mSkipped = skipped;
+			Arrays.sort(mLatencies);
+		}
+
+		public int getEventCount() {
+			return mLatencies.length;
+		}
+
+		/**
+		 * @return the number of handle events replayed before any selection was shown
+		 */
+		public int getSkippedCount() {
+			return mSkipped;
+		}
+
+		/**
+		 * @param percentile between 0 and 100
+		 * @return the latency of the specified percentile in nanoseconds (nearest rank)
+		 */
+		public long getLatencyPercentile(double percentile) {
+			if (mLatencies.length == 0) {
+				return 0;
+			}
+			int rank = (int) Math.ceil(percentile / 100 * mLatencies.length);
+			return mLatencies[Math.max(0, Math.min(rank, mLatencies.length) - 1)];
+		}
+
+		/**
+		 * @return false if the JVM can't count the allocations
+		 */
+		public boolean hasAllocations() {
+			return mAllocations != null;
+		}
+
+		/**
+		 * @return the average number of bytes allocated per event, 0 if they were not counted
+		 */
+		public long getBytesPerEvent() {
+			if (mAllocations == null || mAllocations.length == 0) {
+				return 0;
+			}
+			long total = 0;
+			for (long bytes : mAllocations) {
+				total += bytes;
+			}
+			return total / mAllocations.length;
+		}
+
+		/**
+		 * @return the largest number of bytes allocated by a single event, 0 if they were not counted
+		 */
+		public long getMaxBytesPerEvent() {
+			long max = 0;
+			if (mAllocations != null) {
+				for (long bytes : mAllocations) {
+					max = Math.max(max, bytes);
+				}
+			}
+			return max;
+		}
+
+		/**
+		 * @param p99Nanos      the budget of the 99th percentile latency
+		 * @param bytesPerEvent the budget of the average allocation per event
+		 * @return true if the replay is within both budgets
+		 */
+		public boolean isWithinBudget(long p99Nanos, long bytesPerEvent) {
+			return getLatencyPercentile(99) <= p99Nanos && getBytesPerEvent() <= bytesPerEvent;
+		}
+
+		/**
+		 * @throws AssertionError if the replay is over budget
+		 */
+		public void checkBudget(long p99Nanos, long bytesPerEvent) {
+			if (!isWithinBudget(p99Nanos, bytesPerEvent)) {
+				throw new AssertionError("over budget (p99 " + p99Nanos / 1000 + "us, " + bytesPerEvent +
+						  " bytes/event): " + this);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return getEventCount() + " events, latency p50 " + getLatencyPercentile(50) / 1000 + "us p90 " +
+					  getLatencyPercentile(90) / 1000 + "us p99 " + getLatencyPercentile(99) / 1000 + "us max " +
+					  getLatencyPercentile(100) / 1000 + "us, " +
+					  (hasAllocations() ? getBytesPerEvent() + " bytes/event (max " + getMaxBytesPerEvent() + ")" :
+								 "allocations not counted") +
+					  (mSkipped > 0 ? ", " + mSkipped + " events skipped" : "");
+		}
+	}
+
+	/**
+	 * stands for MetricAffectingSpan, which no span of the replay is
+	 */
+	private interface MetricAffecting {
+	}
+
+	/**
+	 * Stands for the watcher the view keeps over its whole text, which drops the cached advances when
+	 * a span changes the metrics of the text.
+	 */
+	private static class MetricsWatcher implements SpanWatcher {
+		private int mMetricChanges;
+
+		@Override
+		public void onSpanAdded(Spannable text, Object what, int start, int end) {
+			onSpan(what);
+		}
+
+		@Override
+		public void onSpanRemoved(Spannable text, Object what, int start, int end) {
+			onSpan(what);
+		}
+
+		@Override
+		public void onSpanChanged(Spannable text, Object what, int ostart, int oend, int nstart, int nend) {
+			onSpan(what);
+		}
+
+		private void onSpan(Object what) {
+			if (what instanceof MetricAffecting) {
+				mMetricChanges++;
+			}
+		}
+	}
+
+	private final SelectionGeometry mGeometry;
+	private final Spannable mText;
+	private final com.sun.management.ThreadMXBean mThreadBean;
+
+	private int mStart;
+	private int mEnd;
+	private boolean mShowing;
+	private int mHandle;
+
+	/**
+	 * the span of the selection, reused like SelectionInfo reuses its span
+	 */
+	private final Object mSelectionSpan = new Object();
+
+	private final int[] mTempCoords = new int[2];
+
+	/**
+	 * @param geometry the geometry to replay the trace against
+	 * @param text     the text the selection span is set on, laid out by the geometry
+	 */
+	public TouchTraceReplayer(SelectionGeometry geometry, Spannable text) {
+		mGeometry = geometry;
+		mText = text;
+		mText.setSpan(new MetricsWatcher(), 0, text.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean &&
+				  ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+			mThreadBean = (com.sun.management.ThreadMXBean) bean;
+			mThreadBean.setThreadAllocatedMemoryEnabled(true);
+		}
+		else {
+			mThreadBean = null;
+		}
+	}
+
+	/**
+	 * Replay the trace back to back on the calling thread and measure every event.
+	 *
+	 * @param trace  the trace
+	 * @param repeat the number of times to replay the trace
+	 * @return the measures
+	 */
+	public Report replay(TouchTrace trace, int repeat) {
+		repeat = Math.max(1, repeat);
+		long[] latencies = new long[trace.getEventCount() * repeat];
+		long[] allocations = mThreadBean == null ? null : new long[latencies.length];
+		final long thread = Thread.currentThread().getId();
+
+		// what reading the counter costs, taken away from every measure
+		long overhead = 0;
+		if (mThreadBean != null) {
+			long before = mThreadBean.getThreadAllocatedBytes(thread);
+			overhead = mThreadBean.getThreadAllocatedBytes(thread) - before;
+		}
+
+		int measured = 0;
+		int skipped = 0;
+		for (int repetition = 0; repetition < repeat; repetition++) {
+			mShowing = false;
+			for (int index = 0; index < trace.getEventCount(); index++) {
+				char type = trace.getType(index);
+				if (type != TouchTrace.LONG_PRESS && !mShowing) {
+					// a handle event before any selection was shown
+					skipped++;
+					continue;
+				}
+
+				long allocated = mThreadBean == null ? 0 : mThreadBean.getThreadAllocatedBytes(thread);
+				long start = System.nanoTime();
+
+				replayEvent(trace, index);
+
+				latencies[measured] = System.nanoTime() - start;
+				if (mThreadBean != null) {
+					allocations[measured] = Math.max(0, mThreadBean.getThreadAllocatedBytes(thread) - allocated - overhead);
+				}
+				measured++;
+			}
+		}
+
+		return new Report(Arrays.copyOf(latencies, measured),
+				  allocations == null ? null : Arrays.copyOf(allocations, measured), skipped);
+	}
+
+	/**
+	 * replay the event at the specified index, the same way SelectionCursorController handles it
+	 */
+	private void replayEvent(TouchTrace trace, int index) {
+		switch (trace.getType(index)) {
+			case TouchTrace.LONG_PRESS: {
+				mStart = Math.min(trace.getArgument(index, 0), trace.getArgument(index, 1));
+				mEnd = Math.max(trace.getArgument(index, 0), trace.getArgument(index, 1));
+				mShowing = true;
+				select();
+				snap();
+				break;
+			}
+			case TouchTrace.DOWN: {
+				mHandle = trace.getArgument(index, 0);
+				break;
+			}
+			case TouchTrace.MOVE: {
+				int x = trace.getArgument(index, 0);
+				int y = trace.getArgument(index, 1);
+				int old = mHandle == TouchTrace.START_HANDLE ? mStart : mEnd;
+				int offset = mGeometry.getHysteresisOffset(x, y, old);
+				if (offset != old) {
+					if (mHandle == TouchTrace.START_HANDLE) {
+						mStart = offset;
+					}
+					else {
+						mEnd = offset;
+					}
+					select();
+				}
+				break;
+			}
+			case TouchTrace.UP: {
+				snap();
+				break;
+			}
+		}
+	}
+
+	/**
+	 * set the selection span again, like SelectionInfo.select()
+	 */
+	private void select() {
+		mText.setSpan(mSelectionSpan, Math.min(mStart, mEnd), Math.max(mStart, mEnd), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+	}
+
+	/**
+	 * Spread the specified number of spans over the text, like the highlights or the notes of a
+	 * book. Each one covers a few words.
+	 */
+	private static void addSpans(Spannable text, int count) {
+		int length = text.length();
+		for (int i = 0; i < count && length > 0; i++) {
+			int start = (int) ((long) length * i / count);
+			text.setSpan(new Object(), start, Math.min(length, start + 20), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+		}
+	}
+
+	/**
+	 * place both cursors on the selection, like snapToSelection
+	 */
+	private void snap() {
+		final int[] coords = mTempCoords;
+		int start = Math.min(mStart, mEnd);
+		int end = Math.max(mStart, mEnd);
+		mGeometry.getAdjustedStartXY(start, 0, 0, coords);
+		mGeometry.getAdjustedEndXY(end, 0, 0, coords);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("usage: TouchTraceReplayer trace text [-columns n] [-charWidth px] " +
+					  "[-lineHeight px] [-repeat n] [-spans n] [-indexed 0|1] [-p99Micros us] [-bytesPerEvent n]");
+			System.exit(2);
+		}
+
+		int columns = 40;
+		int charWidth = 16;
+		int lineHeight = 32;
+		int repeat = 100;
+		int spans = 0;
+		boolean indexed = false;
+		long p99Nanos = DEFAULT_P99_NANOS;
+		long bytesPerEvent = DEFAULT_BYTES_PER_EVENT;
+		for (int i = 2; i + 1 < args.length; i += 2) {
+			long value = Long.parseLong(args[i + 1]);
+			if ("-columns".equals(args[i])) {
+				columns = (int) value;
+			}
+			else if ("-charWidth".equals(args[i])) {
+				charWidth = (int) value;
+			}
+			else if ("-lineHeight".equals(args[i])) {
+				lineHeight = (int) value;
+			}
+			else if ("-repeat".equals(args[i])) {
+				repeat = (int) value;
+			}
+			else if ("-spans".equals(args[i])) {
+				spans = (int) value;
+			}
+			else if ("-indexed".equals(args[i])) {
+				indexed = value != 0;
+			}
+			else if ("-p99Micros".equals(args[i])) {
+				p99Nanos = value * 1000;
+			}
+			else if ("-bytesPerEvent".equals(args[i])) {
+				bytesPerEvent = value;
+			}
+			else {
+				throw new IllegalArgumentException("unknown option " + args[i]);
+			}
+		}
+
+		TouchTrace trace;
+		Reader reader = new InputStreamReader(new FileInputStream(new File(args[0])), "UTF-8");
+		try {
+			trace = TouchTrace.parse(reader);
+		}
+		finally {
+			reader.close();
+		}
+		String text = read(new File(args[1]));
+
+		Spannable spannable = indexed ? new IndexedSpannable(text) : new CompactSpannable(text);
+		addSpans(spannable, spans);
+
+		TouchTraceReplayer replayer = new TouchTraceReplayer(
+				  new SelectionGeometry(new FixedPitchLineMetrics(text, columns, charWidth, lineHeight)), spannable);
+		// a first pass to warm up the JIT, not measured
+		replayer.replay(trace, repeat);
+		Report report = replayer.replay(trace, repeat);
+
+		System.out.println(report);
+		if (!report.isWithinBudget(p99Nanos, report.hasAllocations() ? bytesPerEvent : Long.MAX_VALUE)) {
+			System.err.println("over budget: p99 " + p99Nanos / 1000 + "us, " + bytesPerEvent + " bytes/event");
+			System.exit(1);
+		}
+	}
+
+	private static String read(File file) throws IOException {
+		StringBuilder text = new StringBuilder();
+		Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+		try {
+			char[] buffer = new char[8192];
+			int count;
+			while ((count = reader.read(buffer)) > 0) {
+				text.append(buffer, 0, count);
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return text.toString();
+	}
+}
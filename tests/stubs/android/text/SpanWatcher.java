@@ -0,0 +1,30 @@
+/*
+ Copyright (C) 2013 Ray Zhou
+
+ JadeRead is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ JadeRead is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with JadeRead.  If not, see <http://www.gnu.org/licenses/>
+
+ */
+package android.text;
+
+/**
+ * android.text.SpanWatcher for the headless replay, see TouchTraceReplayer
+ */
+public interface SpanWatcher extends NoCopySpan {
+
+	public void onSpanAdded(Spannable text, Object what, int start, int end);
+
+	public void onSpanRemoved(Spannable text, Object what, int start, int end);
+
+	public void onSpanChanged(Spannable text, Object what, int ostart, int oend, int nstart, int nend);
+}
@@ -0,0 +1,34 @@
+/*
+ Copyright (C) 2013 Ray Zhou
+
+ JadeRead is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ JadeRead is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with JadeRead.  If not, see <http://www.gnu.org/licenses/>
+
+ */
+package android.text;
+
+/**
+ * The part of android.text.Spannable the headless replay needs, see TouchTraceReplayer
+ */
+public interface Spannable extends Spanned {
+
+	public void setSpan(Object what, int start, int end, int flags);
+
+	public void removeSpan(Object what);
+
+	public static class Factory {
+		public Spannable newSpannable(CharSequence source) {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
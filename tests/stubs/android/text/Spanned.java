@@ -0,0 +1,48 @@
+/*
+ Copyright (C) 2013 Ray Zhou
+
+ JadeRead is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ JadeRead is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with JadeRead.  If not, see <http://www.gnu.org/licenses/>
+
+ */
+package android.text;
+
+/**
+ * The part of android.text.Spanned the headless replay needs, see TouchTraceReplayer. Only on the
+ * classpath of the replay, never on the one of the app.
+ */
+public interface Spanned extends CharSequence {
+
+	public static final int SPAN_POINT_MARK_MASK = 0x33;
+	public static final int SPAN_MARK_MARK = 0x11;
+	public static final int SPAN_MARK_POINT = 0x12;
+	public static final int SPAN_POINT_MARK = 0x21;
+	public static final int SPAN_POINT_POINT = 0x22;
+	public static final int SPAN_PARAGRAPH = 0x33;
+	public static final int SPAN_INCLUSIVE_EXCLUSIVE = SPAN_MARK_MARK;
+	public static final int SPAN_INCLUSIVE_INCLUSIVE = SPAN_MARK_POINT;
+	public static final int SPAN_EXCLUSIVE_EXCLUSIVE = SPAN_POINT_MARK;
+	public static final int SPAN_EXCLUSIVE_INCLUSIVE = SPAN_POINT_POINT;
+	public static final int SPAN_PRIORITY_SHIFT = 16;
+	public static final int SPAN_PRIORITY = 0xFF << SPAN_PRIORITY_SHIFT;
+
+	public <T> T[] getSpans(int start, int end, Class<T> type);
+
+	public int getSpanStart(Object tag);
+
+	public int getSpanEnd(Object tag);
+
+	public int getSpanFlags(Object tag);
+
+	public int nextSpanTransition(int start, int limit, Class type);
+}